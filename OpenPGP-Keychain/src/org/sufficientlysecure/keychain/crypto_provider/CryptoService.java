@@ -18,11 +18,15 @@ package org.sufficientlysecure.keychain.crypto_provider;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PrintWriter;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.Id;
+import org.sufficientlysecure.keychain.helper.EncryptedMessageInfo;
 import org.sufficientlysecure.keychain.helper.PgpMain;
+import org.sufficientlysecure.keychain.helper.PrivateKeyCache;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.R;
@@ -62,6 +66,15 @@ public class CryptoService extends Service {
         return mBinder;
     }
 
+    /**
+     * Writes the statistics of the private key cache of the :crypto process, called by "dumpsys
+     * activity service CryptoService"
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        PrivateKeyCache.getInstance().dump(writer);
+    }
+
     private synchronized void decryptAndVerifySafe(byte[] inputBytes, ICryptoCallback callback)
             throws RemoteException {
         try {
@@ -72,7 +85,10 @@ public class CryptoService extends Service {
 
             OutputStream outputStream = new ByteArrayOutputStream();
 
-            long secretKeyId = PgpMain.getDecryptionKeyId(mContext, inputStream);
+            // read the session key packets once, decryption continues from there
+            EncryptedMessageInfo messageInfo = PgpMain.inspectEncryptedMessage(mContext,
+                    inputData);
+            long secretKeyId = PgpMain.getDecryptionKeyId(mContext, messageInfo);
             if (secretKeyId == Id.key.none) {
                 throw new PgpMain.PgpGeneralException(getString(R.string.error_noSecretKeyFound));
             }
@@ -102,8 +118,8 @@ public class CryptoService extends Service {
             // assumeSymmetricEncryption);
             // }
 
-            Bundle outputBundle = PgpMain.decryptAndVerify(mContext, null, inputData, outputStream,
-                    passphrase, false);
+            Bundle outputBundle = PgpMain.decryptAndVerify(mContext, null, messageInfo,
+                    outputStream, passphrase, false);
 
             outputStream.close();
 
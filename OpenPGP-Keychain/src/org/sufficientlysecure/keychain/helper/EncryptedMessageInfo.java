@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2013 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.keychain.helper;
+
+import org.spongycastle.openpgp.PGPEncryptedDataList;
+import org.sufficientlysecure.keychain.util.InputData;
+
+/**
+ * Session key packets of an encrypted message, read once by
+ * {@link PgpMain#inspectEncryptedMessage}. The input is left at the start of the encrypted data,
+ * so the key ids can be looked at any number of times and the message can then be decrypted once
+ * with PgpMain.decryptAndVerify(Context, ProgressDialogUpdater, EncryptedMessageInfo, ...),
+ * without decoding armor or parsing the packets again.
+ */
+public class EncryptedMessageInfo {
+    final InputData data;
+    final PGPEncryptedDataList encryptedDataList;
+    private final long[] mEncryptionKeyIds;
+    private final boolean mSymmetric;
+    private final long mDataOffset;
+    boolean decrypted = false;
+
+    EncryptedMessageInfo(InputData data, PGPEncryptedDataList encryptedDataList,
+            long[] encryptionKeyIds, boolean symmetric, long dataOffset) {
+        this.data = data;
+        this.encryptedDataList = encryptedDataList;
+        mEncryptionKeyIds = encryptionKeyIds;
+        mSymmetric = symmetric;
+        mDataOffset = dataOffset;
+    }
+
+    /**
+     * @return key ids of all public key encrypted session keys, in order of the packets
+     */
+    public long[] getEncryptionKeyIds() {
+        return mEncryptionKeyIds.clone();
+    }
+
+    /**
+     * @return true if the message can be decrypted with a passphrase
+     */
+    public boolean hasSymmetricEncryption() {
+        return mSymmetric;
+    }
+
+    /**
+     * @return true if the message is encrypted to at least one public key
+     */
+    public boolean hasAsymmetricEncryption() {
+        return mEncryptionKeyIds.length > 0;
+    }
+
+    /**
+     * @return bytes of the input read up to the encrypted data, including what the armor decoder
+     *         has read ahead
+     */
+    public long getDataOffset() {
+        return mDataOffset;
+    }
+}
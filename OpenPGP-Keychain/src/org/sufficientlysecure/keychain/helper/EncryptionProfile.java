@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2013 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.keychain.helper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.spongycastle.openpgp.PGPPrivateKey;
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.PGPSignatureSubpacketVector;
+import org.spongycastle.openpgp.operator.PGPContentSignerBuilder;
+import org.spongycastle.openpgp.operator.PGPDataEncryptorBuilder;
+
+/**
+ * Recipients, signing key and settings of an encryption, resolved once by
+ * {@link PgpMain#buildEncryptionProfile} to encrypt any number of messages with
+ * PgpMain.encryptAndSign(EncryptionProfile, ...) or PgpMain.encryptAndSignBatch.
+ *
+ * Immutable, can be used from several threads at once.
+ */
+public class EncryptionProfile {
+    final boolean useAsciiArmor;
+    final int compression;
+    final String version;
+    final PGPDataEncryptorBuilder encryptorBuilder;
+
+    /** recipients, empty for symmetric encryption */
+    final List<PGPPublicKey> encryptionKeys;
+    /** null for asymmetric encryption */
+    final String encryptionPassphrase;
+
+    /** null without signature */
+    final PGPPrivateKey signaturePrivateKey;
+    final PGPContentSignerBuilder contentSignerBuilder;
+    final boolean signatureForceV3;
+    /** null for V3 signatures */
+    final PGPSignatureSubpacketVector signatureHashedSubpackets;
+
+    EncryptionProfile(boolean useAsciiArmor, int compression, String version,
+            PGPDataEncryptorBuilder encryptorBuilder, List<PGPPublicKey> encryptionKeys,
+            String encryptionPassphrase, PGPPrivateKey signaturePrivateKey,
+            PGPContentSignerBuilder contentSignerBuilder, boolean signatureForceV3,
+            PGPSignatureSubpacketVector signatureHashedSubpackets) {
+        this.useAsciiArmor = useAsciiArmor;
+        this.compression = compression;
+        this.version = version;
+        this.encryptorBuilder = encryptorBuilder;
+        this.encryptionKeys = Collections.unmodifiableList(new ArrayList<PGPPublicKey>(
+                encryptionKeys));
+        this.encryptionPassphrase = encryptionPassphrase;
+        this.signaturePrivateKey = signaturePrivateKey;
+        this.contentSignerBuilder = contentSignerBuilder;
+        this.signatureForceV3 = signatureForceV3;
+        this.signatureHashedSubpackets = signatureHashedSubpackets;
+    }
+
+    public boolean isSymmetric() {
+        return encryptionPassphrase != null;
+    }
+
+    public boolean isSigning() {
+        return signaturePrivateKey != null;
+    }
+
+    public boolean isAsciiArmor() {
+        return useAsciiArmor;
+    }
+
+    /**
+     * @return the recipients' encryption keys
+     */
+    public List<PGPPublicKey> getEncryptionKeys() {
+        return encryptionKeys;
+    }
+}
@@ -19,6 +19,7 @@ package org.sufficientlysecure.keychain.helper;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
 import java.util.Iterator;
+import java.util.Locale;
 import java.util.Set;
 
 import org.sufficientlysecure.keychain.Constants;
@@ -164,4 +165,51 @@ public class OtherHelper {
         return output;
     }
 
+    /**
+     * Normalizes email for exact lookups: surrounding whitespace and angle brackets are removed,
+     * the result is lower case
+     * 
+     * @param email
+     *            email, with or without angle brackets, e.g. from {@link #splitUserId(String)}
+     * @return normalized email or null if empty
+     */
+    public static String normalizeEmail(String email) {
+        if (email == null) {
+            return null;
+        }
+
+        email = email.trim();
+        if (email.startsWith("<")) {
+            email = email.substring(1);
+        }
+        if (email.endsWith(">")) {
+            email = email.substring(0, email.length() - 1);
+        }
+        email = email.trim().toLowerCase(Locale.ENGLISH);
+
+        return (email.length() == 0) ? null : email;
+    }
+
+    /**
+     * Get normalized email of userId, the text within the angle brackets at its end. Unlike
+     * {@link #splitUserId(String)} no space is required before them, e.g. "Alice<alice@example.com>"
+     * or "<alice@example.com>".
+     * 
+     * @param userId
+     * @return normalized email or null if userId contains no email
+     */
+    public static String getNormalizedEmail(String userId) {
+        if (userId == null) {
+            return null;
+        }
+
+        userId = userId.trim();
+        int start = userId.lastIndexOf('<');
+        if (start < 0 || !userId.endsWith(">")) {
+            return null;
+        }
+
+        return normalizeEmail(userId.substring(start));
+    }
+
 }
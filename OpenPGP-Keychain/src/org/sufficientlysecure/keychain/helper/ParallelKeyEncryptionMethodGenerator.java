@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2013 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.keychain.helper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.spongycastle.bcpg.ContainedPacket;
+import org.spongycastle.openpgp.PGPException;
+import org.spongycastle.openpgp.operator.PGPKeyEncryptionMethodGenerator;
+
+/**
+ * Wraps the session key for all recipients in parallel.
+ *
+ * PGPEncryptedDataGenerator.open() calls generate() of each method one after another with the
+ * same session key. The wrappers returned by {@link #wrap(List)} compute the packets of all
+ * methods on the first call, using one thread per processor, and return them in the order of the
+ * methods, so the written packets are the same as without wrapping.
+ */
+public class ParallelKeyEncryptionMethodGenerator extends PGPKeyEncryptionMethodGenerator {
+    private static class Batch {
+        private final List<PGPKeyEncryptionMethodGenerator> mMethods;
+        private ContainedPacket[] mPackets;
+        private int mEncAlgorithm;
+        private byte[] mSessionInfo;
+        private int mDelivered;
+
+        Batch(List<PGPKeyEncryptionMethodGenerator> methods) {
+            mMethods = methods;
+        }
+
+        synchronized ContainedPacket get(int index, int encAlgorithm, byte[] sessionInfo)
+                throws PGPException {
+            if (mPackets == null || mEncAlgorithm != encAlgorithm
+                    || !Arrays.equals(mSessionInfo, sessionInfo)) {
+                mPackets = generateAll(encAlgorithm, sessionInfo);
+                mEncAlgorithm = encAlgorithm;
+                mSessionInfo = sessionInfo;
+                mDelivered = 0;
+            }
+
+            ContainedPacket packet = mPackets[index];
+            if (++mDelivered == mPackets.length) {
+                // all packets are written, don't keep a reference to the session key
+                mPackets = null;
+                mSessionInfo = null;
+            }
+            return packet;
+        }
+
+        private ContainedPacket[] generateAll(final int encAlgorithm, final byte[] sessionInfo)
+                throws PGPException {
+            int threads = Math.min(mMethods.size(), Runtime.getRuntime().availableProcessors());
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                ArrayList<Callable<ContainedPacket>> tasks =
+                        new ArrayList<Callable<ContainedPacket>>(mMethods.size());
+                for (final PGPKeyEncryptionMethodGenerator method : mMethods) {
+                    tasks.add(new Callable<ContainedPacket>() {
+                        @Override
+                        public ContainedPacket call() throws PGPException {
+                            return method.generate(encAlgorithm, sessionInfo);
+                        }
+                    });
+                }
+
+                List<Future<ContainedPacket>> futures = executor.invokeAll(tasks);
+                ContainedPacket[] packets = new ContainedPacket[futures.size()];
+                for (int i = 0; i < packets.length; ++i) {
+                    packets[i] = futures.get(i).get();
+                }
+                return packets;
+            } catch (InterruptedException e) {
+                throw new PGPException("interrupted while encrypting session key", e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof PGPException) {
+                    throw (PGPException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new PGPException("exception encrypting session key", (Exception) cause);
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    private final Batch mBatch;
+    private final int mIndex;
+
+    private ParallelKeyEncryptionMethodGenerator(Batch batch, int index) {
+        mBatch = batch;
+        mIndex = index;
+    }
+
+    /**
+     * @param methods
+     * @return wrappers of the methods, to be added to the PGPEncryptedDataGenerator in this order
+     *         and instead of the methods
+     */
+    public static ArrayList<PGPKeyEncryptionMethodGenerator> wrap(
+            List<PGPKeyEncryptionMethodGenerator> methods) {
+        Batch batch = new Batch(new ArrayList<PGPKeyEncryptionMethodGenerator>(methods));
+        ArrayList<PGPKeyEncryptionMethodGenerator> wrappers =
+                new ArrayList<PGPKeyEncryptionMethodGenerator>(methods.size());
+        for (int i = 0; i < methods.size(); ++i) {
+            wrappers.add(new ParallelKeyEncryptionMethodGenerator(batch, i));
+        }
+        return wrappers;
+    }
+
+    @Override
+    public ContainedPacket generate(int encAlgorithm, byte[] sessionInfo) throws PGPException {
+        return mBatch.get(mIndex, encAlgorithm, sessionInfo);
+    }
+}
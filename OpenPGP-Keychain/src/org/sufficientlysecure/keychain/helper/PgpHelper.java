@@ -35,7 +35,7 @@ import org.spongycastle.openpgp.operator.PBESecretKeyDecryptor;
 import org.spongycastle.openpgp.operator.jcajce.JcePBESecretKeyDecryptorBuilder;
 import org.spongycastle.openpgp.PGPException;
 import org.sufficientlysecure.keychain.Constants;
-import org.sufficientlysecure.keychain.provider.ProviderHelper;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyTypes;
 import org.sufficientlysecure.keychain.util.IterableIterator;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.R;
@@ -225,8 +225,11 @@ public class PgpHelper {
     }
 
     public static PGPPublicKey getEncryptPublicKey(Context context, long masterKeyId) {
-        PGPPublicKeyRing keyRing = ProviderHelper.getPGPPublicKeyRingByMasterKeyId(context,
-                masterKeyId);
+        return getEncryptPublicKey((PGPPublicKeyRing) PgpMain.getKeyRingStore(context)
+                .getByMasterKeyId(KeyTypes.PUBLIC, masterKeyId));
+    }
+
+    public static PGPPublicKey getEncryptPublicKey(PGPPublicKeyRing keyRing) {
         if (keyRing == null) {
             Log.e(Constants.TAG, "keyRing is null!");
             return null;
@@ -240,8 +243,8 @@ public class PgpHelper {
     }
 
     public static PGPSecretKey getCertificationKey(Context context, long masterKeyId) {
-        PGPSecretKeyRing keyRing = ProviderHelper.getPGPSecretKeyRingByMasterKeyId(context,
-                masterKeyId);
+        PGPSecretKeyRing keyRing = (PGPSecretKeyRing) PgpMain.getKeyRingStore(context)
+                .getByMasterKeyId(KeyTypes.SECRET, masterKeyId);
         if (keyRing == null) {
             return null;
         }
@@ -253,8 +256,8 @@ public class PgpHelper {
     }
 
     public static PGPSecretKey getSigningKey(Context context, long masterKeyId) {
-        PGPSecretKeyRing keyRing = ProviderHelper.getPGPSecretKeyRingByMasterKeyId(context,
-                masterKeyId);
+        PGPSecretKeyRing keyRing = (PGPSecretKeyRing) PgpMain.getKeyRingStore(context)
+                .getByMasterKeyId(KeyTypes.SECRET, masterKeyId);
         if (keyRing == null) {
             return null;
         }
@@ -465,10 +468,15 @@ public class PgpHelper {
     }
 
     public static String getFingerPrint(Context context, long keyId) {
-        PGPPublicKey key = ProviderHelper.getPGPPublicKeyByKeyId(context, keyId);
+        PGPPublicKey key = null;
+        PGPPublicKeyRing keyRing = (PGPPublicKeyRing) PgpMain.getKeyRingStore(context).getByKeyId(
+                KeyTypes.PUBLIC, keyId);
+        if (keyRing != null) {
+            key = keyRing.getPublicKey(keyId);
+        }
         // if it is no public key get it from your own keys...
         if (key == null) {
-            PGPSecretKey secretKey = ProviderHelper.getPGPSecretKeyByKeyId(context, keyId);
+            PGPSecretKey secretKey = getSecretKeyByKeyId(context, keyId);
             if (secretKey == null) {
                 Log.e(Constants.TAG, "Key could not be found!");
                 return null;
@@ -479,12 +487,21 @@ public class PgpHelper {
         return convertFingerprintToHex(key.getFingerprint());
     }
 
+    private static PGPSecretKey getSecretKeyByKeyId(Context context, long keyId) {
+        PGPSecretKeyRing keyRing = (PGPSecretKeyRing) PgpMain.getKeyRingStore(context).getByKeyId(
+                KeyTypes.SECRET, keyId);
+        if (keyRing == null) {
+            return null;
+        }
+        return keyRing.getSecretKey(keyId);
+    }
+
     public static boolean isSecretKeyPrivateEmpty(PGPSecretKey secretKey) {
         return secretKey.isPrivateKeyEmpty();
     }
 
     public static boolean isSecretKeyPrivateEmpty(Context context, long keyId) {
-        PGPSecretKey secretKey = ProviderHelper.getPGPSecretKeyByKeyId(context, keyId);
+        PGPSecretKey secretKey = getSecretKeyByKeyId(context, keyId);
         if (secretKey == null) {
             Log.e(Constants.TAG, "Key could not be found!");
             return false; //could be a public key, assume it is not empty
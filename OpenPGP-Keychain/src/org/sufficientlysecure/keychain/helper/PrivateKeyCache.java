@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2013 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.keychain.helper;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.spongycastle.openpgp.PGPException;
+import org.spongycastle.openpgp.PGPPrivateKey;
+import org.spongycastle.openpgp.PGPSecretKey;
+import org.spongycastle.openpgp.operator.PBESecretKeyDecryptor;
+import org.spongycastle.openpgp.operator.jcajce.JcePBESecretKeyDecryptorBuilder;
+
+import android.content.Context;
+
+/**
+ * In-process cache of unlocked private keys, saving the S2K and decryption of the secret key
+ * material when the same key is used again. Entries time out like passphrases in
+ * PassphraseCacheService: once, after the passphrase cache ttl counted from unlocking the key.
+ * Using a cached key does not postpone its timeout.
+ *
+ * A cached key is only returned for the passphrase it was unlocked with, checked against a salted
+ * digest of the passphrase and the secret key packet, so a changed passphrase or key is never
+ * served from the cache. On timeout and eviction the digest and salt are overwritten and the
+ * private key is dropped. The key material itself is held in immutable BigIntegers by the JCE
+ * provider and can not be overwritten.
+ */
+public class PrivateKeyCache {
+    private static class Entry {
+        final long keyId;
+        final PGPPrivateKey privateKey;
+        final byte[] salt;
+        final byte[] verifier;
+        /** time it took to unlock the key, saved on every hit */
+        final long extractNanos;
+        /** fixed when the key is unlocked */
+        final long expiresAt;
+
+        Entry(long keyId, PGPPrivateKey privateKey, byte[] salt, byte[] verifier,
+                long extractNanos, long expiresAt) {
+            this.keyId = keyId;
+            this.privateKey = privateKey;
+            this.salt = salt;
+            this.verifier = verifier;
+            this.extractNanos = extractNanos;
+            this.expiresAt = expiresAt;
+        }
+
+        void clear() {
+            Arrays.fill(salt, (byte) 0);
+            Arrays.fill(verifier, (byte) 0);
+        }
+    }
+
+    private static final int SALT_LENGTH = 16;
+
+    private static PrivateKeyCache sInstance;
+
+    private final HashMap<Long, Entry> mEntries = new HashMap<Long, Entry>();
+    private final SecureRandom mRandom = new SecureRandom();
+    private Timer mTimer;
+
+    private long mHits;
+    private long mMisses;
+    private long mExtractNanos;
+    private long mSavedNanos;
+
+    public static synchronized PrivateKeyCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new PrivateKeyCache();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Unlocks the secret key with the passphrase, or returns the key unlocked before with the same
+     * passphrase
+     *
+     * @param context
+     *            for the passphrase cache ttl
+     * @param secretKey
+     * @param passphrase
+     * @return null if the passphrase is wrong for keys without checksum, like extractPrivateKey
+     * @throws PGPException
+     *             if the key can not be unlocked
+     */
+    public PGPPrivateKey extractPrivateKey(Context context, PGPSecretKey secretKey,
+            String passphrase) throws PGPException {
+        return extractPrivateKey(secretKey, passphrase, Preferences.getPreferences(context)
+                .getPassPhraseCacheTtl() * 1000);
+    }
+
+    /**
+     * @param secretKey
+     * @param passphrase
+     * @param ttlMillis
+     *            time the unlocked key is kept after unlocking it
+     * @return
+     * @throws PGPException
+     */
+    public PGPPrivateKey extractPrivateKey(PGPSecretKey secretKey, String passphrase,
+            long ttlMillis) throws PGPException {
+        long keyId = secretKey.getKeyID();
+        synchronized (this) {
+            Entry entry = mEntries.get(keyId);
+            if (entry != null && entry.expiresAt <= System.currentTimeMillis()) {
+                remove(entry);
+            } else if (entry != null
+                    && MessageDigest.isEqual(entry.verifier,
+                            verifier(entry.salt, secretKey, passphrase))) {
+                ++mHits;
+                mSavedNanos += entry.extractNanos;
+                return entry.privateKey;
+            }
+            // a changed key or other passphrase replaces the entry only if it unlocks the key
+        }
+
+        // unlock outside of the lock, S2K takes long
+        long start = System.nanoTime();
+        PBESecretKeyDecryptor keyDecryptor = new JcePBESecretKeyDecryptorBuilder().setProvider(
+                PgpMain.BOUNCY_CASTLE_PROVIDER_NAME).build(passphrase.toCharArray());
+        PGPPrivateKey privateKey = secretKey.extractPrivateKey(keyDecryptor);
+        long extractNanos = System.nanoTime() - start;
+        if (privateKey == null) {
+            return null;
+        }
+
+        synchronized (this) {
+            ++mMisses;
+            mExtractNanos += extractNanos;
+
+            byte[] salt = new byte[SALT_LENGTH];
+            mRandom.nextBytes(salt);
+            Entry entry = new Entry(keyId, privateKey, salt, verifier(salt, secretKey,
+                    passphrase), extractNanos, System.currentTimeMillis() + ttlMillis);
+
+            Entry old = mEntries.put(keyId, entry);
+            if (old != null) {
+                old.clear();
+            }
+            scheduleTimeout(entry, ttlMillis);
+        }
+        return privateKey;
+    }
+
+    /**
+     * Removes the unlocked key of this key id
+     *
+     * @param keyId
+     */
+    public synchronized void evict(long keyId) {
+        Entry entry = mEntries.get(keyId);
+        if (entry != null) {
+            remove(entry);
+        }
+    }
+
+    /**
+     * Removes all unlocked keys, e.g. when secret keys have been changed
+     */
+    public synchronized void evictAll() {
+        for (Entry entry : new ArrayList<Entry>(mEntries.values())) {
+            remove(entry);
+        }
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Writes hits, misses and the unlock time saved by the hits
+     *
+     * @param writer
+     */
+    public synchronized void dump(PrintWriter writer) {
+        long averageExtractMicros = (mMisses == 0) ? 0 : mExtractNanos / mMisses / 1000;
+        long savedPerHitMicros = (mHits == 0) ? 0 : mSavedNanos / mHits / 1000;
+        writer.println("private key cache: " + mEntries.size() + " keys, hits " + mHits
+                + ", misses " + mMisses + ", avg unlock " + averageExtractMicros
+                + " us, saved " + (mSavedNanos / 1000000) + " ms, saved per hit "
+                + savedPerHitMicros + " us");
+    }
+
+    private void remove(Entry entry) {
+        if (mEntries.get(entry.keyId) == entry) {
+            mEntries.remove(entry.keyId);
+        }
+        entry.clear();
+        if (mEntries.isEmpty() && mTimer != null) {
+            mTimer.cancel();
+            mTimer = null;
+        }
+    }
+
+    /**
+     * Like the alarm of PassphraseCacheService, the timeout is scheduled once per entry and never
+     * postponed
+     */
+    private void scheduleTimeout(final Entry entry, long delayMillis) {
+        if (mTimer == null) {
+            mTimer = new Timer("PrivateKeyCache", true);
+        }
+        mTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                synchronized (PrivateKeyCache.this) {
+                    // replaced or evicted entries have been cleared already
+                    if (mEntries.get(entry.keyId) == entry) {
+                        remove(entry);
+                    }
+                }
+            }
+        }, Math.max(delayMillis, 0));
+    }
+
+    private static byte[] verifier(byte[] salt, PGPSecretKey secretKey, String passphrase)
+            throws PGPException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(salt);
+            digest.update(passphrase.getBytes("UTF-8"));
+            digest.update(secretKey.getEncoded());
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new PGPException("SHA-256 not available", e);
+        } catch (UnsupportedEncodingException e) {
+            throw new PGPException("UTF-8 not available", e);
+        } catch (IOException e) {
+            throw new PGPException("encoding secret key failed", e);
+        }
+    }
+}
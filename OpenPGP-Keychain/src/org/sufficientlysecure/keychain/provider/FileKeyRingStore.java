@@ -0,0 +1,415 @@
+/*
+ * Copyright (C) 2013 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.spongycastle.openpgp.PGPKeyRing;
+import org.spongycastle.openpgp.PGPObjectFactory;
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.PGPPublicKeyRing;
+import org.spongycastle.openpgp.PGPSecretKey;
+import org.spongycastle.openpgp.PGPSecretKeyRing;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyTypes;
+import org.sufficientlysecure.keychain.util.LongLongHashMap;
+
+/**
+ * {@link KeyRingStore} in a single append-only file, read through a memory mapping. Every save or
+ * delete appends one record, the newest record of a master key id wins. All records are read
+ * into an in-memory index when the file is opened, an incomplete last record, e.g. after a crash
+ * while writing, is discarded.
+ *
+ * Record layout: int length of the data, byte record type, byte key type, long master key id,
+ * followed by the encoded key ring for saves.
+ *
+ * Uses no Android classes, so it runs on any JVM. The file is limited to 2 GB, replaced and
+ * deleted key rings are not reclaimed.
+ */
+public class FileKeyRingStore implements KeyRingStore, Closeable {
+    private static final byte RECORD_SAVE = 1;
+    private static final byte RECORD_DELETE = 2;
+
+    private static final int HEADER_SIZE = 4 + 1 + 1 + 8;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+
+    /** read only mapping, remapped when records beyond it are read */
+    private MappedByteBuffer mMap;
+
+    /** end of the last complete record, new records are appended here */
+    private long mEnd = 0;
+
+    private final Index mPublicIndex = new Index();
+    private final Index mSecretIndex = new Index();
+
+    private static class Entry {
+        final long offset;
+        final int length;
+        final long[] keyIds;
+        /** lower case words of every user id */
+        final String[][] userIdWords;
+
+        Entry(long offset, int length, long[] keyIds, String[][] userIdWords) {
+            this.offset = offset;
+            this.length = length;
+            this.keyIds = keyIds;
+            this.userIdWords = userIdWords;
+        }
+    }
+
+    private static class Index {
+        final HashMap<Long, Entry> entries = new HashMap<Long, Entry>();
+        /**
+         * maps key ids to the master key id of the key ring they were saved with, entries of
+         * replaced or deleted key rings are left and checked on lookup
+         */
+        final LongLongHashMap masterKeyIds = new LongLongHashMap();
+    }
+
+    /**
+     * Opens the store, the file is created if it does not exist
+     *
+     * @param file
+     * @throws IOException
+     */
+    public FileKeyRingStore(File file) throws IOException {
+        mFile = new RandomAccessFile(file, "rw");
+        mChannel = mFile.getChannel();
+        try {
+            load();
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        }
+    }
+
+    private void load() throws IOException {
+        long size = mChannel.size();
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Key ring store too large: " + size);
+        }
+        mMap = mChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+        long position = 0;
+        while (position + HEADER_SIZE <= size) {
+            int length = mMap.getInt((int) position);
+            byte recordType = mMap.get((int) position + 4);
+            int type = mMap.get((int) position + 5);
+            long masterKeyId = mMap.getLong((int) position + 6);
+
+            if (length < 0 || position + HEADER_SIZE + length > size
+                    || (recordType != RECORD_SAVE && recordType != RECORD_DELETE)
+                    || (type != KeyTypes.PUBLIC && type != KeyTypes.SECRET)) {
+                break;
+            }
+
+            if (recordType == RECORD_SAVE) {
+                // a complete record that can not be parsed is skipped
+                PGPKeyRing keyRing = null;
+                try {
+                    keyRing = read(position + HEADER_SIZE, length);
+                } catch (IOException e) {
+                    // skip
+                }
+                if (keyRing != null) {
+                    index(type, masterKeyId, position + HEADER_SIZE, length, keyRing);
+                }
+            } else {
+                getIndex(type).entries.remove(masterKeyId);
+            }
+            position += HEADER_SIZE + length;
+        }
+
+        // drop an incomplete record at the end
+        mEnd = position;
+        if (mEnd < size) {
+            mChannel.truncate(mEnd);
+        }
+    }
+
+    private Index getIndex(int type) {
+        if (type == KeyTypes.SECRET) {
+            return mSecretIndex;
+        } else if (type == KeyTypes.PUBLIC) {
+            return mPublicIndex;
+        }
+        throw new IllegalArgumentException("Unknown key type " + type);
+    }
+
+    private byte[] readData(long offset, int length) throws IOException {
+        if (mMap.capacity() < offset + length) {
+            mMap = mChannel.map(FileChannel.MapMode.READ_ONLY, 0, mEnd);
+        }
+
+        byte[] data = new byte[length];
+        ByteBuffer buffer = mMap.duplicate();
+        buffer.position((int) offset);
+        buffer.get(data);
+        return data;
+    }
+
+    private PGPKeyRing read(long offset, int length) throws IOException {
+        Object object = new PGPObjectFactory(readData(offset, length)).nextObject();
+        return (object instanceof PGPKeyRing) ? (PGPKeyRing) object : null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void index(int type, long masterKeyId, long offset, int length, PGPKeyRing keyRing) {
+        ArrayList<Long> keyIdList = new ArrayList<Long>();
+        PGPPublicKey masterKey;
+        if (keyRing instanceof PGPSecretKeyRing) {
+            PGPSecretKeyRing secretKeyRing = (PGPSecretKeyRing) keyRing;
+            masterKey = secretKeyRing.getSecretKey().getPublicKey();
+            Iterator<PGPSecretKey> it = secretKeyRing.getSecretKeys();
+            while (it.hasNext()) {
+                keyIdList.add(it.next().getKeyID());
+            }
+        } else {
+            PGPPublicKeyRing publicKeyRing = (PGPPublicKeyRing) keyRing;
+            masterKey = publicKeyRing.getPublicKey();
+            Iterator<PGPPublicKey> it = publicKeyRing.getPublicKeys();
+            while (it.hasNext()) {
+                keyIdList.add(it.next().getKeyID());
+            }
+        }
+
+        ArrayList<String[]> userIdWords = new ArrayList<String[]>();
+        Iterator<String> userIds = masterKey.getUserIDs();
+        while (userIds.hasNext()) {
+            userIdWords.add(splitWords(userIds.next()));
+        }
+
+        Index index = getIndex(type);
+        long[] keyIds = new long[keyIdList.size()];
+        for (int i = 0; i < keyIds.length; ++i) {
+            keyIds[i] = keyIdList.get(i);
+            index.masterKeyIds.put(keyIds[i], masterKeyId);
+        }
+        index.entries.put(masterKeyId, new Entry(offset, length, keyIds,
+                userIdWords.toArray(new String[userIdWords.size()][])));
+    }
+
+    /**
+     * Splits like the search of {@link KeychainProvider}, at all characters except letters and
+     * digits
+     */
+    private static String[] splitWords(String string) {
+        ArrayList<String> words = new ArrayList<String>();
+        for (String word : string.toLowerCase(Locale.ENGLISH).split("[^\\p{L}\\p{N}]+")) {
+            if (word.length() != 0) {
+                words.add(word);
+            }
+        }
+        return words.toArray(new String[words.size()]);
+    }
+
+    private void append(byte recordType, int type, long masterKeyId, byte[] data)
+            throws IOException {
+        int length = (data == null) ? 0 : data.length;
+        if (mEnd + HEADER_SIZE + length > Integer.MAX_VALUE) {
+            throw new IOException("Key ring store full");
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + length);
+        record.putInt(length);
+        record.put(recordType);
+        record.put((byte) type);
+        record.putLong(masterKeyId);
+        if (data != null) {
+            record.put(data);
+        }
+        record.flip();
+
+        long position = mEnd;
+        while (record.hasRemaining()) {
+            position += mChannel.write(record, position);
+        }
+        mEnd = position;
+    }
+
+    @Override
+    public synchronized PGPKeyRing getByKeyId(int type, long keyId) {
+        Index index = getIndex(type);
+        if (!index.masterKeyIds.containsKey(keyId)) {
+            return null;
+        }
+
+        long masterKeyId = index.masterKeyIds.get(keyId, 0);
+        Entry entry = index.entries.get(masterKeyId);
+        if (entry == null) {
+            return null;
+        }
+
+        // the key may have been removed from a newer version of the key ring
+        for (long entryKeyId : entry.keyIds) {
+            if (entryKeyId == keyId) {
+                return read(entry);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized PGPKeyRing getByMasterKeyId(int type, long masterKeyId) {
+        Entry entry = getIndex(type).entries.get(masterKeyId);
+        if (entry == null) {
+            return null;
+        }
+        return read(entry);
+    }
+
+    @Override
+    public synchronized HashMap<Long, PGPKeyRing> getAll(int type, long[] ids, boolean byKeyId) {
+        HashMap<Long, PGPKeyRing> keyRings = new HashMap<Long, PGPKeyRing>();
+        for (long id : ids) {
+            PGPKeyRing keyRing = byKeyId ? getByKeyId(type, id) : getByMasterKeyId(type, id);
+            if (keyRing != null) {
+                keyRings.put(id, keyRing);
+            }
+        }
+        return keyRings;
+    }
+
+    private PGPKeyRing read(Entry entry) {
+        try {
+            return read(entry.offset, entry.length);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public synchronized boolean save(PGPKeyRing keyRing) throws IOException {
+        int type;
+        long masterKeyId;
+        if (keyRing instanceof PGPSecretKeyRing) {
+            type = KeyTypes.SECRET;
+            masterKeyId = ((PGPSecretKeyRing) keyRing).getSecretKey().getKeyID();
+        } else if (keyRing instanceof PGPPublicKeyRing) {
+            type = KeyTypes.PUBLIC;
+            masterKeyId = ((PGPPublicKeyRing) keyRing).getPublicKey().getKeyID();
+        } else {
+            throw new IllegalArgumentException("Unknown key ring " + keyRing);
+        }
+
+        byte[] data = keyRing.getEncoded();
+        Entry existing = getIndex(type).entries.get(masterKeyId);
+
+        // nothing to append if the stored version is identical
+        if (existing != null && existing.length == data.length
+                && Arrays.equals(readData(existing.offset, existing.length), data)) {
+            return true;
+        }
+
+        long offset = mEnd + HEADER_SIZE;
+        append(RECORD_SAVE, type, masterKeyId, data);
+        index(type, masterKeyId, offset, data.length, keyRing);
+
+        return existing != null;
+    }
+
+    @Override
+    public synchronized int saveAll(List<PGPKeyRing> keyRings) throws IOException {
+        int existing = 0;
+        for (PGPKeyRing keyRing : keyRings) {
+            if (save(keyRing)) {
+                ++existing;
+            }
+        }
+        return existing;
+    }
+
+    @Override
+    public synchronized boolean delete(int type, long masterKeyId) throws IOException {
+        if (!getIndex(type).entries.containsKey(masterKeyId)) {
+            return false;
+        }
+
+        append(RECORD_DELETE, type, masterKeyId, null);
+        getIndex(type).entries.remove(masterKeyId);
+        return true;
+    }
+
+    @Override
+    public synchronized ArrayList<Long> getMasterKeyIds(int type) {
+        return new ArrayList<Long>(getIndex(type).entries.keySet());
+    }
+
+    @Override
+    public synchronized ArrayList<Long> search(int type, String search) {
+        ArrayList<Long> masterKeyIds = new ArrayList<Long>();
+        String[] tokens = splitWords(search);
+        if (tokens.length == 0) {
+            return masterKeyIds;
+        }
+
+        for (Map.Entry<Long, Entry> entry : getIndex(type).entries.entrySet()) {
+            for (String[] words : entry.getValue().userIdWords) {
+                if (containsPrefixes(words, tokens)) {
+                    masterKeyIds.add(entry.getKey());
+                    break;
+                }
+            }
+        }
+        return masterKeyIds;
+    }
+
+    /**
+     * @return true if every token is a prefix of one of the words
+     */
+    private static boolean containsPrefixes(String[] words, String[] tokens) {
+        for (String token : tokens) {
+            boolean found = false;
+            for (String word : words) {
+                if (word.startsWith(token)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes all appended records to the device and closes the file
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            mChannel.force(false);
+        } finally {
+            mFile.close();
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2013 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.Id;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyTypes;
+import org.sufficientlysecure.keychain.provider.KeychainContract.Keys;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
+import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.LongLongHashMap;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+
+/**
+ * Process wide index from the key id of every public and secret key to the master key id of its
+ * key ring. It answers the frequent key id lookups, e.g. for the passphrase cache or the
+ * recipients of an encrypted message, without parsing the key ring and usually without a query.
+ *
+ * Each index is loaded with one query on first use and dropped on every change of the key rings,
+ * like {@link KeyRingCache}. In the process of {@link KeychainProvider} the index is dropped
+ * synchronously with every write, so a miss in a loaded index is exact there and "no secret key
+ * for this id" needs no database access. Change notifications reach other processes
+ * asynchronously, so a key imported elsewhere may be missing from their index for a moment. Key
+ * ids missing from the index are therefore looked up in the database in those processes, as are
+ * all key ids if loading the index failed.
+ */
+public class KeyIdIndex {
+    /** SQLite's default limit of bound variables in one statement */
+    private static final int MAX_SQL_VARIABLES = 999;
+
+    private static KeyIdIndex sInstance;
+
+    /** set when KeychainProvider runs in this process, all writes then invalidate synchronously */
+    private static volatile boolean sProviderProcess = false;
+
+    private final Context mContext;
+
+    private LongLongHashMap mPublicIndex;
+    private LongLongHashMap mSecretIndex;
+
+    /** incremented on every invalidation, loads started before are not used */
+    private int mGeneration = 0;
+
+    private ContentObserver mObserver;
+
+    /**
+     * Returns the index of this process and registers it for change notifications of the key
+     * rings on first use
+     *
+     * @param context
+     * @return
+     */
+    public static synchronized KeyIdIndex getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new KeyIdIndex(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private KeyIdIndex(Context context) {
+        mContext = context;
+
+        // onChange is called on a binder thread, as no handler is given
+        mObserver = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                invalidate();
+            }
+        };
+        mContext.getContentResolver().registerContentObserver(KeyRings.CONTENT_URI, true,
+                mObserver);
+    }
+
+    /**
+     * Get master key id of the key ring containing a key with this key id
+     *
+     * @param type
+     *            see {@link KeyTypes}
+     * @param keyId
+     * @return master key id or {@link Id.key#none} if there is no such key
+     */
+    public long getMasterKeyId(int type, long keyId) {
+        return getMasterKeyIds(type, new long[] { keyId }).get(keyId, Id.key.none);
+    }
+
+    /**
+     * Called by {@link KeychainProvider#onCreate()}, whose change notifications invalidate the
+     * index of its process before the writing call returns
+     */
+    static void setProviderProcess() {
+        sProviderProcess = true;
+    }
+
+    /**
+     * Get master key ids of the key rings containing keys with these key ids. Outside the
+     * provider's process or if the index is not current, key ids missing from the index are looked
+     * up with one query per {@link #MAX_SQL_VARIABLES} ids.
+     *
+     * @param type
+     *            see {@link KeyTypes}
+     * @param keyIds
+     * @return master key ids by key id, key ids without key are missing
+     */
+    public LongLongHashMap getMasterKeyIds(int type, long[] keyIds) {
+        LongLongHashMap index = getIndex(type);
+
+        LongLongHashMap masterKeyIds = new LongLongHashMap(keyIds.length);
+        ArrayList<Long> missingKeyIds = new ArrayList<Long>();
+        for (long keyId : keyIds) {
+            if (index != null && index.containsKey(keyId)) {
+                masterKeyIds.put(keyId, index.get(keyId, Id.key.none));
+            } else {
+                missingKeyIds.add(keyId);
+            }
+        }
+
+        if (missingKeyIds.isEmpty() || (sProviderProcess && isCurrent(type, index))) {
+            return masterKeyIds;
+        }
+
+        LongLongHashMap found = query(type, missingKeyIds);
+        if (index != null && found.size() > 0) {
+            // written by another process, whose change notification has not arrived yet
+            invalidate();
+        }
+        for (long keyId : missingKeyIds) {
+            if (found.containsKey(keyId)) {
+                masterKeyIds.put(keyId, found.get(keyId, Id.key.none));
+            }
+        }
+        return masterKeyIds;
+    }
+
+    /**
+     * Drops the loaded indices, called whenever the key ring tables change
+     */
+    public synchronized void invalidate() {
+        mPublicIndex = null;
+        mSecretIndex = null;
+        ++mGeneration;
+    }
+
+    /**
+     * Drops the loaded indices of this process, if the index has already been created
+     */
+    static void invalidateIfCreated() {
+        KeyIdIndex index;
+        synchronized (KeyIdIndex.class) {
+            index = sInstance;
+        }
+        if (index != null) {
+            index.invalidate();
+        }
+    }
+
+    /**
+     * @param type
+     * @param index
+     * @return true if index is the stored index of this type, which has not been invalidated since
+     *         it was loaded
+     */
+    private synchronized boolean isCurrent(int type, LongLongHashMap index) {
+        return index != null
+                && index == ((type == KeyTypes.SECRET) ? mSecretIndex : mPublicIndex);
+    }
+
+    /**
+     * @param type
+     * @return index of all keys of this type or null if loading it failed
+     */
+    private LongLongHashMap getIndex(int type) {
+        int generation;
+        synchronized (this) {
+            LongLongHashMap index = (type == KeyTypes.SECRET) ? mSecretIndex : mPublicIndex;
+            if (index != null) {
+                return index;
+            }
+            generation = mGeneration;
+        }
+
+        // query without holding the lock, the provider invalidates the index while writing
+        LongLongHashMap index = query(type, null);
+        if (index == null) {
+            Log.e(Constants.TAG, "Loading key id index failed, looking up key ids in database");
+            return null;
+        }
+
+        synchronized (this) {
+            if (generation == mGeneration) {
+                if (type == KeyTypes.SECRET) {
+                    mSecretIndex = index;
+                } else {
+                    mPublicIndex = index;
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * @param type
+     * @param keyIds
+     *            key ids to look up or null for all keys of this type
+     * @return master key ids by key id, null if loading all keys failed
+     */
+    private LongLongHashMap query(int type, List<Long> keyIds) {
+        Uri queryUri = (type == KeyTypes.SECRET) ? Keys.buildSecretKeyIdsUri() : Keys
+                .buildPublicKeyIdsUri();
+        String[] projection = new String[] { Keys.KEY_ID, KeyRings.MASTER_KEY_ID };
+
+        if (keyIds == null) {
+            Cursor cursor = mContext.getContentResolver().query(queryUri, projection, null, null,
+                    null);
+            if (cursor == null) {
+                return null;
+            }
+            LongLongHashMap index = new LongLongHashMap(cursor.getCount());
+            read(cursor, index);
+            return index;
+        }
+
+        LongLongHashMap masterKeyIds = new LongLongHashMap(keyIds.size());
+        for (int start = 0; start < keyIds.size(); start += MAX_SQL_VARIABLES) {
+            int end = Math.min(start + MAX_SQL_VARIABLES, keyIds.size());
+
+            String[] selectionArgs = new String[end - start];
+            StringBuilder placeholders = new StringBuilder();
+            for (int i = start; i < end; ++i) {
+                if (i != start) {
+                    placeholders.append(", ");
+                }
+                placeholders.append('?');
+                selectionArgs[i - start] = Long.toString(keyIds.get(i));
+            }
+
+            Cursor cursor = mContext.getContentResolver().query(queryUri, projection,
+                    Tables.KEYS + "." + Keys.KEY_ID + " IN (" + placeholders + ")",
+                    selectionArgs, null);
+            if (cursor != null) {
+                read(cursor, masterKeyIds);
+            }
+        }
+        return masterKeyIds;
+    }
+
+    private static void read(Cursor cursor, LongLongHashMap masterKeyIds) {
+        try {
+            while (cursor.moveToNext()) {
+                masterKeyIds.put(cursor.getLong(0), cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2013 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.spongycastle.openpgp.PGPKeyRing;
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.PGPPublicKeyRing;
+import org.spongycastle.openpgp.PGPSecretKey;
+import org.spongycastle.openpgp.PGPSecretKeyRing;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyTypes;
+import org.sufficientlysecure.keychain.util.IterableIterator;
+
+import android.content.Context;
+import android.database.ContentObserver;
+
+/**
+ * Process wide LRU cache of parsed key rings. Entries are looked up by master key id or by the
+ * id of any key contained in the ring and are bounded by the size of their encoded blobs.
+ *
+ * The cache is cleared on every change of the key rings, either directly by
+ * {@link KeychainProvider} when running in the same process or by a {@link ContentObserver} on
+ * {@link KeyRings#CONTENT_URI} for the other processes of the app.
+ */
+public class KeyRingCache {
+    /** upper bound for the encoded size of all cached key rings */
+    private static final long MAX_SIZE_LIMIT = 4 * 1024 * 1024;
+
+    private static KeyRingCache sInstance;
+
+    private final long mMaxSize;
+    private long mSize = 0;
+
+    private long mHitCount = 0;
+    private long mMissCount = 0;
+    private long mEvictionCount = 0;
+
+    /** incremented on every invalidation, rings loaded before are not put */
+    private int mGeneration = 0;
+
+    private final LinkedHashMap<Long, Entry> mPublicEntries;
+    private final LinkedHashMap<Long, Entry> mSecretEntries;
+
+    /** maps key ids of all contained keys to the master key id of the cached ring */
+    private final HashMap<Long, Long> mPublicKeyIds = new HashMap<Long, Long>();
+    private final HashMap<Long, Long> mSecretKeyIds = new HashMap<Long, Long>();
+
+    private ContentObserver mObserver;
+
+    private static class Entry {
+        final PGPKeyRing keyRing;
+        final long[] keyIds;
+        final int size;
+
+        Entry(PGPKeyRing keyRing, long[] keyIds, int size) {
+            this.keyRing = keyRing;
+            this.keyIds = keyIds;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Returns the cache of this process and registers it for change notifications of the key
+     * rings on first use
+     *
+     * @param context
+     * @return
+     */
+    public static synchronized KeyRingCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new KeyRingCache(Math.min(MAX_SIZE_LIMIT,
+                    Runtime.getRuntime().maxMemory() / 32));
+        }
+        sInstance.registerObserver(context);
+        return sInstance;
+    }
+
+    private KeyRingCache(long maxSize) {
+        mMaxSize = maxSize;
+        // access ordered maps, iteration starts with the least recently used entry
+        mPublicEntries = new LinkedHashMap<Long, Entry>(16, 0.75f, true);
+        mSecretEntries = new LinkedHashMap<Long, Entry>(16, 0.75f, true);
+    }
+
+    private synchronized void registerObserver(Context context) {
+        if (mObserver != null || context == null) {
+            return;
+        }
+
+        // onChange is called on a binder thread, as no handler is given
+        mObserver = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                invalidate();
+            }
+        };
+        context.getApplicationContext().getContentResolver()
+                .registerContentObserver(KeyRings.CONTENT_URI, true, mObserver);
+    }
+
+    private LinkedHashMap<Long, Entry> getEntries(int type) {
+        return (type == KeyTypes.SECRET) ? mSecretEntries : mPublicEntries;
+    }
+
+    private HashMap<Long, Long> getKeyIds(int type) {
+        return (type == KeyTypes.SECRET) ? mSecretKeyIds : mPublicKeyIds;
+    }
+
+    /**
+     * Get cached key ring by its master key id
+     *
+     * @param type
+     *            see {@link KeyTypes}
+     * @param masterKeyId
+     * @return key ring or null if not cached
+     */
+    public synchronized PGPKeyRing getByMasterKeyId(int type, long masterKeyId) {
+        Entry entry = getEntries(type).get(masterKeyId);
+        if (entry == null) {
+            ++mMissCount;
+            return null;
+        }
+
+        ++mHitCount;
+        return entry.keyRing;
+    }
+
+    /**
+     * Get cached key ring containing a key with this key id
+     *
+     * @param type
+     *            see {@link KeyTypes}
+     * @param keyId
+     * @return key ring or null if not cached
+     */
+    public synchronized PGPKeyRing getByKeyId(int type, long keyId) {
+        Long masterKeyId = getKeyIds(type).get(keyId);
+        Entry entry = null;
+        if (masterKeyId != null) {
+            entry = getEntries(type).get(masterKeyId);
+        }
+        if (entry == null) {
+            ++mMissCount;
+            return null;
+        }
+
+        ++mHitCount;
+        return entry.keyRing;
+    }
+
+    /**
+     * @return generation to pass to {@link #put(PGPKeyRing, int, int)}, taken before querying the
+     *         key ring
+     */
+    public synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Add parsed key ring to cache, evicting least recently used rings if necessary. The ring is
+     * dropped if the cache has been invalidated since it was queried, it may be outdated.
+     *
+     * @param keyRing
+     * @param size
+     *            size of the encoded key ring in bytes
+     * @param generation
+     *            {@link #getGeneration()} before the key ring was queried
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized void put(PGPKeyRing keyRing, int size, int generation) {
+        if (keyRing == null || size > mMaxSize || generation != mGeneration) {
+            return;
+        }
+
+        int type;
+        long masterKeyId;
+        ArrayList<Long> keyIdList = new ArrayList<Long>();
+        if (keyRing instanceof PGPSecretKeyRing) {
+            type = KeyTypes.SECRET;
+            PGPSecretKeyRing secretKeyRing = (PGPSecretKeyRing) keyRing;
+            masterKeyId = secretKeyRing.getSecretKey().getKeyID();
+            for (PGPSecretKey key : new IterableIterator<PGPSecretKey>(
+                    secretKeyRing.getSecretKeys())) {
+                keyIdList.add(key.getKeyID());
+            }
+        } else if (keyRing instanceof PGPPublicKeyRing) {
+            type = KeyTypes.PUBLIC;
+            PGPPublicKeyRing publicKeyRing = (PGPPublicKeyRing) keyRing;
+            masterKeyId = publicKeyRing.getPublicKey().getKeyID();
+            for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(
+                    publicKeyRing.getPublicKeys())) {
+                keyIdList.add(key.getKeyID());
+            }
+        } else {
+            return;
+        }
+
+        long[] keyIds = new long[keyIdList.size()];
+        for (int i = 0; i < keyIds.length; ++i) {
+            keyIds[i] = keyIdList.get(i);
+        }
+
+        remove(type, masterKeyId);
+
+        getEntries(type).put(masterKeyId, new Entry(keyRing, keyIds, size));
+        HashMap<Long, Long> keyIdMap = getKeyIds(type);
+        for (long keyId : keyIds) {
+            keyIdMap.put(keyId, masterKeyId);
+        }
+        mSize += size;
+
+        trimToSize();
+    }
+
+    private void remove(int type, long masterKeyId) {
+        Entry entry = getEntries(type).remove(masterKeyId);
+        if (entry != null) {
+            removeKeyIds(type, masterKeyId, entry);
+            mSize -= entry.size;
+        }
+    }
+
+    private void removeKeyIds(int type, long masterKeyId, Entry entry) {
+        HashMap<Long, Long> keyIdMap = getKeyIds(type);
+        for (long keyId : entry.keyIds) {
+            Long mappedMasterKeyId = keyIdMap.get(keyId);
+            if (mappedMasterKeyId != null && mappedMasterKeyId == masterKeyId) {
+                keyIdMap.remove(keyId);
+            }
+        }
+    }
+
+    /**
+     * Evict least recently used rings of both types until the cache fits into its bounds
+     */
+    private void trimToSize() {
+        while (mSize > mMaxSize) {
+            if (!evictEldest(KeyTypes.PUBLIC) && !evictEldest(KeyTypes.SECRET)) {
+                break;
+            }
+        }
+    }
+
+    private boolean evictEldest(int type) {
+        Iterator<Map.Entry<Long, Entry>> it = getEntries(type).entrySet().iterator();
+        if (!it.hasNext()) {
+            return false;
+        }
+
+        Map.Entry<Long, Entry> eldest = it.next();
+        it.remove();
+        removeKeyIds(type, eldest.getKey(), eldest.getValue());
+        mSize -= eldest.getValue().size;
+        ++mEvictionCount;
+        return true;
+    }
+
+    /**
+     * Removes all cached key rings, called whenever the key ring tables change
+     */
+    public synchronized void invalidate() {
+        mPublicEntries.clear();
+        mSecretEntries.clear();
+        mPublicKeyIds.clear();
+        mSecretKeyIds.clear();
+        mSize = 0;
+        ++mGeneration;
+    }
+
+    /**
+     * Removes all cached key rings of this process, if the cache has already been created
+     */
+    static void invalidateIfCreated() {
+        KeyRingCache cache = getInstanceIfCreated();
+        if (cache != null) {
+            cache.invalidate();
+        }
+    }
+
+    /**
+     * @return the cache of this process or null if it has not been used yet
+     */
+    static synchronized KeyRingCache getInstanceIfCreated() {
+        return sInstance;
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    public synchronized long getSize() {
+        return mSize;
+    }
+
+    public synchronized int getRingCount() {
+        return mPublicEntries.size() + mSecretEntries.size();
+    }
+
+    public long getMaxSize() {
+        return mMaxSize;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "KeyRingCache[size=" + mSize + "/" + mMaxSize + ", rings="
+                + getRingCount() + ", hits=" + mHitCount
+                + ", misses=" + mMissCount + ", evictions=" + mEvictionCount + "]";
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2013 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.spongycastle.openpgp.PGPKeyRing;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyTypes;
+
+/**
+ * Storage of public and secret key rings. {@link ProviderKeyRingStore} stores them in the
+ * database of {@link KeychainProvider}, {@link FileKeyRingStore} in a single file without any
+ * Android dependency, e.g. for measurements on a desktop JVM.
+ *
+ * All methods take the type of key ring as {@link KeyTypes#PUBLIC} or {@link KeyTypes#SECRET}.
+ */
+public interface KeyRingStore {
+
+    /**
+     * @param type
+     * @param keyId
+     *            id of any key in the key ring
+     * @return key ring or null if no key ring contains such a key
+     */
+    PGPKeyRing getByKeyId(int type, long keyId);
+
+    /**
+     * @param type
+     * @param masterKeyId
+     * @return key ring or null if there is none
+     */
+    PGPKeyRing getByMasterKeyId(int type, long masterKeyId);
+
+    /**
+     * Looks up several key rings at once
+     *
+     * @param type
+     * @param ids
+     * @param byKeyId
+     *            ids are ids of any contained key, otherwise master key ids
+     * @return key rings by requested id, unknown ids are missing
+     */
+    HashMap<Long, PGPKeyRing> getAll(int type, long[] ids, boolean byKeyId);
+
+    /**
+     * Stores the key ring, replacing a stored key ring with the same master key id. The type is
+     * given by the class of the key ring.
+     *
+     * @param keyRing
+     *            PGPPublicKeyRing or PGPSecretKeyRing
+     * @return true if a key ring with this master key id was stored before
+     * @throws IOException
+     */
+    boolean save(PGPKeyRing keyRing) throws IOException;
+
+    /**
+     * Stores all key rings like {@link #save(PGPKeyRing)}, in one transaction if the store
+     * supports it
+     *
+     * @param keyRings
+     *            PGPPublicKeyRings or PGPSecretKeyRings
+     * @return number of key rings with a master key id that was stored before
+     * @throws IOException
+     */
+    int saveAll(List<PGPKeyRing> keyRings) throws IOException;
+
+    /**
+     * @param type
+     * @param masterKeyId
+     * @return true if a key ring has been deleted
+     * @throws IOException
+     */
+    boolean delete(int type, long masterKeyId) throws IOException;
+
+    /**
+     * @param type
+     * @return master key ids of all stored key rings of this type
+     */
+    ArrayList<Long> getMasterKeyIds(int type);
+
+    /**
+     * Search key rings by user id. The search is split into tokens at all characters except
+     * letters and digits, every token has to be a prefix of a word in one user id of the key
+     * ring, ignoring case, e.g. "ali exam" finds "Alice &lt;alice@example.com&gt;"
+     *
+     * @param type
+     * @param search
+     * @return master key ids of all matching key rings
+     */
+    ArrayList<Long> search(int type, String search);
+}
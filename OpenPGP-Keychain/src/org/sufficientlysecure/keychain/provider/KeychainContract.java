@@ -28,6 +28,8 @@ public class KeychainContract {
         String MASTER_KEY_ID = "master_key_id"; // not a database id
         String TYPE = "type"; // see KeyTypes
         String KEY_RING_DATA = "key_ring_data"; // PGPPublicKeyRing / PGPSecretKeyRing blob
+        String KEY_RING_DATA_HASH = "key_ring_data_hash"; // SHA-256 of KEY_RING_DATA
+        String LAST_MODIFIED = "last_modified"; // sequence number of the last change
     }
 
     interface KeysColumns {
@@ -44,13 +46,51 @@ public class KeychainContract {
         String EXPIRY = "expiry";
         String KEY_RING_ROW_ID = "key_ring_row_id"; // foreign key to key_rings._ID
         String KEY_DATA = "key_data"; // PGPPublicKey / PGPSecretKey blob
+        String KEY_DATA_OFFSET = "key_data_offset"; // offset of KEY_DATA in KEY_RING_DATA
+        String KEY_DATA_LENGTH = "key_data_length"; // length of KEY_DATA in KEY_RING_DATA
         String RANK = "rank";
+        String FINGERPRINT = "fingerprint"; // fingerprint blob of the public key
     }
 
     interface UserIdsColumns {
         String KEY_RING_ROW_ID = "key_ring_row_id"; // foreign key to key_rings._ID
         String USER_ID = "user_id"; // not a database id
         String RANK = "rank";
+        String EMAIL = "email"; // normalized email of USER_ID, see OtherHelper.normalizeEmail
+    }
+
+    interface KeyRingSummaryColumns {
+        String MASTER_KEY_ID = KeyRingsColumns.MASTER_KEY_ID;
+        String TYPE = KeyRingsColumns.TYPE;
+        String USER_ID = UserIdsColumns.USER_ID; // main user id
+        String HAS_CERTIFY = "has_certify";
+        String ENCRYPT_AVAILABLE = "encrypt_available"; // has non revoked encryption keys
+        String ENCRYPT_VALID = "encrypt_valid"; // ...which are also not expired
+        String SIGN_AVAILABLE = "sign_available"; // has non revoked signing keys
+        String SIGN_VALID = "sign_valid"; // ...which are also not expired
+        String VALID_UNTIL = "valid_until"; // next change of validity, e.g. earliest expiry
+    }
+
+    interface DeletedKeyRingsColumns {
+        String MASTER_KEY_ID = KeyRingsColumns.MASTER_KEY_ID;
+        String TYPE = KeyRingsColumns.TYPE;
+        String LAST_MODIFIED = KeyRingsColumns.LAST_MODIFIED; // sequence number of the deletion
+    }
+
+    interface KeyRingChildrenColumns {
+        String CHILD_TYPE = "child_type"; // see KeyRingChildren.TYPE_*
+    }
+
+    interface DiagnosticsColumns {
+        String MATCH = "match"; // uri match code of KeychainProvider
+        String MATCH_NAME = "match_name"; // name of the match code, e.g. public_key_ring_by_key_id
+        String OPERATION = "operation"; // query, insert, update or delete
+        String COUNT = "count";
+        String TOTAL_TIME = "total_time"; // in microseconds
+        String MAX_TIME = "max_time"; // in microseconds
+        String ROWS = "rows"; // returned by queries, changed by other operations
+        String BLOB_BYTES = "blob_bytes"; // read in the provider's process or sent to others
+        String HISTOGRAM = "histogram"; // comma separated counts, see Diagnostics
     }
 
     interface CryptoConsumersColumns {
@@ -78,12 +118,72 @@ public class KeychainContract {
     public static final String PATH_BY_KEY_ID = "key_id";
     public static final String PATH_BY_EMAILS = "emails";
     public static final String PATH_BY_LIKE_EMAIL = "like_email";
+    public static final String PATH_BY_SEARCH = "search";
+    public static final String PATH_SUMMARY = "summary";
+    public static final String PATH_KEY_IDS = "key_ids";
+    public static final String PATH_DELETED = "deleted";
 
     public static final String PATH_USER_IDS = "user_ids";
     public static final String PATH_KEYS = "keys";
+    public static final String PATH_CHILDREN = "children";
 
     public static final String BASE_CRYPTO_CONSUMERS = "crypto_consumers";
 
+    public static final String BASE_DIAGNOSTICS = "diagnostics";
+
+    /** maximum number of returned rows, supported by all queries */
+    public static final String QUERY_PARAMETER_LIMIT = "limit";
+    /** number of rows skipped, supported by all queries */
+    public static final String QUERY_PARAMETER_OFFSET = "offset";
+    /**
+     * user id of the last row of the previous page for keyset pagination, supported by keyRing,
+     * summary and userId queries
+     */
+    public static final String QUERY_PARAMETER_AFTER_USER_ID = "after_user_id";
+    /** _ID of the last row of the previous page for keyset pagination */
+    public static final String QUERY_PARAMETER_AFTER_ID = "after_id";
+
+    /**
+     * Returns the page of rows starting at offset. Every page query skips all rows before it, use
+     * {@link #buildKeysetPageUri(Uri, int, String, long)} for large result sets.
+     * 
+     * @param uri
+     * @param limit
+     *            maximum number of rows
+     * @param offset
+     * @return
+     */
+    public static Uri buildPageUri(Uri uri, int limit, int offset) {
+        return uri.buildUpon().appendQueryParameter(QUERY_PARAMETER_LIMIT, Integer.toString(limit))
+                .appendQueryParameter(QUERY_PARAMETER_OFFSET, Integer.toString(offset)).build();
+    }
+
+    /**
+     * Returns the page of rows following the given last row of the previous page, in the order of
+     * user id and _ID, which replaces the requested sort order. The page is found by the user id
+     * index, independent of its position in the result.
+     * 
+     * @param uri
+     *            keyRing, summary or userId uri
+     * @param limit
+     *            maximum number of rows
+     * @param afterUserId
+     *            user id of the last row of the previous page, null for the first page or if
+     *            that row has no user id
+     * @param afterId
+     *            _ID of the last row of the previous page, -1 for the first page
+     * @return
+     */
+    public static Uri buildKeysetPageUri(Uri uri, int limit, String afterUserId, long afterId) {
+        Uri.Builder builder = uri.buildUpon().appendQueryParameter(QUERY_PARAMETER_LIMIT,
+                Integer.toString(limit));
+        if (afterUserId != null) {
+            builder.appendQueryParameter(QUERY_PARAMETER_AFTER_USER_ID, afterUserId);
+        }
+        builder.appendQueryParameter(QUERY_PARAMETER_AFTER_ID, Long.toString(afterId));
+        return builder.build();
+    }
+
     public static class KeyRings implements KeyRingsColumns, BaseColumns {
         public static final Uri CONTENT_URI = BASE_CONTENT_URI_INTERNAL.buildUpon()
                 .appendPath(BASE_KEY_RINGS).build();
@@ -122,6 +222,11 @@ public class KeychainContract {
                     .appendPath(emails).build();
         }
 
+        public static Uri buildPublicKeyRingsBySearchUri(String search) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_PUBLIC).appendPath(PATH_BY_SEARCH)
+                    .appendPath(search).build();
+        }
+
         public static Uri buildSecretKeyRingsUri() {
             return CONTENT_URI.buildUpon().appendPath(PATH_SECRET).build();
         }
@@ -149,6 +254,32 @@ public class KeychainContract {
             return CONTENT_URI.buildUpon().appendPath(PATH_SECRET).appendPath(PATH_BY_LIKE_EMAIL)
                     .appendPath(emails).build();
         }
+
+        public static Uri buildSecretKeyRingsBySearchUri(String search) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_SECRET).appendPath(PATH_BY_SEARCH)
+                    .appendPath(search).build();
+        }
+    }
+
+    /**
+     * Master key ids of deleted keyRings. Together with {@link KeyRings#LAST_MODIFIED} they give
+     * all changes since a sequence number, for synchronization with other devices. A keyRing
+     * saved again removes its entry.
+     */
+    public static class DeletedKeyRings implements DeletedKeyRingsColumns {
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI_INTERNAL.buildUpon()
+                .appendPath(BASE_KEY_RINGS).build();
+
+        /** Use if multiple items get returned */
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.thialfihar.apg.deleted_key_ring";
+
+        public static Uri buildPublicDeletedKeyRingsUri() {
+            return CONTENT_URI.buildUpon().appendPath(PATH_PUBLIC).appendPath(PATH_DELETED).build();
+        }
+
+        public static Uri buildSecretDeletedKeyRingsUri() {
+            return CONTENT_URI.buildUpon().appendPath(PATH_SECRET).appendPath(PATH_DELETED).build();
+        }
     }
 
     public static class Keys implements KeysColumns, BaseColumns {
@@ -180,6 +311,52 @@ public class KeychainContract {
             return CONTENT_URI.buildUpon().appendPath(PATH_SECRET).appendPath(keyRingRowId)
                     .appendPath(PATH_KEYS).appendPath(keyRowId).build();
         }
+
+        /**
+         * Key ids of all public keys with the master key id of their keyRing, as columns
+         * {@link #KEY_ID} and {@link KeyRings#MASTER_KEY_ID}
+         */
+        public static Uri buildPublicKeyIdsUri() {
+            return CONTENT_URI.buildUpon().appendPath(PATH_PUBLIC).appendPath(PATH_KEY_IDS).build();
+        }
+
+        /**
+         * Key ids of all secret keys with the master key id of their keyRing, as columns
+         * {@link #KEY_ID} and {@link KeyRings#MASTER_KEY_ID}
+         */
+        public static Uri buildSecretKeyIdsUri() {
+            return CONTENT_URI.buildUpon().appendPath(PATH_SECRET).appendPath(PATH_KEY_IDS).build();
+        }
+    }
+
+    /**
+     * Rows shown below a keyRing in the key list, returned by one query: the fingerprint of the
+     * master key, all keys and all user ids except the main one. Key rows have the columns of
+     * {@link Keys}, user id rows the columns of {@link UserIds}, the columns of the other type are
+     * null. Sorted by {@link #CHILD_TYPE} and rank.
+     */
+    public static class KeyRingChildren implements KeyRingChildrenColumns, BaseColumns {
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI_INTERNAL.buildUpon()
+                .appendPath(BASE_KEY_RINGS).build();
+
+        public static final int TYPE_FINGERPRINT = 0;
+        public static final int TYPE_KEY = 1;
+        public static final int TYPE_USER_ID = 2;
+        /** the _ID of a child is its _ID in keys or user_ids times TYPE_COUNT plus its type */
+        public static final int TYPE_COUNT = 3;
+
+        /** Use if multiple items get returned */
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.thialfihar.apg.key_ring_child";
+
+        public static Uri buildPublicKeyRingChildrenUri(String keyRingRowId) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_PUBLIC).appendPath(keyRingRowId)
+                    .appendPath(PATH_CHILDREN).build();
+        }
+
+        public static Uri buildSecretKeyRingChildrenUri(String keyRingRowId) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_SECRET).appendPath(keyRingRowId)
+                    .appendPath(PATH_CHILDREN).build();
+        }
     }
 
     public static class UserIds implements UserIdsColumns, BaseColumns {
@@ -213,6 +390,22 @@ public class KeychainContract {
         }
     }
 
+    public static class KeyRingSummary implements KeyRingSummaryColumns, BaseColumns {
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI_INTERNAL.buildUpon()
+                .appendPath(BASE_KEY_RINGS).build();
+
+        /** Use if multiple items get returned */
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.thialfihar.apg.key_ring_summary";
+
+        public static Uri buildPublicKeyRingSummaryUri() {
+            return CONTENT_URI.buildUpon().appendPath(PATH_PUBLIC).appendPath(PATH_SUMMARY).build();
+        }
+
+        public static Uri buildSecretKeyRingSummaryUri() {
+            return CONTENT_URI.buildUpon().appendPath(PATH_SECRET).appendPath(PATH_SUMMARY).build();
+        }
+    }
+
     public static class CryptoConsumers implements CryptoConsumersColumns, BaseColumns {
         public static final Uri CONTENT_URI = BASE_CONTENT_URI_INTERNAL.buildUpon()
                 .appendPath(BASE_CRYPTO_CONSUMERS).build();
@@ -224,6 +417,38 @@ public class KeychainContract {
         public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/vnd.thialfihar.apg.crypto_consumers";
     }
 
+    /**
+     * Read-only statistics of the provider operations since the start of its process, one row per
+     * uri match code and operation, the slowest first. Only available from the internal provider.
+     */
+    public static class Diagnostics implements DiagnosticsColumns {
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI_INTERNAL.buildUpon()
+                .appendPath(BASE_DIAGNOSTICS).build();
+
+        /** Use if multiple items get returned */
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.thialfihar.apg.diagnostics";
+
+        /**
+         * Upper bounds in milliseconds of the latency buckets counted in {@link #HISTOGRAM}, the
+         * last count is of all slower operations
+         */
+        public static final int[] HISTOGRAM_BUCKETS_MILLIS = ProviderStatistics.LATENCY_BUCKETS_MILLIS;
+
+        /**
+         * {@link #MATCH} of the rows about the key ring cache of the provider's process, their
+         * {@link #OPERATION} is one of the CACHE_ values. {@link #COUNT} is the number of hits,
+         * misses and evictions, for {@link #CACHE_SIZE} the number of cached key rings with their
+         * encoded size in {@link #BLOB_BYTES}.
+         */
+        public static final int MATCH_KEY_RING_CACHE = -1;
+        public static final String MATCH_NAME_KEY_RING_CACHE = "key_ring_cache";
+
+        public static final String CACHE_HIT = "hit";
+        public static final String CACHE_MISS = "miss";
+        public static final String CACHE_EVICTION = "eviction";
+        public static final String CACHE_SIZE = "size";
+    }
+
     public static class DataStream {
         public static final Uri CONTENT_URI = BASE_CONTENT_URI_INTERNAL.buildUpon()
                 .appendPath(BASE_DATA).build();
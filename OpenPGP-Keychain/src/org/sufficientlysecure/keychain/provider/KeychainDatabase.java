@@ -17,33 +17,65 @@
 
 package org.sufficientlysecure.keychain.provider;
 
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.spongycastle.openpgp.PGPKeyRing;
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.PGPPublicKeyRing;
+import org.spongycastle.openpgp.PGPSecretKey;
+import org.spongycastle.openpgp.PGPSecretKeyRing;
 import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.helper.OtherHelper;
+import org.sufficientlysecure.keychain.helper.PgpConversionHelper;
 import org.sufficientlysecure.keychain.provider.KeychainContract.CryptoConsumersColumns;
+import org.sufficientlysecure.keychain.provider.KeychainContract.DeletedKeyRingsColumns;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingSummaryColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingsColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeysColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserIdsColumns;
+import org.sufficientlysecure.keychain.util.IterableIterator;
 import org.sufficientlysecure.keychain.util.Log;
 
+import android.annotation.TargetApi;
+import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 import android.provider.BaseColumns;
 
 public class KeychainDatabase extends SQLiteOpenHelper {
     private static final String DATABASE_NAME = "apg.db";
-    private static final int DATABASE_VERSION = 5;
+    private static final int DATABASE_VERSION = 17;
+
+    /**
+     * Pages written to the WAL before it is checkpointed into the database on commit. Android
+     * configures only 100 pages, which checkpoints several times during an import.
+     */
+    private static final int WAL_AUTOCHECKPOINT_PAGES = 1000;
+
+    /** WAL file is truncated to this size after checkpoints of large transactions */
+    private static final int WAL_SIZE_LIMIT = 1024 * 1024;
 
     public interface Tables {
         String KEY_RINGS = "key_rings";
         String KEYS = "keys";
         String USER_IDS = "user_ids";
         String CRYPTO_CONSUMERS = "crypto_consumers";
+        String USER_IDS_FTS = "user_ids_fts";
+        String KEY_RING_BLOBS = "key_ring_blobs";
+        String KEY_BLOBS = "key_blobs";
+        String KEY_RING_SUMMARY = "key_ring_summary";
+        String KEY_RING_TOMBSTONES = "key_ring_tombstones";
     }
 
     private static final String CREATE_KEY_RINGS = "CREATE TABLE IF NOT EXISTS " + Tables.KEY_RINGS
             + " (" + BaseColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
             + KeyRingsColumns.MASTER_KEY_ID + " INT64, " + KeyRingsColumns.TYPE + " INTEGER, "
-            + KeyRingsColumns.KEY_RING_DATA + " BLOB)";
+            + KeyRingsColumns.KEY_RING_DATA_HASH + " BLOB, " + KeyRingsColumns.LAST_MODIFIED
+            + " INTEGER)";
 
     private static final String CREATE_KEYS = "CREATE TABLE IF NOT EXISTS " + Tables.KEYS + " ("
             + BaseColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " + KeysColumns.KEY_ID
@@ -52,7 +84,9 @@ public class KeychainDatabase extends SQLiteOpenHelper {
             + " INTEGER, " + KeysColumns.CAN_CERTIFY + " INTEGER, " + KeysColumns.CAN_SIGN
             + " INTEGER, " + KeysColumns.CAN_ENCRYPT + " INTEGER, " + KeysColumns.IS_REVOKED
             + " INTEGER, " + KeysColumns.CREATION + " INTEGER, " + KeysColumns.EXPIRY
-            + " INTEGER, " + KeysColumns.KEY_DATA + " BLOB," + KeysColumns.RANK + " INTEGER, "
+            + " INTEGER, " + KeysColumns.RANK + " INTEGER, " + KeysColumns.KEY_DATA_OFFSET
+            + " INTEGER, " + KeysColumns.KEY_DATA_LENGTH + " INTEGER, "
+            + KeysColumns.FINGERPRINT + " BLOB, "
             + KeysColumns.KEY_RING_ROW_ID + " INTEGER NOT NULL, FOREIGN KEY("
             + KeysColumns.KEY_RING_ROW_ID + ") REFERENCES " + Tables.KEY_RINGS + "("
             + BaseColumns._ID + ") ON DELETE CASCADE)";
@@ -60,15 +94,187 @@ public class KeychainDatabase extends SQLiteOpenHelper {
     private static final String CREATE_USER_IDS = "CREATE TABLE IF NOT EXISTS " + Tables.USER_IDS
             + " (" + BaseColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
             + UserIdsColumns.USER_ID + " TEXT, " + UserIdsColumns.RANK + " INTEGER, "
+            + UserIdsColumns.EMAIL + " TEXT, "
             + UserIdsColumns.KEY_RING_ROW_ID + " INTEGER NOT NULL, FOREIGN KEY("
             + UserIdsColumns.KEY_RING_ROW_ID + ") REFERENCES " + Tables.KEY_RINGS + "("
             + BaseColumns._ID + ") ON DELETE CASCADE)";
 
+    /**
+     * Blobs are kept out of key_rings and keys, so that list queries joining these tables do not
+     * have to read their overflow pages. _ID is the _ID of the corresponding keyring or key.
+     */
+    private static final String CREATE_KEY_RING_BLOBS = "CREATE TABLE IF NOT EXISTS "
+            + Tables.KEY_RING_BLOBS + " (" + BaseColumns._ID + " INTEGER PRIMARY KEY, "
+            + KeyRingsColumns.KEY_RING_DATA + " BLOB, FOREIGN KEY(" + BaseColumns._ID
+            + ") REFERENCES " + Tables.KEY_RINGS + "(" + BaseColumns._ID + ") ON DELETE CASCADE)";
+
+    private static final String CREATE_KEY_BLOBS = "CREATE TABLE IF NOT EXISTS " + Tables.KEY_BLOBS
+            + " (" + BaseColumns._ID + " INTEGER PRIMARY KEY, " + KeysColumns.KEY_DATA
+            + " BLOB, FOREIGN KEY(" + BaseColumns._ID + ") REFERENCES " + Tables.KEYS + "("
+            + BaseColumns._ID + ") ON DELETE CASCADE)";
+
     private static final String CREATE_CRYPTO_CONSUMERS = "CREATE TABLE IF NOT EXISTS "
             + Tables.CRYPTO_CONSUMERS + " (" + BaseColumns._ID
             + " INTEGER PRIMARY KEY AUTOINCREMENT, " + CryptoConsumersColumns.PACKAGE_NAME
             + " TEXT UNIQUE)";
 
+    private static final String CREATE_INDEX_KEYS_KEY_ID = "CREATE INDEX IF NOT EXISTS "
+            + "keys_key_id_index ON " + Tables.KEYS + " (" + KeysColumns.KEY_ID + ")";
+
+    private static final String CREATE_INDEX_KEYS_KEY_RING_ROW_ID = "CREATE INDEX IF NOT EXISTS "
+            + "keys_key_ring_row_id_index ON " + Tables.KEYS + " (" + KeysColumns.KEY_RING_ROW_ID
+            + ")";
+
+    private static final String CREATE_INDEX_KEY_RINGS_TYPE_MASTER_KEY_ID = "CREATE INDEX IF NOT EXISTS "
+            + "key_rings_type_master_key_id_index ON " + Tables.KEY_RINGS + " ("
+            + KeyRingsColumns.TYPE + ", " + KeyRingsColumns.MASTER_KEY_ID + ")";
+
+    private static final String CREATE_INDEX_USER_IDS_KEY_RING_ROW_ID_RANK = "CREATE INDEX IF NOT EXISTS "
+            + "user_ids_key_ring_row_id_rank_index ON " + Tables.USER_IDS + " ("
+            + UserIdsColumns.KEY_RING_ROW_ID + ", " + UserIdsColumns.RANK + ")";
+
+    private static final String CREATE_INDEX_USER_IDS_EMAIL = "CREATE INDEX IF NOT EXISTS "
+            + "user_ids_email_index ON " + Tables.USER_IDS + " (" + UserIdsColumns.EMAIL + ")";
+
+    /** keyset pages of keyRing and userId queries are read in user id order from this index */
+    private static final String CREATE_INDEX_USER_IDS_USER_ID = "CREATE INDEX IF NOT EXISTS "
+            + "user_ids_user_id_index ON " + Tables.USER_IDS + " (" + UserIdsColumns.USER_ID + ")";
+
+    /**
+     * Full text index over user ids, docid is the _ID of the row in user_ids. FTS3 instead of FTS4,
+     * because FTS4 is not available before Android 3.0.
+     */
+    private static final String CREATE_USER_IDS_FTS = "CREATE VIRTUAL TABLE " + Tables.USER_IDS_FTS
+            + " USING fts3(" + UserIdsColumns.USER_ID + ")";
+
+    private static final String CREATE_TRIGGER_USER_IDS_FTS_INSERT = "CREATE TRIGGER IF NOT EXISTS "
+            + "user_ids_fts_insert AFTER INSERT ON " + Tables.USER_IDS + " BEGIN INSERT INTO "
+            + Tables.USER_IDS_FTS + " (docid, " + UserIdsColumns.USER_ID + ") VALUES (new."
+            + BaseColumns._ID + ", new." + UserIdsColumns.USER_ID + "); END";
+
+    // also fired for user ids deleted by ON DELETE CASCADE of their keyring
+    private static final String CREATE_TRIGGER_USER_IDS_FTS_DELETE = "CREATE TRIGGER IF NOT EXISTS "
+            + "user_ids_fts_delete AFTER DELETE ON " + Tables.USER_IDS + " BEGIN DELETE FROM "
+            + Tables.USER_IDS_FTS + " WHERE docid = old." + BaseColumns._ID + "; END";
+
+    private static final String CREATE_TRIGGER_USER_IDS_FTS_UPDATE = "CREATE TRIGGER IF NOT EXISTS "
+            + "user_ids_fts_update AFTER UPDATE OF " + UserIdsColumns.USER_ID + " ON "
+            + Tables.USER_IDS + " BEGIN UPDATE " + Tables.USER_IDS_FTS + " SET "
+            + UserIdsColumns.USER_ID + " = new." + UserIdsColumns.USER_ID + " WHERE docid = old."
+            + BaseColumns._ID + "; END";
+
+    /**
+     * One row per keyring with everything the key selection lists show, so they don't need to
+     * count keys for every row. _ID is the _ID of the keyring.
+     */
+    private static final String CREATE_KEY_RING_SUMMARY = "CREATE TABLE IF NOT EXISTS "
+            + Tables.KEY_RING_SUMMARY + " (" + BaseColumns._ID + " INTEGER PRIMARY KEY, "
+            + KeyRingSummaryColumns.MASTER_KEY_ID + " INT64, " + KeyRingSummaryColumns.TYPE
+            + " INTEGER, " + KeyRingSummaryColumns.USER_ID + " TEXT, "
+            + KeyRingSummaryColumns.HAS_CERTIFY + " INTEGER, "
+            + KeyRingSummaryColumns.ENCRYPT_AVAILABLE + " INTEGER, "
+            + KeyRingSummaryColumns.ENCRYPT_VALID + " INTEGER, "
+            + KeyRingSummaryColumns.SIGN_AVAILABLE + " INTEGER, "
+            + KeyRingSummaryColumns.SIGN_VALID + " INTEGER, " + KeyRingSummaryColumns.VALID_UNTIL
+            + " INTEGER)";
+
+    private static final String CREATE_INDEX_KEY_RING_SUMMARY_TYPE_USER_ID = "CREATE INDEX IF NOT EXISTS "
+            + "key_ring_summary_type_user_id_index ON " + Tables.KEY_RING_SUMMARY + " ("
+            + KeyRingSummaryColumns.TYPE + ", " + KeyRingSummaryColumns.USER_ID + ")";
+
+    private static final String CREATE_INDEX_KEY_RING_SUMMARY_VALID_UNTIL = "CREATE INDEX IF NOT EXISTS "
+            + "key_ring_summary_valid_until_index ON " + Tables.KEY_RING_SUMMARY + " ("
+            + KeyRingSummaryColumns.VALID_UNTIL + ")";
+
+    /** current time in seconds, as stored in keys */
+    private static final String SQL_NOW = "CAST(strftime('%s', 'now') AS INTEGER)";
+
+    private static final String CREATE_TRIGGER_KEY_RING_SUMMARY_KEY_RING_INSERT = "CREATE TRIGGER IF NOT EXISTS "
+            + "key_ring_summary_key_ring_insert AFTER INSERT ON " + Tables.KEY_RINGS + " BEGIN "
+            + buildRefreshKeyRingSummary(Tables.KEY_RINGS + "." + BaseColumns._ID + " = new."
+                    + BaseColumns._ID, SQL_NOW) + "; END";
+
+    private static final String CREATE_TRIGGER_KEY_RING_SUMMARY_KEY_RING_DELETE = "CREATE TRIGGER IF NOT EXISTS "
+            + "key_ring_summary_key_ring_delete AFTER DELETE ON " + Tables.KEY_RINGS
+            + " BEGIN DELETE FROM " + Tables.KEY_RING_SUMMARY + " WHERE " + BaseColumns._ID
+            + " = old." + BaseColumns._ID + "; END";
+
+    private static final String CREATE_TRIGGER_KEY_RING_SUMMARY_KEYS_INSERT = "CREATE TRIGGER IF NOT EXISTS "
+            + "key_ring_summary_keys_insert AFTER INSERT ON " + Tables.KEYS + " BEGIN "
+            + buildRefreshKeyRingSummary(Tables.KEY_RINGS + "." + BaseColumns._ID + " = new."
+                    + KeysColumns.KEY_RING_ROW_ID, SQL_NOW) + "; END";
+
+    private static final String CREATE_TRIGGER_KEY_RING_SUMMARY_KEYS_UPDATE = "CREATE TRIGGER IF NOT EXISTS "
+            + "key_ring_summary_keys_update AFTER UPDATE ON " + Tables.KEYS + " BEGIN "
+            + buildRefreshKeyRingSummary(Tables.KEY_RINGS + "." + BaseColumns._ID + " = new."
+                    + KeysColumns.KEY_RING_ROW_ID, SQL_NOW) + "; END";
+
+    private static final String CREATE_TRIGGER_KEY_RING_SUMMARY_USER_IDS_INSERT = "CREATE TRIGGER IF NOT EXISTS "
+            + "key_ring_summary_user_ids_insert AFTER INSERT ON " + Tables.USER_IDS + " WHEN new."
+            + UserIdsColumns.RANK + " = 0 BEGIN "
+            + buildRefreshKeyRingSummary(Tables.KEY_RINGS + "." + BaseColumns._ID + " = new."
+                    + UserIdsColumns.KEY_RING_ROW_ID, SQL_NOW) + "; END";
+
+    private static final String CREATE_TRIGGER_KEY_RING_SUMMARY_USER_IDS_UPDATE = "CREATE TRIGGER IF NOT EXISTS "
+            + "key_ring_summary_user_ids_update AFTER UPDATE ON " + Tables.USER_IDS + " BEGIN "
+            + buildRefreshKeyRingSummary(Tables.KEY_RINGS + "." + BaseColumns._ID + " = new."
+                    + UserIdsColumns.KEY_RING_ROW_ID, SQL_NOW) + "; END";
+
+    /**
+     * Master key ids of deleted keyRings with the sequence number of their deletion, see
+     * {@link KeychainContract.DeletedKeyRings}
+     */
+    private static final String CREATE_KEY_RING_TOMBSTONES = "CREATE TABLE IF NOT EXISTS "
+            + Tables.KEY_RING_TOMBSTONES + " (" + DeletedKeyRingsColumns.MASTER_KEY_ID
+            + " INT64, " + DeletedKeyRingsColumns.TYPE + " INTEGER, "
+            + DeletedKeyRingsColumns.LAST_MODIFIED + " INTEGER, PRIMARY KEY("
+            + DeletedKeyRingsColumns.TYPE + ", " + DeletedKeyRingsColumns.MASTER_KEY_ID + "))";
+
+    private static final String CREATE_INDEX_KEY_RINGS_LAST_MODIFIED = "CREATE INDEX IF NOT EXISTS "
+            + "key_rings_last_modified_index ON " + Tables.KEY_RINGS + " ("
+            + KeyRingsColumns.LAST_MODIFIED + ")";
+
+    private static final String CREATE_INDEX_KEY_RING_TOMBSTONES_LAST_MODIFIED = "CREATE INDEX IF NOT EXISTS "
+            + "key_ring_tombstones_last_modified_index ON " + Tables.KEY_RING_TOMBSTONES + " ("
+            + DeletedKeyRingsColumns.LAST_MODIFIED + ")";
+
+    /**
+     * Next sequence number, one above the last change of a keyRing or deletion. Both maxima are
+     * read from the last_modified indices.
+     */
+    private static final String SQL_NEXT_SEQUENCE = "(SELECT COALESCE(MAX(seq), 0) + 1 FROM "
+            + "(SELECT MAX(" + KeyRingsColumns.LAST_MODIFIED + ") AS seq FROM " + Tables.KEY_RINGS
+            + " UNION ALL SELECT MAX(" + DeletedKeyRingsColumns.LAST_MODIFIED + ") AS seq FROM "
+            + Tables.KEY_RING_TOMBSTONES + "))";
+
+    // saving a keyRing deletes its old version and inserts the new one, in one transaction
+    private static final String CREATE_TRIGGER_SEQUENCE_KEY_RING_INSERT = "CREATE TRIGGER IF NOT EXISTS "
+            + "sequence_key_ring_insert AFTER INSERT ON " + Tables.KEY_RINGS + " BEGIN UPDATE "
+            + Tables.KEY_RINGS + " SET " + KeyRingsColumns.LAST_MODIFIED + " = "
+            + SQL_NEXT_SEQUENCE + " WHERE " + BaseColumns._ID + " = new." + BaseColumns._ID
+            + "; DELETE FROM " + Tables.KEY_RING_TOMBSTONES + " WHERE "
+            + DeletedKeyRingsColumns.TYPE + " = new." + KeyRingsColumns.TYPE + " AND "
+            + DeletedKeyRingsColumns.MASTER_KEY_ID + " = new." + KeyRingsColumns.MASTER_KEY_ID
+            + "; END";
+
+    private static final String CREATE_TRIGGER_SEQUENCE_KEY_RING_DELETE = "CREATE TRIGGER IF NOT EXISTS "
+            + "sequence_key_ring_delete AFTER DELETE ON " + Tables.KEY_RINGS
+            + " BEGIN INSERT OR REPLACE INTO " + Tables.KEY_RING_TOMBSTONES + " ("
+            + DeletedKeyRingsColumns.MASTER_KEY_ID + ", " + DeletedKeyRingsColumns.TYPE + ", "
+            + DeletedKeyRingsColumns.LAST_MODIFIED + ") VALUES (old."
+            + KeyRingsColumns.MASTER_KEY_ID + ", old." + KeyRingsColumns.TYPE + ", "
+            + SQL_NEXT_SEQUENCE + "); END";
+
+    /**
+     * Blobs are written with INSERT OR REPLACE, which deletes and inserts the row and never fires
+     * UPDATE triggers
+     */
+    private static final String CREATE_TRIGGER_SEQUENCE_KEY_RING_BLOB_INSERT = "CREATE TRIGGER IF NOT EXISTS "
+            + "sequence_key_ring_blob_insert AFTER INSERT ON " + Tables.KEY_RING_BLOBS
+            + " BEGIN UPDATE " + Tables.KEY_RINGS + " SET "
+            + KeyRingsColumns.LAST_MODIFIED + " = " + SQL_NEXT_SEQUENCE + " WHERE "
+            + BaseColumns._ID + " = new." + BaseColumns._ID + "; END";
+
     KeychainDatabase(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
     }
@@ -80,7 +286,227 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         db.execSQL(CREATE_KEY_RINGS);
         db.execSQL(CREATE_KEYS);
         db.execSQL(CREATE_USER_IDS);
+        db.execSQL(CREATE_KEY_RING_BLOBS);
+        db.execSQL(CREATE_KEY_BLOBS);
         db.execSQL(CREATE_CRYPTO_CONSUMERS);
+        createIndices(db);
+        db.execSQL(CREATE_INDEX_USER_IDS_EMAIL);
+        db.execSQL(CREATE_INDEX_USER_IDS_USER_ID);
+        createUserIdsFts(db);
+        createKeyRingSummary(db);
+        createSequence(db);
+    }
+
+    /**
+     * Secondary indices used by key id, master key id and keyring row id lookups. Without them
+     * every lookup is a full table scan.
+     * 
+     * @param db
+     */
+    private static void createIndices(SQLiteDatabase db) {
+        db.execSQL(CREATE_INDEX_KEYS_KEY_ID);
+        db.execSQL(CREATE_INDEX_KEYS_KEY_RING_ROW_ID);
+        db.execSQL(CREATE_INDEX_KEY_RINGS_TYPE_MASTER_KEY_ID);
+        db.execSQL(CREATE_INDEX_USER_IDS_KEY_RING_ROW_ID_RANK);
+    }
+
+    /**
+     * Full text index for user id search, kept in sync with user_ids by triggers
+     * 
+     * @param db
+     */
+    private static void createUserIdsFts(SQLiteDatabase db) {
+        db.execSQL(CREATE_USER_IDS_FTS);
+        db.execSQL(CREATE_TRIGGER_USER_IDS_FTS_INSERT);
+        db.execSQL(CREATE_TRIGGER_USER_IDS_FTS_DELETE);
+        db.execSQL(CREATE_TRIGGER_USER_IDS_FTS_UPDATE);
+    }
+
+    /**
+     * Summary table of keyrings, kept up to date on changes by triggers
+     * 
+     * @param db
+     */
+    private static void createKeyRingSummary(SQLiteDatabase db) {
+        db.execSQL(CREATE_KEY_RING_SUMMARY);
+        db.execSQL(CREATE_INDEX_KEY_RING_SUMMARY_TYPE_USER_ID);
+        db.execSQL(CREATE_INDEX_KEY_RING_SUMMARY_VALID_UNTIL);
+        db.execSQL(CREATE_TRIGGER_KEY_RING_SUMMARY_KEY_RING_INSERT);
+        db.execSQL(CREATE_TRIGGER_KEY_RING_SUMMARY_KEY_RING_DELETE);
+        db.execSQL(CREATE_TRIGGER_KEY_RING_SUMMARY_KEYS_INSERT);
+        db.execSQL(CREATE_TRIGGER_KEY_RING_SUMMARY_KEYS_UPDATE);
+        db.execSQL(CREATE_TRIGGER_KEY_RING_SUMMARY_USER_IDS_INSERT);
+        db.execSQL(CREATE_TRIGGER_KEY_RING_SUMMARY_USER_IDS_UPDATE);
+    }
+
+    /**
+     * Sequence numbers of changes and tombstones of deleted keyrings, maintained by triggers
+     * 
+     * @param db
+     */
+    private static void createSequence(SQLiteDatabase db) {
+        db.execSQL(CREATE_KEY_RING_TOMBSTONES);
+        db.execSQL(CREATE_INDEX_KEY_RINGS_LAST_MODIFIED);
+        db.execSQL(CREATE_INDEX_KEY_RING_TOMBSTONES_LAST_MODIFIED);
+        db.execSQL(CREATE_TRIGGER_SEQUENCE_KEY_RING_INSERT);
+        db.execSQL(CREATE_TRIGGER_SEQUENCE_KEY_RING_DELETE);
+        db.execSQL(CREATE_TRIGGER_SEQUENCE_KEY_RING_BLOB_INSERT);
+    }
+
+    /**
+     * Builds statement (re)computing the summary of keyrings
+     * 
+     * @param where
+     *            selects rows of key_rings
+     * @param now
+     *            current time in seconds as SQL expression
+     * @return
+     */
+    static String buildRefreshKeyRingSummary(String where, String now) {
+        String keysOfKeyRing = " FROM " + Tables.KEYS + " WHERE " + Tables.KEYS + "."
+                + KeysColumns.KEY_RING_ROW_ID + " = " + Tables.KEY_RINGS + "." + BaseColumns._ID;
+        String available = " AND " + Tables.KEYS + "." + KeysColumns.IS_REVOKED + " = 0";
+        String valid = available + " AND " + Tables.KEYS + "." + KeysColumns.CREATION + " <= "
+                + now + " AND (" + Tables.KEYS + "." + KeysColumns.EXPIRY + " IS NULL OR "
+                + Tables.KEYS + "." + KeysColumns.EXPIRY + " >= " + now + ")";
+        String canEncrypt = " AND " + Tables.KEYS + "." + KeysColumns.CAN_ENCRYPT + " = 1";
+        String canSign = " AND " + Tables.KEYS + "." + KeysColumns.CAN_SIGN + " = 1";
+
+        return "INSERT OR REPLACE INTO " + Tables.KEY_RING_SUMMARY + " (" + BaseColumns._ID
+                + ", " + KeyRingSummaryColumns.MASTER_KEY_ID + ", " + KeyRingSummaryColumns.TYPE
+                + ", " + KeyRingSummaryColumns.USER_ID + ", " + KeyRingSummaryColumns.HAS_CERTIFY
+                + ", " + KeyRingSummaryColumns.ENCRYPT_AVAILABLE + ", "
+                + KeyRingSummaryColumns.ENCRYPT_VALID + ", " + KeyRingSummaryColumns.SIGN_AVAILABLE
+                + ", " + KeyRingSummaryColumns.SIGN_VALID + ", " + KeyRingSummaryColumns.VALID_UNTIL
+                + ") SELECT " + Tables.KEY_RINGS + "." + BaseColumns._ID + ", " + Tables.KEY_RINGS
+                + "." + KeyRingsColumns.MASTER_KEY_ID + ", " + Tables.KEY_RINGS + "."
+                + KeyRingsColumns.TYPE + ", "
+                // main user id
+                + "(SELECT " + Tables.USER_IDS + "." + UserIdsColumns.USER_ID + " FROM "
+                + Tables.USER_IDS + " WHERE " + Tables.USER_IDS + "."
+                + UserIdsColumns.KEY_RING_ROW_ID + " = " + Tables.KEY_RINGS + "."
+                + BaseColumns._ID + " AND " + Tables.USER_IDS + "." + UserIdsColumns.RANK
+                + " = 0), "
+                // capabilities
+                + "EXISTS (SELECT 1" + keysOfKeyRing + " AND " + Tables.KEYS + "."
+                + KeysColumns.CAN_CERTIFY + " = 1), "
+                + "EXISTS (SELECT 1" + keysOfKeyRing + available + canEncrypt + "), "
+                + "EXISTS (SELECT 1" + keysOfKeyRing + valid + canEncrypt + "), "
+                + "EXISTS (SELECT 1" + keysOfKeyRing + available + canSign + "), "
+                + "EXISTS (SELECT 1" + keysOfKeyRing + valid + canSign + "), "
+                // earliest time a usable key expires or becomes valid
+                + "(SELECT MIN(CASE WHEN " + Tables.KEYS + "." + KeysColumns.CREATION + " > " + now
+                + " THEN " + Tables.KEYS + "." + KeysColumns.CREATION + " ELSE " + Tables.KEYS
+                + "." + KeysColumns.EXPIRY + " END)" + keysOfKeyRing + available + " AND ("
+                + Tables.KEYS + "." + KeysColumns.CAN_ENCRYPT + " = 1 OR " + Tables.KEYS + "."
+                + KeysColumns.CAN_SIGN + " = 1) AND (" + Tables.KEYS + "." + KeysColumns.CREATION
+                + " > " + now + " OR " + Tables.KEYS + "." + KeysColumns.EXPIRY + " >= " + now
+                + ")) FROM " + Tables.KEY_RINGS + " WHERE " + where;
+    }
+
+    /**
+     * Replace separately stored key blobs of all existing keys by slices of their keyRing blobs
+     * 
+     * @param db
+     */
+    @SuppressWarnings("unchecked")
+    private static void fillKeyDataSlices(SQLiteDatabase db) {
+        Cursor cursor = db.query(Tables.KEY_RING_BLOBS, new String[] { BaseColumns._ID,
+                KeyRingsColumns.KEY_RING_DATA }, null, null, null, null, null);
+        if (cursor == null) {
+            return;
+        }
+
+        try {
+            int rowIdCol = cursor.getColumnIndex(BaseColumns._ID);
+            int dataCol = cursor.getColumnIndex(KeyRingsColumns.KEY_RING_DATA);
+            while (cursor.moveToNext()) {
+                byte[] data = cursor.getBlob(dataCol);
+                if (data == null) {
+                    continue;
+                }
+
+                PGPKeyRing keyRing = PgpConversionHelper.BytesToPGPKeyRing(data);
+                ArrayList<Long> keyIds = new ArrayList<Long>();
+                ArrayList<byte[]> keysEncoded = new ArrayList<byte[]>();
+                try {
+                    if (keyRing instanceof PGPSecretKeyRing) {
+                        for (PGPSecretKey key : new IterableIterator<PGPSecretKey>(
+                                ((PGPSecretKeyRing) keyRing).getSecretKeys())) {
+                            keyIds.add(key.getKeyID());
+                            keysEncoded.add(key.getEncoded());
+                        }
+                    } else if (keyRing instanceof PGPPublicKeyRing) {
+                        for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(
+                                ((PGPPublicKeyRing) keyRing).getPublicKeys())) {
+                            keyIds.add(key.getKeyID());
+                            keysEncoded.add(key.getEncoded());
+                        }
+                    }
+                } catch (IOException e) {
+                    Log.e(Constants.TAG, "Encoding keys failed, keeping key blobs", e);
+                    continue;
+                }
+
+                int[] offsets = ProviderHelper.getKeyDataOffsets(keysEncoded, data.length);
+                if (offsets == null) {
+                    continue;
+                }
+
+                String keyRingRowId = Long.toString(cursor.getLong(rowIdCol));
+                for (int i = 0; i < offsets.length; ++i) {
+                    ContentValues values = new ContentValues();
+                    values.put(KeysColumns.KEY_DATA_OFFSET, offsets[i]);
+                    values.put(KeysColumns.KEY_DATA_LENGTH, keysEncoded.get(i).length);
+                    db.update(Tables.KEYS, values, KeysColumns.KEY_RING_ROW_ID + " = ? AND "
+                            + KeysColumns.KEY_ID + " = ?",
+                            new String[] { keyRingRowId, Long.toString(keyIds.get(i)) });
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        db.execSQL("DELETE FROM " + Tables.KEY_BLOBS + " WHERE " + BaseColumns._ID
+                + " IN (SELECT " + BaseColumns._ID + " FROM " + Tables.KEYS + " WHERE "
+                + KeysColumns.KEY_DATA_LENGTH + " IS NOT NULL);");
+    }
+
+    /**
+     * Fill email column of existing user ids, only rows whose email differs are written
+     * 
+     * @param db
+     * @param all
+     *            recompute the email of all user ids instead of only those without email, also
+     *            clearing emails that are no longer found
+     */
+    private static void fillEmails(SQLiteDatabase db, boolean all) {
+        Cursor cursor = db.query(Tables.USER_IDS, new String[] { BaseColumns._ID,
+                UserIdsColumns.USER_ID, UserIdsColumns.EMAIL }, all ? null
+                : UserIdsColumns.EMAIL + " IS NULL", null, null, null, null);
+        if (cursor == null) {
+            return;
+        }
+
+        try {
+            int rowIdCol = cursor.getColumnIndex(BaseColumns._ID);
+            int userIdCol = cursor.getColumnIndex(UserIdsColumns.USER_ID);
+            int emailCol = cursor.getColumnIndex(UserIdsColumns.EMAIL);
+            while (cursor.moveToNext()) {
+                String email = OtherHelper.getNormalizedEmail(cursor.getString(userIdCol));
+                String oldEmail = cursor.getString(emailCol);
+                if ((email == null) ? (oldEmail == null) : email.equals(oldEmail)) {
+                    continue;
+                }
+
+                ContentValues values = new ContentValues();
+                values.put(UserIdsColumns.EMAIL, email);
+                db.update(Tables.USER_IDS, values, BaseColumns._ID + " = ?",
+                        new String[] { Long.toString(cursor.getLong(rowIdCol)) });
+            }
+        } finally {
+            cursor.close();
+        }
     }
 
     @Override
@@ -89,6 +515,128 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         if (!db.isReadOnly()) {
             // Enable foreign key constraints
             db.execSQL("PRAGMA foreign_keys=ON;");
+
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                enableWriteAheadLogging(db);
+            }
+        }
+    }
+
+    /**
+     * The provider is used concurrently by the app's processes. With write-ahead logging readers
+     * are not blocked by a writer, e.g. API clients decrypting while keys are imported. Before
+     * Honeycomb the default rollback journal is kept.
+     * 
+     * @param db
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void enableWriteAheadLogging(SQLiteDatabase db) {
+        if (!db.enableWriteAheadLogging()) {
+            Log.w(Constants.TAG, "Write-ahead logging not supported, using rollback journal");
+            return;
+        }
+
+        execPragma(db, "wal_autocheckpoint=" + WAL_AUTOCHECKPOINT_PAGES);
+        execPragma(db, "journal_size_limit=" + WAL_SIZE_LIMIT);
+    }
+
+    /**
+     * These PRAGMAs return a row, which execSQL does not accept on all versions. The query is only
+     * executed when the cursor is moved.
+     * 
+     * @param db
+     * @param pragma
+     */
+    private static void execPragma(SQLiteDatabase db, String pragma) {
+        Cursor cursor = db.rawQuery("PRAGMA " + pragma, null);
+        try {
+            cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Fill fingerprint column of all existing keys by parsing their key rings once
+     * 
+     * @param db
+     */
+    @SuppressWarnings("unchecked")
+    private static void fillFingerprints(SQLiteDatabase db) {
+        Cursor cursor = db.query(Tables.KEY_RINGS, new String[] { BaseColumns._ID,
+                KeyRingsColumns.KEY_RING_DATA }, null, null, null, null, null);
+        if (cursor == null) {
+            return;
+        }
+
+        try {
+            int rowIdCol = cursor.getColumnIndex(BaseColumns._ID);
+            int dataCol = cursor.getColumnIndex(KeyRingsColumns.KEY_RING_DATA);
+            while (cursor.moveToNext()) {
+                byte[] data = cursor.getBlob(dataCol);
+                if (data == null) {
+                    continue;
+                }
+
+                PGPKeyRing keyRing = PgpConversionHelper.BytesToPGPKeyRing(data);
+                ArrayList<PGPPublicKey> keys = new ArrayList<PGPPublicKey>();
+                if (keyRing instanceof PGPSecretKeyRing) {
+                    for (PGPSecretKey key : new IterableIterator<PGPSecretKey>(
+                            ((PGPSecretKeyRing) keyRing).getSecretKeys())) {
+                        keys.add(key.getPublicKey());
+                    }
+                } else if (keyRing instanceof PGPPublicKeyRing) {
+                    for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(
+                            ((PGPPublicKeyRing) keyRing).getPublicKeys())) {
+                        keys.add(key);
+                    }
+                }
+
+                String keyRingRowId = Long.toString(cursor.getLong(rowIdCol));
+                for (PGPPublicKey key : keys) {
+                    ContentValues values = new ContentValues();
+                    values.put(KeysColumns.FINGERPRINT, key.getFingerprint());
+                    db.update(Tables.KEYS, values, KeysColumns.KEY_RING_ROW_ID + " = ? AND "
+                            + KeysColumns.KEY_ID + " = ?",
+                            new String[] { keyRingRowId, Long.toString(key.getKeyID()) });
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Fill key_ring_data_hash of all existing keyrings, so that unchanged keyrings are skipped on
+     * the first import after the upgrade. The stored blob is the encoded keyring that is hashed on
+     * import.
+     * 
+     * @param db
+     */
+    private static void fillKeyRingDataHashes(SQLiteDatabase db) {
+        Cursor cursor = db.query(Tables.KEY_RINGS, new String[] { BaseColumns._ID,
+                KeyRingsColumns.KEY_RING_DATA }, null, null, null, null, null);
+        if (cursor == null) {
+            return;
+        }
+
+        try {
+            int rowIdCol = cursor.getColumnIndex(BaseColumns._ID);
+            int dataCol = cursor.getColumnIndex(KeyRingsColumns.KEY_RING_DATA);
+            while (cursor.moveToNext()) {
+                byte[] data = cursor.getBlob(dataCol);
+                if (data == null) {
+                    continue;
+                }
+
+                ContentValues values = new ContentValues();
+                values.put(KeyRingsColumns.KEY_RING_DATA_HASH,
+                        ProviderHelper.getKeyRingDataHash(data));
+                db.update(Tables.KEY_RINGS, values, BaseColumns._ID + " = ?",
+                        new String[] { Long.toString(cursor.getLong(rowIdCol)) });
+            }
+        } finally {
+            cursor.close();
         }
     }
 
@@ -109,6 +657,78 @@ public class KeychainDatabase extends SQLiteOpenHelper {
                 break;
             case 4:
                 db.execSQL(CREATE_CRYPTO_CONSUMERS);
+                break;
+            case 5:
+                createIndices(db);
+                break;
+            case 6:
+                db.execSQL("ALTER TABLE " + Tables.KEYS + " ADD COLUMN " + KeysColumns.FINGERPRINT
+                        + " BLOB;");
+                fillFingerprints(db);
+                break;
+            case 7:
+                db.execSQL("ALTER TABLE " + Tables.KEY_RINGS + " ADD COLUMN "
+                        + KeyRingsColumns.KEY_RING_DATA_HASH + " BLOB;");
+                fillKeyRingDataHashes(db);
+                break;
+            case 8:
+                createUserIdsFts(db);
+                db.execSQL("INSERT INTO " + Tables.USER_IDS_FTS + " (docid, "
+                        + UserIdsColumns.USER_ID + ") SELECT " + BaseColumns._ID + ", "
+                        + UserIdsColumns.USER_ID + " FROM " + Tables.USER_IDS + ";");
+                break;
+            case 9:
+                db.execSQL("ALTER TABLE " + Tables.USER_IDS + " ADD COLUMN " + UserIdsColumns.EMAIL
+                        + " TEXT;");
+                fillEmails(db, false);
+                db.execSQL(CREATE_INDEX_USER_IDS_EMAIL);
+                break;
+            case 10:
+                // move blobs to their own tables, the old columns can not be dropped in SQLite
+                db.execSQL(CREATE_KEY_RING_BLOBS);
+                db.execSQL(CREATE_KEY_BLOBS);
+                db.execSQL("INSERT INTO " + Tables.KEY_RING_BLOBS + " (" + BaseColumns._ID + ", "
+                        + KeyRingsColumns.KEY_RING_DATA + ") SELECT " + BaseColumns._ID + ", "
+                        + KeyRingsColumns.KEY_RING_DATA + " FROM " + Tables.KEY_RINGS + ";");
+                db.execSQL("INSERT INTO " + Tables.KEY_BLOBS + " (" + BaseColumns._ID + ", "
+                        + KeysColumns.KEY_DATA + ") SELECT " + BaseColumns._ID + ", "
+                        + KeysColumns.KEY_DATA + " FROM " + Tables.KEYS + ";");
+                db.execSQL("UPDATE " + Tables.KEY_RINGS + " SET " + KeyRingsColumns.KEY_RING_DATA
+                        + " = NULL;");
+                db.execSQL("UPDATE " + Tables.KEYS + " SET " + KeysColumns.KEY_DATA + " = NULL;");
+                break;
+            case 11:
+                db.execSQL("ALTER TABLE " + Tables.KEYS + " ADD COLUMN "
+                        + KeysColumns.KEY_DATA_OFFSET + " INTEGER;");
+                db.execSQL("ALTER TABLE " + Tables.KEYS + " ADD COLUMN "
+                        + KeysColumns.KEY_DATA_LENGTH + " INTEGER;");
+                fillKeyDataSlices(db);
+                break;
+            case 12:
+                createKeyRingSummary(db);
+                db.execSQL(buildRefreshKeyRingSummary("1", SQL_NOW));
+                break;
+            case 13:
+                // row ids of existing keyrings are unique and increasing, use them as sequence
+                db.execSQL("ALTER TABLE " + Tables.KEY_RINGS + " ADD COLUMN "
+                        + KeyRingsColumns.LAST_MODIFIED + " INTEGER;");
+                db.execSQL("UPDATE " + Tables.KEY_RINGS + " SET " + KeyRingsColumns.LAST_MODIFIED
+                        + " = " + BaseColumns._ID + ";");
+                createSequence(db);
+                break;
+            case 14:
+                // emails of user ids without space before the angle brackets were not found or
+                // stored with the text after the closing bracket, e.g. "a@x> c" for "A <a@x> c"
+                fillEmails(db, true);
+                break;
+            case 15:
+                db.execSQL(CREATE_INDEX_USER_IDS_USER_ID);
+                break;
+            case 16:
+                // the update trigger never fired for blobs written with INSERT OR REPLACE
+                db.execSQL("DROP TRIGGER IF EXISTS sequence_key_ring_blob_update;");
+                db.execSQL(CREATE_TRIGGER_SEQUENCE_KEY_RING_BLOB_INSERT);
+                break;
 
             default:
                 break;
@@ -18,12 +18,25 @@
 package org.sufficientlysecure.keychain.provider;
 
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.helper.OtherHelper;
+import org.sufficientlysecure.keychain.helper.PrivateKeyCache;
 import org.sufficientlysecure.keychain.provider.KeychainContract.CryptoConsumers;
+import org.sufficientlysecure.keychain.provider.KeychainContract.DeletedKeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainContract.Diagnostics;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingChildren;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingSummary;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingsColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyTypes;
@@ -35,11 +48,19 @@ import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
 import org.sufficientlysecure.keychain.util.Log;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
+import android.database.AbstractWindowedCursor;
+import android.database.CrossProcessCursor;
 import android.database.Cursor;
+import android.database.CursorWindow;
+import android.database.CursorWrapper;
 import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
@@ -47,6 +68,7 @@ import android.net.Uri;
 import android.os.ParcelFileDescriptor;
 import android.provider.BaseColumns;
 import android.text.TextUtils;
+import android.util.Pair;
 
 public class KeychainProvider extends ContentProvider {
     public static final String ACTION_BROADCAST_DATABASE_CHANGE = Constants.PACKAGE_NAME
@@ -61,6 +83,10 @@ public class KeychainProvider extends ContentProvider {
     private static final int PUBLIC_KEY_RING_BY_KEY_ID = 104;
     private static final int PUBLIC_KEY_RING_BY_EMAILS = 105;
     private static final int PUBLIC_KEY_RING_BY_LIKE_EMAIL = 106;
+    private static final int PUBLIC_KEY_RING_BY_SEARCH = 107;
+    private static final int PUBLIC_KEY_RING_SUMMARY = 108;
+    private static final int PUBLIC_KEY_RING_KEY_IDS = 109;
+    private static final int PUBLIC_KEY_RING_DELETED = 110;
 
     private static final int PUBLIC_KEY_RING_KEY = 111;
     private static final int PUBLIC_KEY_RING_KEY_BY_ROW_ID = 112;
@@ -68,12 +94,18 @@ public class KeychainProvider extends ContentProvider {
     private static final int PUBLIC_KEY_RING_USER_ID = 121;
     private static final int PUBLIC_KEY_RING_USER_ID_BY_ROW_ID = 122;
 
+    private static final int PUBLIC_KEY_RING_CHILDREN = 131;
+
     private static final int SECRET_KEY_RING = 201;
     private static final int SECRET_KEY_RING_BY_ROW_ID = 202;
     private static final int SECRET_KEY_RING_BY_MASTER_KEY_ID = 203;
     private static final int SECRET_KEY_RING_BY_KEY_ID = 204;
     private static final int SECRET_KEY_RING_BY_EMAILS = 205;
     private static final int SECRET_KEY_RING_BY_LIKE_EMAIL = 206;
+    private static final int SECRET_KEY_RING_BY_SEARCH = 207;
+    private static final int SECRET_KEY_RING_SUMMARY = 208;
+    private static final int SECRET_KEY_RING_KEY_IDS = 209;
+    private static final int SECRET_KEY_RING_DELETED = 210;
 
     private static final int SECRET_KEY_RING_KEY = 211;
     private static final int SECRET_KEY_RING_KEY_BY_ROW_ID = 212;
@@ -81,13 +113,80 @@ public class KeychainProvider extends ContentProvider {
     private static final int SECRET_KEY_RING_USER_ID = 221;
     private static final int SECRET_KEY_RING_USER_ID_BY_ROW_ID = 222;
 
+    private static final int SECRET_KEY_RING_CHILDREN = 231;
+
     private static final int CRYPTO_CONSUMERS = 301;
 
+    private static final int DIAGNOSTICS = 501;
+
     // private static final int DATA_STREAM = 401;
 
+    /** names of the uri match codes, shown in the diagnostics */
+    private static final HashMap<Integer, String> MATCH_NAMES = new HashMap<Integer, String>();
+
+    static {
+        MATCH_NAMES.put(PUBLIC_KEY_RING, "public_key_ring");
+        MATCH_NAMES.put(PUBLIC_KEY_RING_BY_ROW_ID, "public_key_ring_by_row_id");
+        MATCH_NAMES.put(PUBLIC_KEY_RING_BY_MASTER_KEY_ID, "public_key_ring_by_master_key_id");
+        MATCH_NAMES.put(PUBLIC_KEY_RING_BY_KEY_ID, "public_key_ring_by_key_id");
+        MATCH_NAMES.put(PUBLIC_KEY_RING_BY_EMAILS, "public_key_ring_by_emails");
+        MATCH_NAMES.put(PUBLIC_KEY_RING_BY_LIKE_EMAIL, "public_key_ring_by_like_email");
+        MATCH_NAMES.put(PUBLIC_KEY_RING_BY_SEARCH, "public_key_ring_by_search");
+        MATCH_NAMES.put(PUBLIC_KEY_RING_SUMMARY, "public_key_ring_summary");
+        MATCH_NAMES.put(PUBLIC_KEY_RING_KEY_IDS, "public_key_ring_key_ids");
+        MATCH_NAMES.put(PUBLIC_KEY_RING_DELETED, "public_key_ring_deleted");
+        MATCH_NAMES.put(PUBLIC_KEY_RING_KEY, "public_key_ring_key");
+        MATCH_NAMES.put(PUBLIC_KEY_RING_KEY_BY_ROW_ID, "public_key_ring_key_by_row_id");
+        MATCH_NAMES.put(PUBLIC_KEY_RING_USER_ID, "public_key_ring_user_id");
+        MATCH_NAMES.put(PUBLIC_KEY_RING_USER_ID_BY_ROW_ID, "public_key_ring_user_id_by_row_id");
+        MATCH_NAMES.put(PUBLIC_KEY_RING_CHILDREN, "public_key_ring_children");
+        MATCH_NAMES.put(SECRET_KEY_RING, "secret_key_ring");
+        MATCH_NAMES.put(SECRET_KEY_RING_BY_ROW_ID, "secret_key_ring_by_row_id");
+        MATCH_NAMES.put(SECRET_KEY_RING_BY_MASTER_KEY_ID, "secret_key_ring_by_master_key_id");
+        MATCH_NAMES.put(SECRET_KEY_RING_BY_KEY_ID, "secret_key_ring_by_key_id");
+        MATCH_NAMES.put(SECRET_KEY_RING_BY_EMAILS, "secret_key_ring_by_emails");
+        MATCH_NAMES.put(SECRET_KEY_RING_BY_LIKE_EMAIL, "secret_key_ring_by_like_email");
+        MATCH_NAMES.put(SECRET_KEY_RING_BY_SEARCH, "secret_key_ring_by_search");
+        MATCH_NAMES.put(SECRET_KEY_RING_SUMMARY, "secret_key_ring_summary");
+        MATCH_NAMES.put(SECRET_KEY_RING_KEY_IDS, "secret_key_ring_key_ids");
+        MATCH_NAMES.put(SECRET_KEY_RING_DELETED, "secret_key_ring_deleted");
+        MATCH_NAMES.put(SECRET_KEY_RING_KEY, "secret_key_ring_key");
+        MATCH_NAMES.put(SECRET_KEY_RING_KEY_BY_ROW_ID, "secret_key_ring_key_by_row_id");
+        MATCH_NAMES.put(SECRET_KEY_RING_USER_ID, "secret_key_ring_user_id");
+        MATCH_NAMES.put(SECRET_KEY_RING_USER_ID_BY_ROW_ID, "secret_key_ring_user_id_by_row_id");
+        MATCH_NAMES.put(SECRET_KEY_RING_CHILDREN, "secret_key_ring_children");
+        MATCH_NAMES.put(CRYPTO_CONSUMERS, "crypto_consumers");
+        MATCH_NAMES.put(DIAGNOSTICS, "diagnostics");
+    }
+
     protected boolean mInternalProvider;
     protected UriMatcher mUriMatcher;
 
+    /**
+     * Change notifications of the applyBatch or bulkInsert running on this thread, null outside
+     * of a batch
+     */
+    private final ThreadLocal<PendingNotifications> mPendingNotifications =
+            new ThreadLocal<PendingNotifications>();
+
+    /** number of change notifications not sent, because they were coalesced in a batch */
+    private static final AtomicLong sElidedNotificationCount = new AtomicLong();
+
+    /** statistics of all operations of the internal and external provider in this process */
+    private static final ProviderStatistics sStatistics = new ProviderStatistics(MATCH_NAMES);
+
+    /**
+     * Notifications suppressed during a batch, sent once per base uri when it has been committed
+     */
+    private static class PendingNotifications {
+        /** base uris of all changes */
+        final LinkedHashSet<Uri> baseUris = new LinkedHashSet<Uri>();
+        /** key type and content type of all changed uris, broadcast once each */
+        final LinkedHashSet<Pair<Integer, String>> broadcasts =
+                new LinkedHashSet<Pair<Integer, String>>();
+        int count = 0;
+    }
+
     /**
      * Build and return a {@link UriMatcher} that catches all {@link Uri} variations supported by
      * this {@link ContentProvider}.
@@ -112,6 +211,10 @@ public class KeychainProvider extends ContentProvider {
          * key_rings/public/key_id/_
          * key_rings/public/emails/_
          * key_rings/public/like_email/_
+         * key_rings/public/search/_
+         * key_rings/public/summary
+         * key_rings/public/key_ids
+         * key_rings/public/deleted
          * </pre>
          */
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
@@ -133,6 +236,18 @@ public class KeychainProvider extends ContentProvider {
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
                 + KeychainContract.PATH_PUBLIC + "/" + KeychainContract.PATH_BY_LIKE_EMAIL + "/*",
                 PUBLIC_KEY_RING_BY_LIKE_EMAIL);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
+                + KeychainContract.PATH_PUBLIC + "/" + KeychainContract.PATH_BY_SEARCH + "/*",
+                PUBLIC_KEY_RING_BY_SEARCH);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
+                + KeychainContract.PATH_PUBLIC + "/" + KeychainContract.PATH_SUMMARY,
+                PUBLIC_KEY_RING_SUMMARY);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
+                + KeychainContract.PATH_PUBLIC + "/" + KeychainContract.PATH_KEY_IDS,
+                PUBLIC_KEY_RING_KEY_IDS);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
+                + KeychainContract.PATH_PUBLIC + "/" + KeychainContract.PATH_DELETED,
+                PUBLIC_KEY_RING_DELETED);
 
         /**
          * public keys
@@ -164,6 +279,17 @@ public class KeychainProvider extends ContentProvider {
                 + KeychainContract.PATH_PUBLIC + "/#/" + KeychainContract.PATH_USER_IDS + "/#",
                 PUBLIC_KEY_RING_USER_ID_BY_ROW_ID);
 
+        /**
+         * public keys and user ids in one cursor
+         * 
+         * <pre>
+         * key_rings/public/#/children
+         * </pre>
+         */
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
+                + KeychainContract.PATH_PUBLIC + "/#/" + KeychainContract.PATH_CHILDREN,
+                PUBLIC_KEY_RING_CHILDREN);
+
         /**
          * secret key rings
          * 
@@ -174,6 +300,10 @@ public class KeychainProvider extends ContentProvider {
          * key_rings/secret/key_id/_
          * key_rings/secret/emails/_
          * key_rings/secret/like_email/_
+         * key_rings/secret/search/_
+         * key_rings/secret/summary
+         * key_rings/secret/key_ids
+         * key_rings/secret/deleted
          * </pre>
          */
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
@@ -195,6 +325,18 @@ public class KeychainProvider extends ContentProvider {
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
                 + KeychainContract.PATH_SECRET + "/" + KeychainContract.PATH_BY_LIKE_EMAIL + "/*",
                 SECRET_KEY_RING_BY_LIKE_EMAIL);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
+                + KeychainContract.PATH_SECRET + "/" + KeychainContract.PATH_BY_SEARCH + "/*",
+                SECRET_KEY_RING_BY_SEARCH);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
+                + KeychainContract.PATH_SECRET + "/" + KeychainContract.PATH_SUMMARY,
+                SECRET_KEY_RING_SUMMARY);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
+                + KeychainContract.PATH_SECRET + "/" + KeychainContract.PATH_KEY_IDS,
+                SECRET_KEY_RING_KEY_IDS);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
+                + KeychainContract.PATH_SECRET + "/" + KeychainContract.PATH_DELETED,
+                SECRET_KEY_RING_DELETED);
 
         /**
          * secret keys
@@ -226,6 +368,17 @@ public class KeychainProvider extends ContentProvider {
                 + KeychainContract.PATH_SECRET + "/#/" + KeychainContract.PATH_USER_IDS + "/#",
                 SECRET_KEY_RING_USER_ID_BY_ROW_ID);
 
+        /**
+         * secret keys and user ids in one cursor
+         * 
+         * <pre>
+         * key_rings/secret/#/children
+         * </pre>
+         */
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
+                + KeychainContract.PATH_SECRET + "/#/" + KeychainContract.PATH_CHILDREN,
+                SECRET_KEY_RING_CHILDREN);
+
         /**
          * Crypto Consumers
          */
@@ -240,6 +393,13 @@ public class KeychainProvider extends ContentProvider {
          */
         // matcher.addURI(authority, KeychainContract.BASE_DATA + "/*", DATA_STREAM);
 
+        /**
+         * statistics of operations, only for the internal provider
+         */
+        if (internalProvider) {
+            matcher.addURI(authority, KeychainContract.BASE_DIAGNOSTICS, DIAGNOSTICS);
+        }
+
         return matcher;
     }
 
@@ -250,6 +410,7 @@ public class KeychainProvider extends ContentProvider {
     public boolean onCreate() {
         mUriMatcher = buildUriMatcher(mInternalProvider);
         mApgDatabase = new KeychainDatabase(getContext());
+        KeyIdIndex.setProviderProcess();
         return true;
     }
 
@@ -261,9 +422,11 @@ public class KeychainProvider extends ContentProvider {
         case PUBLIC_KEY_RING:
         case PUBLIC_KEY_RING_BY_EMAILS:
         case PUBLIC_KEY_RING_BY_LIKE_EMAIL:
+        case PUBLIC_KEY_RING_BY_SEARCH:
         case SECRET_KEY_RING:
         case SECRET_KEY_RING_BY_EMAILS:
         case SECRET_KEY_RING_BY_LIKE_EMAIL:
+        case SECRET_KEY_RING_BY_SEARCH:
             return KeyRings.CONTENT_TYPE;
 
         case PUBLIC_KEY_RING_BY_ROW_ID:
@@ -274,6 +437,16 @@ public class KeychainProvider extends ContentProvider {
         case SECRET_KEY_RING_BY_KEY_ID:
             return KeyRings.CONTENT_ITEM_TYPE;
 
+        case PUBLIC_KEY_RING_SUMMARY:
+        case SECRET_KEY_RING_SUMMARY:
+            return KeyRingSummary.CONTENT_TYPE;
+
+        case PUBLIC_KEY_RING_DELETED:
+        case SECRET_KEY_RING_DELETED:
+            return DeletedKeyRings.CONTENT_TYPE;
+
+        case PUBLIC_KEY_RING_KEY_IDS:
+        case SECRET_KEY_RING_KEY_IDS:
         case PUBLIC_KEY_RING_KEY:
         case SECRET_KEY_RING_KEY:
             return Keys.CONTENT_TYPE;
@@ -290,9 +463,16 @@ public class KeychainProvider extends ContentProvider {
         case SECRET_KEY_RING_USER_ID_BY_ROW_ID:
             return UserIds.CONTENT_ITEM_TYPE;
 
+        case PUBLIC_KEY_RING_CHILDREN:
+        case SECRET_KEY_RING_CHILDREN:
+            return KeyRingChildren.CONTENT_TYPE;
+
         case CRYPTO_CONSUMERS:
             return CryptoConsumers.CONTENT_TYPE;
 
+        case DIAGNOSTICS:
+            return Diagnostics.CONTENT_TYPE;
+
         default:
             throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
@@ -313,10 +493,15 @@ public class KeychainProvider extends ContentProvider {
         case PUBLIC_KEY_RING_BY_KEY_ID:
         case PUBLIC_KEY_RING_BY_EMAILS:
         case PUBLIC_KEY_RING_BY_LIKE_EMAIL:
+        case PUBLIC_KEY_RING_BY_SEARCH:
+        case PUBLIC_KEY_RING_SUMMARY:
+        case PUBLIC_KEY_RING_KEY_IDS:
+        case PUBLIC_KEY_RING_DELETED:
         case PUBLIC_KEY_RING_KEY:
         case PUBLIC_KEY_RING_KEY_BY_ROW_ID:
         case PUBLIC_KEY_RING_USER_ID:
         case PUBLIC_KEY_RING_USER_ID_BY_ROW_ID:
+        case PUBLIC_KEY_RING_CHILDREN:
             type = KeyTypes.PUBLIC;
             break;
 
@@ -326,10 +511,15 @@ public class KeychainProvider extends ContentProvider {
         case SECRET_KEY_RING_BY_KEY_ID:
         case SECRET_KEY_RING_BY_EMAILS:
         case SECRET_KEY_RING_BY_LIKE_EMAIL:
+        case SECRET_KEY_RING_BY_SEARCH:
+        case SECRET_KEY_RING_SUMMARY:
+        case SECRET_KEY_RING_KEY_IDS:
+        case SECRET_KEY_RING_DELETED:
         case SECRET_KEY_RING_KEY:
         case SECRET_KEY_RING_KEY_BY_ROW_ID:
         case SECRET_KEY_RING_USER_ID:
         case SECRET_KEY_RING_USER_ID_BY_ROW_ID:
+        case SECRET_KEY_RING_CHILDREN:
             type = KeyTypes.SECRET;
             break;
 
@@ -355,9 +545,16 @@ public class KeychainProvider extends ContentProvider {
                 + KeyRingsColumns.MASTER_KEY_ID);
         // only give out keyRing blob when we are using the internal content provider
         if (mInternalProvider) {
-            projectionMap.put(KeyRingsColumns.KEY_RING_DATA, Tables.KEY_RINGS + "."
-                    + KeyRingsColumns.KEY_RING_DATA);
+            // blob is only read when requested in projection
+            projectionMap.put(KeyRingsColumns.KEY_RING_DATA, "(SELECT "
+                    + KeyRingsColumns.KEY_RING_DATA + " FROM " + Tables.KEY_RING_BLOBS + " WHERE "
+                    + Tables.KEY_RING_BLOBS + "." + BaseColumns._ID + " = " + Tables.KEY_RINGS
+                    + "." + BaseColumns._ID + ") AS " + KeyRingsColumns.KEY_RING_DATA);
+            projectionMap.put(KeyRingsColumns.KEY_RING_DATA_HASH, Tables.KEY_RINGS + "."
+                    + KeyRingsColumns.KEY_RING_DATA_HASH);
         }
+        projectionMap.put(KeyRingsColumns.LAST_MODIFIED, Tables.KEY_RINGS + "."
+                + KeyRingsColumns.LAST_MODIFIED);
         projectionMap.put(UserIdsColumns.USER_ID, Tables.USER_IDS + "." + UserIdsColumns.USER_ID);
 
         return projectionMap;
@@ -385,9 +582,19 @@ public class KeychainProvider extends ContentProvider {
         projectionMap.put(KeysColumns.KEY_RING_ROW_ID, KeysColumns.KEY_RING_ROW_ID);
         // only give out keyRing blob when we are using the internal content provider
         if (mInternalProvider) {
-            projectionMap.put(KeysColumns.KEY_DATA, KeysColumns.KEY_DATA);
+            // blob is only read when requested in projection, keys are usually stored as slice
+            // of their keyRing blob, only if this was not possible in a separate blob
+            projectionMap.put(KeysColumns.KEY_DATA, "COALESCE((SELECT " + KeysColumns.KEY_DATA
+                    + " FROM " + Tables.KEY_BLOBS + " WHERE " + Tables.KEY_BLOBS + "."
+                    + BaseColumns._ID + " = " + Tables.KEYS + "." + BaseColumns._ID
+                    + "), (SELECT substr(" + KeyRingsColumns.KEY_RING_DATA + ", " + Tables.KEYS
+                    + "." + KeysColumns.KEY_DATA_OFFSET + " + 1, " + Tables.KEYS + "."
+                    + KeysColumns.KEY_DATA_LENGTH + ") FROM " + Tables.KEY_RING_BLOBS + " WHERE "
+                    + Tables.KEY_RING_BLOBS + "." + BaseColumns._ID + " = " + Tables.KEYS + "."
+                    + KeysColumns.KEY_RING_ROW_ID + ")) AS " + KeysColumns.KEY_DATA);
         }
         projectionMap.put(KeysColumns.RANK, KeysColumns.RANK);
+        projectionMap.put(KeysColumns.FINGERPRINT, KeysColumns.FINGERPRINT);
 
         return projectionMap;
     }
@@ -451,6 +658,7 @@ public class KeychainProvider extends ContentProvider {
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
             String sortOrder) {
         Log.v(Constants.TAG, "query(uri=" + uri + ", proj=" + Arrays.toString(projection) + ")");
+        long startTime = System.nanoTime();
 
         SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
         SQLiteDatabase db = mApgDatabase.getReadableDatabase();
@@ -514,42 +722,103 @@ public class KeychainProvider extends ContentProvider {
             String emails = uri.getLastPathSegment();
             String chunks[] = emails.split(" *, *");
             boolean gotCondition = false;
-            String emailWhere = "";
+            String inEmails = "";
             for (int i = 0; i < chunks.length; ++i) {
-                if (chunks[i].length() == 0) {
+                String email = OtherHelper.normalizeEmail(chunks[i]);
+                if (email == null) {
                     continue;
                 }
-                if (i != 0) {
-                    emailWhere += " OR ";
+                if (gotCondition) {
+                    inEmails += ", ";
                 }
-                emailWhere += "tmp." + UserIdsColumns.USER_ID + " LIKE ";
-                // match '*<email>', so it has to be at the *end* of the user id
-                emailWhere += DatabaseUtils.sqlEscapeString("%<" + chunks[i] + ">");
+                inEmails += DatabaseUtils.sqlEscapeString(email);
                 gotCondition = true;
             }
 
             if (gotCondition) {
-                qb.appendWhere(" AND EXISTS (SELECT tmp." + BaseColumns._ID + " FROM "
-                        + Tables.USER_IDS + " AS tmp WHERE tmp." + UserIdsColumns.KEY_RING_ROW_ID
-                        + " = " + Tables.KEY_RINGS + "." + BaseColumns._ID + " AND (" + emailWhere
-                        + "))");
+                // one lookup in the email index for all emails
+                qb.appendWhere(" AND " + Tables.KEY_RINGS + "." + BaseColumns._ID + " IN (SELECT "
+                        + UserIdsColumns.KEY_RING_ROW_ID + " FROM " + Tables.USER_IDS + " WHERE "
+                        + UserIdsColumns.EMAIL + " IN (" + inEmails + "))");
             }
 
             break;
 
         case SECRET_KEY_RING_BY_LIKE_EMAIL:
         case PUBLIC_KEY_RING_BY_LIKE_EMAIL:
+        case SECRET_KEY_RING_BY_SEARCH:
+        case PUBLIC_KEY_RING_BY_SEARCH:
             qb = buildKeyRingQuery(qb, match, sortOrder);
 
-            String likeEmail = uri.getLastPathSegment();
+            String search = uri.getLastPathSegment();
+            String matchQuery = buildUserIdsFtsMatchQuery(search);
+            if (matchQuery == null) {
+                // nothing to search for, e.g. only punctuation
+                qb.appendWhere(" AND 0");
+            } else {
+                // keyrings with any user id containing all search tokens as prefix of a word
+                qb.appendWhere(" AND " + Tables.KEY_RINGS + "." + BaseColumns._ID + " IN (SELECT "
+                        + Tables.USER_IDS + "." + UserIdsColumns.KEY_RING_ROW_ID + " FROM "
+                        + Tables.USER_IDS_FTS + " INNER JOIN " + Tables.USER_IDS + " ON ("
+                        + Tables.USER_IDS_FTS + ".docid = " + Tables.USER_IDS + "."
+                        + BaseColumns._ID + ") WHERE " + Tables.USER_IDS_FTS + " MATCH ");
+                qb.appendWhereEscapeString(matchQuery);
+                if (match == SECRET_KEY_RING_BY_LIKE_EMAIL
+                        || match == PUBLIC_KEY_RING_BY_LIKE_EMAIL) {
+                    // the index only prefilters, the email has to be within the angle brackets
+                    // of the same user id, not anywhere in its name
+                    qb.appendWhere(" AND " + Tables.USER_IDS + "." + UserIdsColumns.USER_ID
+                            + " LIKE ");
+                    qb.appendWhereEscapeString("%<%" + search + "%>");
+                }
+                qb.appendWhere(")");
+            }
+
+            if (TextUtils.isEmpty(sortOrder)) {
+                sortOrder = Tables.USER_IDS + "." + UserIdsColumns.USER_ID + " ASC";
+            }
+
+            break;
+
+        case PUBLIC_KEY_RING_SUMMARY:
+        case SECRET_KEY_RING_SUMMARY:
+            refreshExpiredKeyRingSummaries();
+
+            qb.setTables(Tables.KEY_RING_SUMMARY);
+            qb.appendWhere(KeyRingSummary.TYPE + " = ");
+            qb.appendWhereEscapeString(Integer.toString(getKeyType(match)));
+
+            if (TextUtils.isEmpty(sortOrder)) {
+                sortOrder = KeyRingSummary.USER_ID + " ASC";
+            }
 
-            String likeEmailWhere = "tmp." + UserIdsColumns.USER_ID + " LIKE "
-                    + DatabaseUtils.sqlEscapeString("%<%" + likeEmail + "%>");
+            break;
+
+        case PUBLIC_KEY_RING_KEY_IDS:
+        case SECRET_KEY_RING_KEY_IDS:
+            qb.setTables(Tables.KEYS + " INNER JOIN " + Tables.KEY_RINGS + " ON (" + Tables.KEYS
+                    + "." + KeysColumns.KEY_RING_ROW_ID + " = " + Tables.KEY_RINGS + "."
+                    + BaseColumns._ID + ")");
+            qb.appendWhere(Tables.KEYS + "." + KeysColumns.TYPE + " = ");
+            qb.appendWhereEscapeString(Integer.toString(getKeyType(match)));
 
-            qb.appendWhere(" AND EXISTS (SELECT tmp." + BaseColumns._ID + " FROM "
-                    + Tables.USER_IDS + " AS tmp WHERE tmp." + UserIdsColumns.KEY_RING_ROW_ID
-                    + " = " + Tables.KEY_RINGS + "." + BaseColumns._ID + " AND (" + likeEmailWhere
-                    + "))");
+            HashMap<String, String> keyIdsProjectionMap = new HashMap<String, String>();
+            keyIdsProjectionMap.put(KeysColumns.KEY_ID, Tables.KEYS + "." + KeysColumns.KEY_ID);
+            keyIdsProjectionMap.put(KeyRingsColumns.MASTER_KEY_ID, Tables.KEY_RINGS + "."
+                    + KeyRingsColumns.MASTER_KEY_ID);
+            qb.setProjectionMap(keyIdsProjectionMap);
+
+            break;
+
+        case PUBLIC_KEY_RING_DELETED:
+        case SECRET_KEY_RING_DELETED:
+            qb.setTables(Tables.KEY_RING_TOMBSTONES);
+            qb.appendWhere(DeletedKeyRings.TYPE + " = ");
+            qb.appendWhereEscapeString(Integer.toString(getKeyType(match)));
+
+            if (TextUtils.isEmpty(sortOrder)) {
+                sortOrder = DeletedKeyRings.LAST_MODIFIED + " ASC";
+            }
 
             break;
 
@@ -601,16 +870,36 @@ public class KeychainProvider extends ContentProvider {
 
             break;
             
+        case PUBLIC_KEY_RING_CHILDREN:
+        case SECRET_KEY_RING_CHILDREN:
+            qb.setTables("(" + buildKeyRingChildrenQuery(uri.getPathSegments().get(2),
+                    getKeyType(match)) + ")");
+
+            if (TextUtils.isEmpty(sortOrder)) {
+                sortOrder = KeyRingChildren.CHILD_TYPE + " ASC, " + KeysColumns.RANK + " ASC";
+            }
+
+            break;
+
         case CRYPTO_CONSUMERS:
             qb.setTables(Tables.CRYPTO_CONSUMERS);
             
             break;
 
+        case DIAGNOSTICS:
+            return buildDiagnosticsCursor();
+
         default:
             throw new IllegalArgumentException("Unknown URI " + uri);
 
         }
 
+        // keyset pagination continues after the last row of the previous page in user id order
+        if (uri.getQueryParameter(KeychainContract.QUERY_PARAMETER_AFTER_USER_ID) != null
+                || uri.getQueryParameter(KeychainContract.QUERY_PARAMETER_AFTER_ID) != null) {
+            sortOrder = appendKeysetWhere(qb, uri, match);
+        }
+
         // If no sort order is specified use the default
         String orderBy;
         if (TextUtils.isEmpty(sortOrder)) {
@@ -619,7 +908,14 @@ public class KeychainProvider extends ContentProvider {
             orderBy = sortOrder;
         }
 
-        Cursor c = qb.query(db, projection, selection, selectionArgs, null, null, orderBy);
+        String limit = buildLimit(uri);
+
+        Cursor c = qb.query(db, projection, selection, selectionArgs, null, null, orderBy, limit);
+
+        // executes the query, so the statistics contain its time instead of the first move's
+        int rows = c.getCount();
+        sStatistics.record(match, ProviderStatistics.OPERATION_QUERY, System.nanoTime()
+                - startTime, rows);
 
         // Tell the cursor what uri to watch, so it knows when its source data changes
         c.setNotificationUri(getContext().getContentResolver(), uri);
@@ -628,37 +924,243 @@ public class KeychainProvider extends ContentProvider {
             Log.d(Constants.TAG,
                     "Query: "
                             + qb.buildQuery(projection, selection, selectionArgs, null, null,
-                                    orderBy, null));
-            Log.d(Constants.TAG, "Cursor: " + DatabaseUtils.dumpCursorToString(c));
+                                    orderBy, limit));
         }
 
+        // blobs are only given out by the internal provider
+        if (mInternalProvider && c instanceof AbstractWindowedCursor) {
+            return new BlobCountingCursor((AbstractWindowedCursor) c, match);
+        }
         return c;
     }
 
+    /**
+     * @return statistics of all operations, one row per uri match code and operation, followed
+     *         by the rows of the key ring cache
+     */
+    private Cursor buildDiagnosticsCursor() {
+        MatrixCursor cursor = new MatrixCursor(new String[] { Diagnostics.MATCH,
+                Diagnostics.MATCH_NAME, Diagnostics.OPERATION, Diagnostics.COUNT,
+                Diagnostics.TOTAL_TIME, Diagnostics.MAX_TIME, Diagnostics.ROWS,
+                Diagnostics.BLOB_BYTES, Diagnostics.HISTOGRAM });
+        for (ProviderStatistics.Entry entry : sStatistics.getEntries()) {
+            cursor.addRow(new Object[] { entry.match, entry.matchName,
+                    entry.getOperationName(), entry.count,
+                    entry.totalNanos / 1000, entry.maxNanos / 1000, entry.rows, entry.blobBytes,
+                    entry.getHistogramString() });
+        }
+
+        KeyRingCache cache = KeyRingCache.getInstanceIfCreated();
+        if (cache != null) {
+            // read under the lock of the cache, so that the rows fit together
+            synchronized (cache) {
+                addKeyRingCacheRow(cursor, Diagnostics.CACHE_HIT, cache.getHitCount(), 0);
+                addKeyRingCacheRow(cursor, Diagnostics.CACHE_MISS, cache.getMissCount(), 0);
+                addKeyRingCacheRow(cursor, Diagnostics.CACHE_EVICTION,
+                        cache.getEvictionCount(), 0);
+                addKeyRingCacheRow(cursor, Diagnostics.CACHE_SIZE, cache.getRingCount(),
+                        cache.getSize());
+            }
+        }
+        return cursor;
+    }
+
+    private static void addKeyRingCacheRow(MatrixCursor cursor, String operation, long count,
+            long bytes) {
+        cursor.addRow(new Object[] { Diagnostics.MATCH_KEY_RING_CACHE,
+                Diagnostics.MATCH_NAME_KEY_RING_CACHE, operation, count, 0, 0, 0, bytes, null });
+    }
+
+    /**
+     * Builds a UNION of the fingerprint, the keys and the user ids except the main one of a
+     * keyRing, differentiated by {@link KeyRingChildren#CHILD_TYPE}. Rows of different types come
+     * from the same or different tables, their _ID is the _ID of the row in its table times the
+     * number of types plus the type, so that it is unique in the result.
+     * 
+     * @param keyRingRowId
+     * @param keyType
+     * @return
+     */
+    private static String buildKeyRingChildrenQuery(String keyRingRowId, int keyType) {
+        String keysWhere = " FROM " + Tables.KEYS + " WHERE " + KeysColumns.KEY_RING_ROW_ID
+                + " = " + DatabaseUtils.sqlEscapeString(keyRingRowId) + " AND "
+                + KeysColumns.TYPE + " = " + keyType;
+        String keyColumns = KeysColumns.KEY_ID + ", " + KeysColumns.IS_MASTER_KEY + ", "
+                + KeysColumns.ALGORITHM + ", " + KeysColumns.KEY_SIZE + ", "
+                + KeysColumns.CAN_CERTIFY + ", " + KeysColumns.CAN_SIGN + ", "
+                + KeysColumns.CAN_ENCRYPT;
+
+        return "SELECT " + buildChildId(KeyRingChildren.TYPE_FINGERPRINT) + " AS "
+                + BaseColumns._ID + ", " + KeyRingChildren.TYPE_FINGERPRINT + " AS "
+                + KeyRingChildren.CHILD_TYPE + ", " + keyColumns + ", " + KeysColumns.FINGERPRINT
+                + ", NULL AS " + UserIdsColumns.USER_ID + ", " + KeysColumns.RANK + keysWhere
+                + " AND " + KeysColumns.IS_MASTER_KEY + " = 1"
+                + " UNION ALL SELECT " + buildChildId(KeyRingChildren.TYPE_KEY) + ", "
+                + KeyRingChildren.TYPE_KEY + ", " + keyColumns + ", NULL, NULL, "
+                + KeysColumns.RANK + keysWhere
+                + " UNION ALL SELECT " + buildChildId(KeyRingChildren.TYPE_USER_ID) + ", "
+                + KeyRingChildren.TYPE_USER_ID + ", NULL, NULL, NULL, NULL, NULL, NULL, NULL, "
+                + "NULL, " + UserIdsColumns.USER_ID + ", " + UserIdsColumns.RANK + " FROM "
+                + Tables.USER_IDS + " WHERE "
+                + UserIdsColumns.KEY_RING_ROW_ID + " = "
+                + DatabaseUtils.sqlEscapeString(keyRingRowId) + " AND " + UserIdsColumns.RANK
+                + " > 0";
+    }
+
+    private static String buildChildId(int childType) {
+        return BaseColumns._ID + " * " + KeyRingChildren.TYPE_COUNT + " + " + childType;
+    }
+
+    /**
+     * Builds the LIMIT clause from the {@link KeychainContract#QUERY_PARAMETER_LIMIT} and
+     * {@link KeychainContract#QUERY_PARAMETER_OFFSET} parameters of the uri
+     * 
+     * @param uri
+     * @return limit clause or null if the uri has no limit
+     */
+    private static String buildLimit(Uri uri) {
+        String limit = uri.getQueryParameter(KeychainContract.QUERY_PARAMETER_LIMIT);
+        String offset = uri.getQueryParameter(KeychainContract.QUERY_PARAMETER_OFFSET);
+        if (limit == null && offset == null) {
+            return null;
+        }
+
+        try {
+            // a negative limit means no limit in SQLite, an offset can only be given with it
+            long limitValue = (limit == null) ? -1 : Long.parseLong(limit);
+            long offsetValue = (offset == null) ? 0 : Long.parseLong(offset);
+            if ((limit != null && limitValue < 0) || offsetValue < 0) {
+                throw new IllegalArgumentException("Negative limit or offset in " + uri);
+            }
+            return limitValue + " OFFSET " + offsetValue;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid limit or offset in " + uri);
+        }
+    }
+
+    /**
+     * Restricts the query to rows after the row given by the
+     * {@link KeychainContract#QUERY_PARAMETER_AFTER_USER_ID} and
+     * {@link KeychainContract#QUERY_PARAMETER_AFTER_ID} parameters, in the order of user id and
+     * row id. Rows without user id come first, a row without user id is given by its row id only.
+     * 
+     * @param qb
+     * @param uri
+     * @param match
+     * @return sort order the keyset relies on, replacing the requested one
+     */
+    private String appendKeysetWhere(SQLiteQueryBuilder qb, Uri uri, int match) {
+        String userIdColumn;
+        String idColumn;
+        switch (match) {
+        case PUBLIC_KEY_RING:
+        case PUBLIC_KEY_RING_BY_ROW_ID:
+        case PUBLIC_KEY_RING_BY_MASTER_KEY_ID:
+        case PUBLIC_KEY_RING_BY_KEY_ID:
+        case PUBLIC_KEY_RING_BY_EMAILS:
+        case PUBLIC_KEY_RING_BY_LIKE_EMAIL:
+        case PUBLIC_KEY_RING_BY_SEARCH:
+        case SECRET_KEY_RING:
+        case SECRET_KEY_RING_BY_ROW_ID:
+        case SECRET_KEY_RING_BY_MASTER_KEY_ID:
+        case SECRET_KEY_RING_BY_KEY_ID:
+        case SECRET_KEY_RING_BY_EMAILS:
+        case SECRET_KEY_RING_BY_LIKE_EMAIL:
+        case SECRET_KEY_RING_BY_SEARCH:
+            userIdColumn = Tables.USER_IDS + "." + UserIdsColumns.USER_ID;
+            idColumn = Tables.KEY_RINGS + "." + BaseColumns._ID;
+            break;
+
+        case PUBLIC_KEY_RING_SUMMARY:
+        case SECRET_KEY_RING_SUMMARY:
+            userIdColumn = Tables.KEY_RING_SUMMARY + "." + KeyRingSummary.USER_ID;
+            idColumn = Tables.KEY_RING_SUMMARY + "." + BaseColumns._ID;
+            break;
+
+        case PUBLIC_KEY_RING_USER_ID:
+        case PUBLIC_KEY_RING_USER_ID_BY_ROW_ID:
+        case SECRET_KEY_RING_USER_ID:
+        case SECRET_KEY_RING_USER_ID_BY_ROW_ID:
+            userIdColumn = Tables.USER_IDS + "." + UserIdsColumns.USER_ID;
+            idColumn = Tables.USER_IDS + "." + BaseColumns._ID;
+            break;
+
+        default:
+            throw new IllegalArgumentException("Keyset pagination not supported for " + uri);
+        }
+
+        String afterUserId = uri.getQueryParameter(KeychainContract.QUERY_PARAMETER_AFTER_USER_ID);
+        String afterId = uri.getQueryParameter(KeychainContract.QUERY_PARAMETER_AFTER_ID);
+        long afterIdValue = -1;
+        if (afterId != null) {
+            try {
+                afterIdValue = Long.parseLong(afterId);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid row id in " + uri);
+            }
+        }
+
+        // all supported queries already have a where clause
+        qb.appendWhere(" AND (");
+        if (afterUserId == null) {
+            qb.appendWhere("(" + userIdColumn + " IS NULL AND " + idColumn + " > " + afterIdValue
+                    + ") OR " + userIdColumn + " IS NOT NULL");
+        } else {
+            String escapedUserId = DatabaseUtils.sqlEscapeString(afterUserId);
+            qb.appendWhere(userIdColumn + " > " + escapedUserId + " OR (" + userIdColumn + " = "
+                    + escapedUserId + " AND " + idColumn + " > " + afterIdValue + ")");
+        }
+        qb.appendWhere(")");
+
+        return userIdColumn + " ASC, " + idColumn + " ASC";
+    }
+
+    /**
+     * Summaries are updated by triggers on changes, but validity also changes over time when keys
+     * expire. Recompute summaries whose validity may have changed since. Whether there are any is
+     * checked with a read on the valid_until index first, so that list queries usually don't
+     * start a write transaction competing with imports.
+     */
+    private void refreshExpiredKeyRingSummaries() {
+        String now = Long.toString(System.currentTimeMillis() / 1000);
+        String expired = "SELECT " + BaseColumns._ID + " FROM " + Tables.KEY_RING_SUMMARY
+                + " WHERE " + KeyRingSummary.VALID_UNTIL + " < " + now;
+
+        if (DatabaseUtils.longForQuery(mApgDatabase.getReadableDatabase(), "SELECT EXISTS ("
+                + expired + ")", null) == 0) {
+            return;
+        }
+
+        final SQLiteDatabase db = mApgDatabase.getWritableDatabase();
+        db.execSQL(KeychainDatabase.buildRefreshKeyRingSummary(Tables.KEY_RINGS + "."
+                + BaseColumns._ID + " IN (" + expired + ")", now));
+    }
+
     /** {@inheritDoc} */
     @Override
     public Uri insert(Uri uri, ContentValues values) {
         Log.d(Constants.TAG, "insert(uri=" + uri + ", values=" + values.toString() + ")");
+        long startTime = System.nanoTime();
 
         final SQLiteDatabase db = mApgDatabase.getWritableDatabase();
 
         Uri rowUri = null;
         long rowId = -1;
+        final int match = mUriMatcher.match(uri);
         try {
-            final int match = mUriMatcher.match(uri);
-
             switch (match) {
             case PUBLIC_KEY_RING:
                 values.put(KeyRings.TYPE, KeyTypes.PUBLIC);
 
-                rowId = db.insertOrThrow(Tables.KEY_RINGS, null, values);
+                rowId = insertWithBlob(db, Tables.KEY_RINGS, Tables.KEY_RING_BLOBS,
+                        KeyRings.KEY_RING_DATA, values);
                 rowUri = KeyRings.buildPublicKeyRingsUri(Long.toString(rowId));
 
                 break;
             case PUBLIC_KEY_RING_KEY:
                 values.put(Keys.TYPE, KeyTypes.PUBLIC);
 
-                rowId = db.insertOrThrow(Tables.KEYS, null, values);
+                rowId = insertWithBlob(db, Tables.KEYS, Tables.KEY_BLOBS, Keys.KEY_DATA, values);
                 rowUri = Keys.buildPublicKeysUri(Long.toString(rowId));
 
                 break;
@@ -670,14 +1172,15 @@ public class KeychainProvider extends ContentProvider {
             case SECRET_KEY_RING:
                 values.put(KeyRings.TYPE, KeyTypes.SECRET);
 
-                rowId = db.insertOrThrow(Tables.KEY_RINGS, null, values);
+                rowId = insertWithBlob(db, Tables.KEY_RINGS, Tables.KEY_RING_BLOBS,
+                        KeyRings.KEY_RING_DATA, values);
                 rowUri = KeyRings.buildSecretKeyRingsUri(Long.toString(rowId));
 
                 break;
             case SECRET_KEY_RING_KEY:
                 values.put(Keys.TYPE, KeyTypes.SECRET);
 
-                rowId = db.insertOrThrow(Tables.KEYS, null, values);
+                rowId = insertWithBlob(db, Tables.KEYS, Tables.KEY_BLOBS, Keys.KEY_DATA, values);
                 rowUri = Keys.buildSecretKeysUri(Long.toString(rowId));
 
                 break;
@@ -691,13 +1194,15 @@ public class KeychainProvider extends ContentProvider {
             }
 
             // notify of changes in db
-            getContext().getContentResolver().notifyChange(uri, null);
-            sendBroadcastDatabaseChange(getKeyType(match), getType(uri));
+            notifyChange(uri, match);
 
         } catch (SQLiteConstraintException e) {
             Log.e(Constants.TAG, "Constraint exception on insert! Entry already existing?");
         }
 
+        sStatistics.record(match, ProviderStatistics.OPERATION_INSERT, System.nanoTime()
+                - startTime, (rowUri != null) ? 1 : 0);
+
         return rowUri;
     }
 
@@ -705,6 +1210,7 @@ public class KeychainProvider extends ContentProvider {
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
         Log.v(Constants.TAG, "delete(uri=" + uri + ")");
+        long startTime = System.nanoTime();
 
         final SQLiteDatabase db = mApgDatabase.getWritableDatabase();
 
@@ -744,8 +1250,10 @@ public class KeychainProvider extends ContentProvider {
         }
 
         // notify of changes in db
-        getContext().getContentResolver().notifyChange(uri, null);
-        sendBroadcastDatabaseChange(getKeyType(match), getType(uri));
+        notifyChange(uri, match);
+
+        sStatistics.record(match, ProviderStatistics.OPERATION_DELETE, System.nanoTime()
+                - startTime, count);
 
         return count;
     }
@@ -754,40 +1262,38 @@ public class KeychainProvider extends ContentProvider {
     @Override
     public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
         Log.v(Constants.TAG, "update(uri=" + uri + ", values=" + values.toString() + ")");
+        long startTime = System.nanoTime();
 
         final SQLiteDatabase db = mApgDatabase.getWritableDatabase();
 
         String defaultSelection = null;
         int count = 0;
+        final int match = mUriMatcher.match(uri);
         try {
-            final int match = mUriMatcher.match(uri);
             switch (match) {
             case PUBLIC_KEY_RING_BY_ROW_ID:
             case SECRET_KEY_RING_BY_ROW_ID:
                 defaultSelection = BaseColumns._ID + "=" + uri.getLastPathSegment();
+                checkNoKeyRingDataUpdate(values);
 
-                count = db.update(
-                        Tables.KEY_RINGS,
-                        values,
+                count = db.update(Tables.KEY_RINGS, values,
                         buildDefaultKeyRingsSelection(defaultSelection, getKeyType(match),
                                 selection), selectionArgs);
                 break;
             case PUBLIC_KEY_RING_BY_MASTER_KEY_ID:
             case SECRET_KEY_RING_BY_MASTER_KEY_ID:
                 defaultSelection = KeyRings.MASTER_KEY_ID + "=" + uri.getLastPathSegment();
+                checkNoKeyRingDataUpdate(values);
 
-                count = db.update(
-                        Tables.KEY_RINGS,
-                        values,
+                count = db.update(Tables.KEY_RINGS, values,
                         buildDefaultKeyRingsSelection(defaultSelection, getKeyType(match),
                                 selection), selectionArgs);
                 break;
             case PUBLIC_KEY_RING_KEY_BY_ROW_ID:
             case SECRET_KEY_RING_KEY_BY_ROW_ID:
-                count = db
-                        .update(Tables.KEYS, values,
-                                buildDefaultKeysSelection(uri, getKeyType(match), selection),
-                                selectionArgs);
+                count = updateWithBlob(db, Tables.KEYS, Tables.KEY_BLOBS, Keys.KEY_DATA, values,
+                        buildDefaultKeysSelection(uri, getKeyType(match), selection),
+                        selectionArgs);
                 break;
             case PUBLIC_KEY_RING_USER_ID_BY_ROW_ID:
             case SECRET_KEY_RING_USER_ID_BY_ROW_ID:
@@ -799,16 +1305,416 @@ public class KeychainProvider extends ContentProvider {
             }
 
             // notify of changes in db
-            getContext().getContentResolver().notifyChange(uri, null);
-            sendBroadcastDatabaseChange(getKeyType(match), getType(uri));
+            notifyChange(uri, match);
 
         } catch (SQLiteConstraintException e) {
             Log.e(Constants.TAG, "Constraint exception on update! Entry already existing?");
         }
 
+        sStatistics.record(match, ProviderStatistics.OPERATION_UPDATE, System.nanoTime()
+                - startTime, count);
+
         return count;
     }
 
+    /**
+     * Keys are stored as slices of their keyRing blob, which would point into the old layout
+     * after the blob is replaced. A changed keyRing has to be saved by deleting and inserting it
+     * with its keys, see ProviderHelper.saveKeyRing.
+     * 
+     * @param values
+     */
+    private static void checkNoKeyRingDataUpdate(ContentValues values) {
+        if (values.containsKey(KeyRings.KEY_RING_DATA)) {
+            throw new IllegalArgumentException(KeyRings.KEY_RING_DATA
+                    + " can not be updated, delete and insert the keyRing instead");
+        }
+    }
+
+    /**
+     * Inserts values into table, the blob column is stored in its own row of blobTable with the
+     * same _ID
+     * 
+     * @param db
+     * @param table
+     * @param blobTable
+     * @param blobColumn
+     * @param values
+     * @return row id
+     */
+    private long insertWithBlob(SQLiteDatabase db, String table, String blobTable,
+            String blobColumn, ContentValues values) {
+        byte[] blob = values.getAsByteArray(blobColumn);
+        values.remove(blobColumn);
+
+        db.beginTransaction();
+        try {
+            long rowId = db.insertOrThrow(table, null, values);
+            if (blob != null) {
+                ContentValues blobValues = new ContentValues();
+                blobValues.put(BaseColumns._ID, rowId);
+                blobValues.put(blobColumn, blob);
+                db.insertOrThrow(blobTable, null, blobValues);
+            }
+            db.setTransactionSuccessful();
+            return rowId;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Updates rows of table, a new value of the blob column is written to blobTable
+     * 
+     * @param db
+     * @param table
+     * @param blobTable
+     * @param blobColumn
+     * @param values
+     * @param selection
+     * @param selectionArgs
+     * @return number of updated rows of table
+     */
+    private int updateWithBlob(SQLiteDatabase db, String table, String blobTable,
+            String blobColumn, ContentValues values, String selection, String[] selectionArgs) {
+        if (!values.containsKey(blobColumn)) {
+            return db.update(table, values, selection, selectionArgs);
+        }
+
+        byte[] blob = values.getAsByteArray(blobColumn);
+        values.remove(blobColumn);
+
+        db.beginTransaction();
+        try {
+            // select rows before the update, values may change columns used in selection
+            Object[] bindArgs = new Object[1 + (selectionArgs == null ? 0 : selectionArgs.length)];
+            bindArgs[0] = blob;
+            if (selectionArgs != null) {
+                System.arraycopy(selectionArgs, 0, bindArgs, 1, selectionArgs.length);
+            }
+            db.execSQL("INSERT OR REPLACE INTO " + blobTable + " (" + BaseColumns._ID + ", "
+                    + blobColumn + ") SELECT " + BaseColumns._ID + ", ? FROM " + table + " WHERE "
+                    + selection, bindArgs);
+
+            int count;
+            if (values.size() > 0) {
+                count = db.update(table, values, selection, selectionArgs);
+            } else {
+                count = (int) DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM " + table
+                        + " WHERE " + selection, selectionArgs);
+            }
+            db.setTransactionSuccessful();
+            return count;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Applies all operations in one transaction. Saving a keyRing deletes its old version and
+     * inserts the new keyRing with its keys and userIds, which is atomic this way. It also avoids
+     * one commit per inserted row when importing many keyRings. Change notifications are
+     * coalesced into one per base uri, sent after the commit.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = mApgDatabase.getWritableDatabase();
+        boolean outermostBatch = beginBatch();
+        boolean successful = false;
+        db.beginTransaction();
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            successful = true;
+            return results;
+        } finally {
+            db.endTransaction();
+            if (outermostBatch) {
+                endBatch(successful);
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        final SQLiteDatabase db = mApgDatabase.getWritableDatabase();
+        boolean outermostBatch = beginBatch();
+        boolean successful = false;
+        db.beginTransaction();
+        try {
+            int count = super.bulkInsert(uri, values);
+            db.setTransactionSuccessful();
+            successful = true;
+            return count;
+        } finally {
+            db.endTransaction();
+            if (outermostBatch) {
+                endBatch(successful);
+            }
+        }
+    }
+
+    /**
+     * Starts suppressing change notifications on this thread
+     * 
+     * @return false if a batch is already running on this thread
+     */
+    private boolean beginBatch() {
+        if (mPendingNotifications.get() != null) {
+            return false;
+        }
+        mPendingNotifications.set(new PendingNotifications());
+        return true;
+    }
+
+    /**
+     * Stops suppressing change notifications on this thread and sends one notification per base
+     * uri changed during the batch, if it has been committed. The in-memory caches are
+     * invalidated again after the commit. The database change broadcast is sent once per key type
+     * and content type of the changed uris.
+     * 
+     * @param successful
+     */
+    private void endBatch(boolean successful) {
+        PendingNotifications pending = mPendingNotifications.get();
+        mPendingNotifications.set(null);
+        if (!successful || pending.count == 0) {
+            return;
+        }
+
+        // notifyChange invalidated before the commit, readers may have loaded the old state since
+        KeyRingCache.invalidateIfCreated();
+        KeyIdIndex.invalidateIfCreated();
+
+        for (Uri baseUri : pending.baseUris) {
+            getContext().getContentResolver().notifyChange(baseUri, null);
+        }
+        for (Pair<Integer, String> broadcast : pending.broadcasts) {
+            sendBroadcastDatabaseChange(broadcast.first, broadcast.second);
+        }
+
+        long elided = sElidedNotificationCount.addAndGet(pending.count - pending.baseUris.size());
+        Log.d(Constants.TAG, "Coalesced " + pending.count + " change notifications into "
+                + pending.baseUris.size() + ", " + elided + " elided in total");
+    }
+
+    /**
+     * Invalidates the in-memory caches and notifies observers of the change of uri. Inside a
+     * batch the notification is deferred to {@link #endBatch(boolean)}, which notifies the base
+     * uri of the change instead, e.g. key_rings/public for key_rings/public/1/keys. Observers of
+     * all uris below are notified by it as well.
+     * 
+     * @param uri
+     * @param match
+     */
+    private void notifyChange(Uri uri, int match) {
+        KeyRingCache.invalidateIfCreated();
+        KeyIdIndex.invalidateIfCreated();
+
+        PendingNotifications pending = mPendingNotifications.get();
+        if (pending != null) {
+            pending.baseUris.add(getBaseUri(uri));
+            pending.broadcasts.add(Pair.create(getKeyType(match), getType(uri)));
+            ++pending.count;
+        } else {
+            getContext().getContentResolver().notifyChange(uri, null);
+            sendBroadcastDatabaseChange(getKeyType(match), getType(uri));
+        }
+    }
+
+    /**
+     * @param uri
+     * @return uri with only the first two path segments, e.g. key_rings/public
+     */
+    private static Uri getBaseUri(Uri uri) {
+        Uri.Builder builder = new Uri.Builder().scheme(uri.getScheme()).authority(
+                uri.getAuthority());
+        List<String> segments = uri.getPathSegments();
+        for (int i = 0; i < Math.min(2, segments.size()); ++i) {
+            builder.appendPath(segments.get(i));
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return number of change notifications not sent since the start of this process, because
+     *         they were coalesced into one notification per base uri of a batch
+     */
+    public static long getElidedNotificationCount() {
+        return sElidedNotificationCount.get();
+    }
+
+    /**
+     * @return statistics of the operations of both providers since the start of this process
+     */
+    public static ProviderStatistics getStatistics() {
+        return sStatistics;
+    }
+
+    /**
+     * Writes the statistics of operations, called by "dumpsys activity provider" from Android 4.3
+     * on. ContentProvider.dump is not part of the API level this is built against, so this can't
+     * be annotated with Override.
+     * 
+     * @param fd
+     * @param writer
+     * @param args
+     */
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("elided change notifications: " + getElidedNotificationCount());
+        sStatistics.dump(writer);
+        KeyRingCache cache = KeyRingCache.getInstanceIfCreated();
+        writer.println((cache != null) ? cache : "KeyRingCache not used");
+        PrivateKeyCache.getInstance().dump(writer);
+    }
+
+    /**
+     * Counts the bytes of blobs read from a query result and adds them to the statistics when it
+     * is closed. Blobs read in this process are counted by {@link #getBlob(int)}, blobs read by
+     * other processes as they are copied into the windows filled for them.
+     */
+    private static class BlobCountingCursor extends CursorWrapper implements CrossProcessCursor {
+        private final AbstractWindowedCursor mCursor;
+        private final int mMatch;
+        private long mBlobBytes = 0;
+
+        public BlobCountingCursor(AbstractWindowedCursor cursor, int match) {
+            super(cursor);
+            mCursor = cursor;
+            mMatch = match;
+        }
+
+        @Override
+        public byte[] getBlob(int columnIndex) {
+            byte[] blob = super.getBlob(columnIndex);
+            if (blob != null) {
+                mBlobBytes += blob.length;
+            }
+            return blob;
+        }
+
+        @Override
+        public void close() {
+            super.close();
+            if (mBlobBytes > 0) {
+                sStatistics.recordBlobBytes(mMatch, mBlobBytes);
+                mBlobBytes = 0;
+            }
+        }
+
+        /**
+         * No window of its own, so that every window sent to another process, including the
+         * first one, is filled by {@link #fillWindow(int, CursorWindow)}
+         */
+        @Override
+        public CursorWindow getWindow() {
+            return null;
+        }
+
+        /**
+         * Fills window row by row like AbstractCursor.fillWindow does. CursorWindow has no way to
+         * get the length of a blob without copying it, so each blob is counted while it is
+         * copied into window, instead of being read out of window once more.
+         */
+        @Override
+        public void fillWindow(int position, CursorWindow window) {
+            if (position < 0 || position >= mCursor.getCount()) {
+                return;
+            }
+
+            int oldPosition = mCursor.getPosition();
+            int columns = mCursor.getColumnCount();
+            window.clear();
+            window.setStartPosition(position);
+            window.setNumColumns(columns);
+            if (mCursor.moveToPosition(position)) {
+                int row = position;
+                do {
+                    if (!window.allocRow()) {
+                        break;
+                    }
+                    if (!fillRow(window, row, columns)) {
+                        window.freeLastRow();
+                        break;
+                    }
+                    ++row;
+                } while (mCursor.moveToNext());
+            }
+            mCursor.moveToPosition(oldPosition);
+        }
+
+        /**
+         * getType is not available before API level 11, isBlob is also true for null fields
+         * 
+         * @return false if the window is full
+         */
+        @SuppressWarnings("deprecation")
+        private boolean fillRow(CursorWindow window, int row, int columns) {
+            for (int column = 0; column < columns; ++column) {
+                boolean success;
+                if (mCursor.isNull(column)) {
+                    success = window.putNull(row, column);
+                } else if (mCursor.isBlob(column)) {
+                    byte[] blob = mCursor.getBlob(column);
+                    success = window.putBlob(blob, row, column);
+                    if (success) {
+                        mBlobBytes += blob.length;
+                    }
+                } else if (mCursor.isLong(column)) {
+                    success = window.putLong(mCursor.getLong(column), row, column);
+                } else if (mCursor.isFloat(column)) {
+                    success = window.putDouble(mCursor.getDouble(column), row, column);
+                } else {
+                    success = window.putString(mCursor.getString(column), row, column);
+                }
+                if (!success) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public boolean onMove(int oldPosition, int newPosition) {
+            return mCursor.onMove(oldPosition, newPosition);
+        }
+    }
+
+    /**
+     * Builds a MATCH query for the user id full text index: the search is split into tokens like
+     * the default tokenizer does, every token has to be a prefix of a word in the user id, e.g.
+     * "ali exam" matches "Alice <alice@example.com>"
+     * 
+     * @param search
+     * @return query or null if search contains no tokens
+     */
+    private static String buildUserIdsFtsMatchQuery(String search) {
+        if (search == null) {
+            return null;
+        }
+
+        StringBuilder matchQuery = new StringBuilder();
+        for (String token : search.split("[^\\p{L}\\p{N}]+")) {
+            if (token.length() == 0) {
+                continue;
+            }
+            if (matchQuery.length() != 0) {
+                matchQuery.append(' ');
+            }
+            // upper case operators would not be taken as search tokens, the index is case
+            // insensitive for ASCII anyway
+            if (token.equals("OR") || token.equals("AND") || token.equals("NOT")
+                    || token.startsWith("NEAR")) {
+                token = token.toLowerCase(Locale.ENGLISH);
+            }
+            matchQuery.append(token).append('*');
+        }
+
+        return (matchQuery.length() == 0) ? null : matchQuery.toString();
+    }
+
     /**
      * Build default selection statement for KeyRings. If no extra selection is specified only build
      * where clause with rowId
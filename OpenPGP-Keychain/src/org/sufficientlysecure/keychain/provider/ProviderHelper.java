@@ -17,9 +17,18 @@
 package org.sufficientlysecure.keychain.provider;
 
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
 
 import org.spongycastle.bcpg.ArmoredOutputStream;
 import org.spongycastle.openpgp.PGPKeyRing;
@@ -28,16 +37,23 @@ import org.spongycastle.openpgp.PGPPublicKeyRing;
 import org.spongycastle.openpgp.PGPSecretKey;
 import org.spongycastle.openpgp.PGPSecretKeyRing;
 import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.Id;
+import org.sufficientlysecure.keychain.helper.OtherHelper;
 import org.sufficientlysecure.keychain.helper.PgpConversionHelper;
 import org.sufficientlysecure.keychain.helper.PgpHelper;
 import org.sufficientlysecure.keychain.helper.PgpMain;
+import org.sufficientlysecure.keychain.helper.PrivateKeyCache;
 import org.sufficientlysecure.keychain.provider.KeychainContract.CryptoConsumers;
+import org.sufficientlysecure.keychain.provider.KeychainContract.DeletedKeyRings;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyTypes;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Keys;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserIds;
 import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
 import org.sufficientlysecure.keychain.util.IterableIterator;
 import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.LongLongHashMap;
+import org.sufficientlysecure.keychain.util.ProgressDialogUpdater;
 
 import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
@@ -45,12 +61,28 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.OperationApplicationException;
 import android.database.Cursor;
-import android.database.DatabaseUtils;
 import android.net.Uri;
 import android.os.RemoteException;
 
 public class ProviderHelper {
 
+    /**
+     * Keys and userIds are inserted in the same batch as their keyRing, whose row id is not known
+     * until the keyRing insert has been applied. It is set by a value back reference, the row id
+     * in the uri of these inserts only selects the table.
+     */
+    private static final String BATCH_KEY_RING_ROW_ID = "0";
+
+    /** SQLite's default limit of bound variables in one statement */
+    private static final int MAX_SQL_VARIABLES = 999;
+
+    /** first int of a keyRing delta, "KRD" and the format version */
+    private static final int KEY_RING_DELTA_MAGIC = 0x4b524401;
+
+    private static final int KEY_RING_DELTA_END = 0;
+    private static final int KEY_RING_DELTA_SAVE = 1;
+    private static final int KEY_RING_DELTA_DELETE = 2;
+
     /**
      * Private helper method to get PGPKeyRing from database
      * 
@@ -59,6 +91,8 @@ public class ProviderHelper {
      * @return
      */
     private static PGPKeyRing getPGPKeyRing(Context context, Uri queryUri) {
+        KeyRingCache cache = KeyRingCache.getInstance(context);
+        int generation = cache.getGeneration();
         Cursor cursor = context.getContentResolver().query(queryUri,
                 new String[] { KeyRings._ID, KeyRings.KEY_RING_DATA }, null, null, null);
 
@@ -69,6 +103,7 @@ public class ProviderHelper {
             byte[] data = cursor.getBlob(keyRingDataCol);
             if (data != null) {
                 keyRing = PgpConversionHelper.BytesToPGPKeyRing(data);
+                cache.put(keyRing, data.length, generation);
             }
         }
 
@@ -79,6 +114,51 @@ public class ProviderHelper {
         return keyRing;
     }
 
+    /**
+     * Private helper method to get PGPKeyRing by master key id, from cache if possible
+     * 
+     * @param context
+     * @param type
+     * @param masterKeyId
+     * @param queryUri
+     * @return
+     */
+    private static PGPKeyRing getPGPKeyRingByMasterKeyId(Context context, int type,
+            long masterKeyId, Uri queryUri) {
+        PGPKeyRing keyRing = KeyRingCache.getInstance(context).getByMasterKeyId(type, masterKeyId);
+        if (keyRing == null) {
+            keyRing = getPGPKeyRing(context, queryUri);
+        }
+        return keyRing;
+    }
+
+    /**
+     * Private helper method to get PGPKeyRing by id of any contained key, from cache if possible.
+     * The key id is resolved to its master key id by the {@link KeyIdIndex}.
+     * 
+     * @param context
+     * @param type
+     * @param keyId
+     * @return
+     */
+    private static PGPKeyRing getPGPKeyRingByKeyId(Context context, int type, long keyId) {
+        PGPKeyRing keyRing = KeyRingCache.getInstance(context).getByKeyId(type, keyId);
+        if (keyRing != null) {
+            return keyRing;
+        }
+
+        long masterKeyId = KeyIdIndex.getInstance(context).getMasterKeyId(type, keyId);
+        if (masterKeyId == Id.key.none) {
+            return null;
+        }
+
+        String masterKeyIdString = Long.toString(masterKeyId);
+        Uri queryUri = (type == KeyTypes.SECRET) ? KeyRings
+                .buildSecretKeyRingsByMasterKeyIdUri(masterKeyIdString) : KeyRings
+                .buildPublicKeyRingsByMasterKeyIdUri(masterKeyIdString);
+        return getPGPKeyRing(context, queryUri);
+    }
+
     /**
      * Retrieves the actual PGPPublicKeyRing object from the database blob based on the rowId
      * 
@@ -101,7 +181,8 @@ public class ProviderHelper {
     public static PGPPublicKeyRing getPGPPublicKeyRingByMasterKeyId(Context context,
             long masterKeyId) {
         Uri queryUri = KeyRings.buildPublicKeyRingsByMasterKeyIdUri(Long.toString(masterKeyId));
-        return (PGPPublicKeyRing) getPGPKeyRing(context, queryUri);
+        return (PGPPublicKeyRing) getPGPKeyRingByMasterKeyId(context, KeyTypes.PUBLIC,
+                masterKeyId, queryUri);
     }
 
     /**
@@ -113,8 +194,7 @@ public class ProviderHelper {
      * @return
      */
     public static PGPPublicKeyRing getPGPPublicKeyRingByKeyId(Context context, long keyId) {
-        Uri queryUri = KeyRings.buildPublicKeyRingsByKeyIdUri(Long.toString(keyId));
-        return (PGPPublicKeyRing) getPGPKeyRing(context, queryUri);
+        return (PGPPublicKeyRing) getPGPKeyRingByKeyId(context, KeyTypes.PUBLIC, keyId);
     }
 
     /**
@@ -156,7 +236,8 @@ public class ProviderHelper {
     public static PGPSecretKeyRing getPGPSecretKeyRingByMasterKeyId(Context context,
             long masterKeyId) {
         Uri queryUri = KeyRings.buildSecretKeyRingsByMasterKeyIdUri(Long.toString(masterKeyId));
-        return (PGPSecretKeyRing) getPGPKeyRing(context, queryUri);
+        return (PGPSecretKeyRing) getPGPKeyRingByMasterKeyId(context, KeyTypes.SECRET,
+                masterKeyId, queryUri);
     }
 
     /**
@@ -168,8 +249,7 @@ public class ProviderHelper {
      * @return
      */
     public static PGPSecretKeyRing getPGPSecretKeyRingByKeyId(Context context, long keyId) {
-        Uri queryUri = KeyRings.buildSecretKeyRingsByKeyIdUri(Long.toString(keyId));
-        return (PGPSecretKeyRing) getPGPKeyRing(context, queryUri);
+        return (PGPSecretKeyRing) getPGPKeyRingByKeyId(context, KeyTypes.SECRET, keyId);
     }
 
     /**
@@ -190,7 +270,175 @@ public class ProviderHelper {
     }
 
     /**
-     * Saves PGPPublicKeyRing with its keys and userIds in DB
+     * Retrieves PGPPublicKeyRings for several master key ids at once, see
+     * {@link #getPGPKeyRings(Context, int, long[], boolean)}
+     * 
+     * @param context
+     * @param masterKeyIds
+     * @return keyRings by master key id, unknown master key ids are missing
+     */
+    public static HashMap<Long, PGPPublicKeyRing> getPGPPublicKeyRingsByMasterKeyIds(
+            Context context, long[] masterKeyIds) {
+        HashMap<Long, PGPKeyRing> keyRings = getPGPKeyRings(context, KeyTypes.PUBLIC,
+                masterKeyIds, false);
+
+        HashMap<Long, PGPPublicKeyRing> publicKeyRings = new HashMap<Long, PGPPublicKeyRing>();
+        for (Long masterKeyId : keyRings.keySet()) {
+            publicKeyRings.put(masterKeyId, (PGPPublicKeyRing) keyRings.get(masterKeyId));
+        }
+        return publicKeyRings;
+    }
+
+    /**
+     * Retrieves PGPSecretKeys for several key ids at once, see
+     * {@link #getPGPKeyRings(Context, int, long[], boolean)}
+     * 
+     * @param context
+     * @param keyIds
+     * @return secret keys by key id, unknown key ids are missing
+     */
+    public static HashMap<Long, PGPSecretKey> getPGPSecretKeysByKeyIds(Context context,
+            long[] keyIds) {
+        HashMap<Long, PGPKeyRing> keyRings = getPGPKeyRings(context, KeyTypes.SECRET, keyIds,
+                true);
+
+        HashMap<Long, PGPSecretKey> secretKeys = new HashMap<Long, PGPSecretKey>();
+        for (Long keyId : keyRings.keySet()) {
+            PGPSecretKey secretKey = ((PGPSecretKeyRing) keyRings.get(keyId)).getSecretKey(keyId);
+            if (secretKey != null) {
+                secretKeys.put(keyId, secretKey);
+            }
+        }
+        return secretKeys;
+    }
+
+    /**
+     * Helper method to get several PGPKeyRings. KeyRings are taken from the cache if
+     * possible, all others are loaded with one query per {@link #MAX_SQL_VARIABLES} ids. Key ids
+     * without key, as resolved by the {@link KeyIdIndex}, are skipped.
+     * 
+     * @param context
+     * @param type
+     * @param ids
+     * @param byKeyId
+     *            ids are ids of any contained key, otherwise master key ids
+     * @return keyRings by requested id
+     */
+    @SuppressWarnings("unchecked")
+    static HashMap<Long, PGPKeyRing> getPGPKeyRings(Context context, int type,
+            long[] ids, boolean byKeyId) {
+        HashMap<Long, PGPKeyRing> keyRings = new HashMap<Long, PGPKeyRing>();
+        KeyRingCache cache = KeyRingCache.getInstance(context);
+        // taken before the queries, rings of a query overlapping an invalidation are not cached
+        int generation = cache.getGeneration();
+        LongLongHashMap masterKeyIds = byKeyId ? KeyIdIndex.getInstance(context)
+                .getMasterKeyIds(type, ids) : null;
+
+        ArrayList<Long> missingIds = new ArrayList<Long>();
+        for (long id : ids) {
+            if (keyRings.containsKey(id) || missingIds.contains(id)) {
+                continue;
+            }
+            // most recipient key ids of a message have no secret key, don't load keyRings for them
+            if (byKeyId && !masterKeyIds.containsKey(id)) {
+                continue;
+            }
+            PGPKeyRing keyRing = byKeyId ? cache.getByKeyId(type, id) : cache.getByMasterKeyId(
+                    type, id);
+            if (keyRing != null) {
+                keyRings.put(id, keyRing);
+            } else {
+                missingIds.add(id);
+            }
+        }
+
+        Uri queryUri = (type == KeyTypes.SECRET) ? KeyRings.buildSecretKeyRingsUri() : KeyRings
+                .buildPublicKeyRingsUri();
+        for (int start = 0; start < missingIds.size(); start += MAX_SQL_VARIABLES) {
+            int end = Math.min(start + MAX_SQL_VARIABLES, missingIds.size());
+
+            String[] selectionArgs = new String[end - start];
+            StringBuilder placeholders = new StringBuilder();
+            for (int i = start; i < end; ++i) {
+                if (i != start) {
+                    placeholders.append(", ");
+                }
+                placeholders.append('?');
+                selectionArgs[i - start] = Long.toString(missingIds.get(i));
+            }
+
+            String selection;
+            if (byKeyId) {
+                selection = Tables.KEY_RINGS + "." + KeyRings._ID + " IN (SELECT "
+                        + Keys.KEY_RING_ROW_ID + " FROM " + Tables.KEYS + " WHERE " + Keys.KEY_ID
+                        + " IN (" + placeholders + "))";
+            } else {
+                selection = Tables.KEY_RINGS + "." + KeyRings.MASTER_KEY_ID + " IN ("
+                        + placeholders + ")";
+            }
+
+            Cursor cursor = context.getContentResolver().query(queryUri,
+                    new String[] { KeyRings._ID, KeyRings.KEY_RING_DATA }, selection,
+                    selectionArgs, null);
+            if (cursor == null) {
+                continue;
+            }
+
+            // map all ids of the loaded keyRings to find the requested ones
+            HashMap<Long, PGPKeyRing> loaded = new HashMap<Long, PGPKeyRing>();
+            try {
+                int keyRingDataCol = cursor.getColumnIndex(KeyRings.KEY_RING_DATA);
+                while (cursor.moveToNext()) {
+                    byte[] data = cursor.getBlob(keyRingDataCol);
+                    if (data == null) {
+                        continue;
+                    }
+
+                    PGPKeyRing keyRing = PgpConversionHelper.BytesToPGPKeyRing(data);
+                    if (keyRing instanceof PGPSecretKeyRing) {
+                        PGPSecretKeyRing secretKeyRing = (PGPSecretKeyRing) keyRing;
+                        if (byKeyId) {
+                            for (PGPSecretKey key : new IterableIterator<PGPSecretKey>(
+                                    secretKeyRing.getSecretKeys())) {
+                                loaded.put(key.getKeyID(), keyRing);
+                            }
+                        } else {
+                            loaded.put(secretKeyRing.getSecretKey().getKeyID(), keyRing);
+                        }
+                    } else if (keyRing instanceof PGPPublicKeyRing) {
+                        PGPPublicKeyRing publicKeyRing = (PGPPublicKeyRing) keyRing;
+                        if (byKeyId) {
+                            for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(
+                                    publicKeyRing.getPublicKeys())) {
+                                loaded.put(key.getKeyID(), keyRing);
+                            }
+                        } else {
+                            loaded.put(publicKeyRing.getPublicKey().getKeyID(), keyRing);
+                        }
+                    } else {
+                        continue;
+                    }
+                    cache.put(keyRing, data.length, generation);
+                }
+            } finally {
+                cursor.close();
+            }
+
+            for (int i = start; i < end; ++i) {
+                long id = missingIds.get(i);
+                PGPKeyRing keyRing = loaded.get(id);
+                if (keyRing != null) {
+                    keyRings.put(id, keyRing);
+                }
+            }
+        }
+
+        return keyRings;
+    }
+
+    /**
+     * Saves PGPPublicKeyRing with its keys and userIds in DB. The old version of this keyRing is
+     * replaced in one transaction.
      * 
      * @param context
      * @param keyRing
@@ -198,123 +446,387 @@ public class ProviderHelper {
      * @throws IOException
      * @throws GeneralException
      */
-    @SuppressWarnings("unchecked")
     public static void saveKeyRing(Context context, PGPPublicKeyRing keyRing) throws IOException {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        byte[] encoded = keyRing.getEncoded();
+        buildSaveKeyRingOperations(context, operations, keyRing, encoded,
+                getKeyRingDataHash(encoded));
+
+        applySaveKeyRingOperations(context, operations);
+    }
+
+    /**
+     * Saves PGPSecretKeyRing with its keys and userIds in DB. The old version of this keyRing is
+     * replaced in one transaction.
+     * 
+     * @param context
+     * @param keyRing
+     * @return
+     * @throws IOException
+     * @throws GeneralException
+     */
+    public static void saveKeyRing(Context context, PGPSecretKeyRing keyRing) throws IOException {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        byte[] encoded = keyRing.getEncoded();
+        buildSaveKeyRingOperations(context, operations, keyRing, encoded,
+                getKeyRingDataHash(encoded));
+
+        applySaveKeyRingOperations(context, operations);
+    }
+
+    /**
+     * Saves several PGPPublicKeyRings and PGPSecretKeyRings in one transaction. KeyRings which
+     * are already stored with identical content are skipped. If the batch fails, the changed
+     * keyRings are saved one by one, so that a single broken keyRing does not discard the others.
+     * 
+     * @param context
+     * @param keyRings
+     * @return number of keyRings which were already stored before, changed or not
+     * @throws IOException
+     */
+    public static int saveKeyRings(Context context, List<PGPKeyRing> keyRings)
+            throws IOException {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        ArrayList<PGPKeyRing> changedKeyRings = new ArrayList<PGPKeyRing>();
+        int existing = buildSaveKeyRingsOperations(context, operations, keyRings,
+                changedKeyRings);
+
+        if (operations.isEmpty()) {
+            return existing;
+        }
+
+        try {
+            context.getContentResolver().applyBatch(KeychainContract.CONTENT_AUTHORITY_INTERNAL,
+                    operations);
+        } catch (RemoteException e) {
+            Log.e(Constants.TAG, "applyBatch failed, saving keyRings one by one!", e);
+            saveKeyRingsSeparately(context, changedKeyRings);
+        } catch (OperationApplicationException e) {
+            Log.e(Constants.TAG, "applyBatch failed, saving keyRings one by one!", e);
+            saveKeyRingsSeparately(context, changedKeyRings);
+        }
+
+        // change notifications from the provider arrive asynchronously in this process
+        KeyRingCache.getInstance(context).invalidate();
+        KeyIdIndex.invalidateIfCreated();
+
+        return existing;
+    }
+
+    /**
+     * Append operations saving several keyRings, skipping keyRings which are already stored with
+     * identical content
+     * 
+     * @param context
+     * @param operations
+     * @param keyRings
+     * @param changedKeyRings
+     *            receives the keyRings for which operations have been appended
+     * @return number of keyRings which were already stored before, changed or not
+     * @throws IOException
+     */
+    private static int buildSaveKeyRingsOperations(Context context,
+            ArrayList<ContentProviderOperation> operations, List<PGPKeyRing> keyRings,
+            ArrayList<PGPKeyRing> changedKeyRings) throws IOException {
+        ArrayList<Long> publicMasterKeyIds = new ArrayList<Long>();
+        ArrayList<Long> secretMasterKeyIds = new ArrayList<Long>();
+        for (PGPKeyRing keyRing : keyRings) {
+            if (keyRing instanceof PGPSecretKeyRing) {
+                secretMasterKeyIds.add(((PGPSecretKeyRing) keyRing).getSecretKey().getKeyID());
+            } else if (keyRing instanceof PGPPublicKeyRing) {
+                publicMasterKeyIds.add(((PGPPublicKeyRing) keyRing).getPublicKey().getKeyID());
+            }
+        }
+        HashMap<Long, byte[]> publicHashes = getKeyRingDataHashes(context,
+                KeyRings.buildPublicKeyRingsUri(), publicMasterKeyIds);
+        HashMap<Long, byte[]> secretHashes = getKeyRingDataHashes(context,
+                KeyRings.buildSecretKeyRingsUri(), secretMasterKeyIds);
+
+        int existing = 0;
+        for (PGPKeyRing keyRing : keyRings) {
+            long masterKeyId;
+            HashMap<Long, byte[]> hashes;
+            if (keyRing instanceof PGPSecretKeyRing) {
+                masterKeyId = ((PGPSecretKeyRing) keyRing).getSecretKey().getKeyID();
+                hashes = secretHashes;
+            } else if (keyRing instanceof PGPPublicKeyRing) {
+                masterKeyId = ((PGPPublicKeyRing) keyRing).getPublicKey().getKeyID();
+                hashes = publicHashes;
+            } else {
+                continue;
+            }
+
+            byte[] encoded = keyRing.getEncoded();
+            byte[] hash = getKeyRingDataHash(encoded);
+
+            if (hashes.containsKey(masterKeyId)) {
+                ++existing;
+                if (hash != null && Arrays.equals(hash, hashes.get(masterKeyId))) {
+                    // nothing changed, don't rewrite keyRing with all its keys and userIds
+                    continue;
+                }
+            }
+            // the same keyRing may appear several times in one batch
+            hashes.put(masterKeyId, hash);
+
+            if (keyRing instanceof PGPSecretKeyRing) {
+                buildSaveKeyRingOperations(context, operations, (PGPSecretKeyRing) keyRing,
+                        encoded, hash);
+            } else {
+                buildSaveKeyRingOperations(context, operations, (PGPPublicKeyRing) keyRing,
+                        encoded, hash);
+            }
+            changedKeyRings.add(keyRing);
+        }
+
+        return existing;
+    }
+
+    /**
+     * Get content hashes of stored keyRings
+     * 
+     * @param context
+     * @param baseUri
+     * @param masterKeyIds
+     * @return hashes by master key id, contains null values for keyRings stored without hash
+     */
+    private static HashMap<Long, byte[]> getKeyRingDataHashes(Context context, Uri baseUri,
+            ArrayList<Long> masterKeyIds) {
+        HashMap<Long, byte[]> hashes = new HashMap<Long, byte[]>();
+        if (masterKeyIds.isEmpty()) {
+            return hashes;
+        }
+
+        for (int start = 0; start < masterKeyIds.size(); start += MAX_SQL_VARIABLES) {
+            int end = Math.min(start + MAX_SQL_VARIABLES, masterKeyIds.size());
+
+            String[] selectionArgs = new String[end - start];
+            StringBuilder placeholders = new StringBuilder();
+            for (int i = start; i < end; ++i) {
+                if (i != start) {
+                    placeholders.append(", ");
+                }
+                placeholders.append('?');
+                selectionArgs[i - start] = Long.toString(masterKeyIds.get(i));
+            }
+
+            Cursor cursor = context.getContentResolver().query(baseUri,
+                    new String[] { KeyRings.MASTER_KEY_ID, KeyRings.KEY_RING_DATA_HASH },
+                    KeyRings.MASTER_KEY_ID + " IN (" + placeholders + ")", selectionArgs, null);
+            if (cursor == null) {
+                continue;
+            }
+
+            try {
+                int masterKeyIdCol = cursor.getColumnIndex(KeyRings.MASTER_KEY_ID);
+                int hashCol = cursor.getColumnIndex(KeyRings.KEY_RING_DATA_HASH);
+                while (cursor.moveToNext()) {
+                    hashes.put(cursor.getLong(masterKeyIdCol), cursor.getBlob(hashCol));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        return hashes;
+    }
+
+    /**
+     * Hash of the encoded keyRing, used to detect unchanged keyRings on import
+     * 
+     * @param encoded
+     * @return SHA-256 hash or null if not available
+     */
+    static byte[] getKeyRingDataHash(byte[] encoded) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(encoded);
+        } catch (NoSuchAlgorithmException e) {
+            Log.e(Constants.TAG, "SHA-256 not available!", e);
+            return null;
+        }
+    }
+
+    private static void saveKeyRingsSeparately(Context context, List<PGPKeyRing> keyRings)
+            throws IOException {
+        for (PGPKeyRing keyRing : keyRings) {
+            if (keyRing instanceof PGPSecretKeyRing) {
+                saveKeyRing(context, (PGPSecretKeyRing) keyRing);
+            } else if (keyRing instanceof PGPPublicKeyRing) {
+                saveKeyRing(context, (PGPPublicKeyRing) keyRing);
+            }
+        }
+    }
+
+    private static void applySaveKeyRingOperations(Context context,
+            ArrayList<ContentProviderOperation> operations) {
+        try {
+            context.getContentResolver().applyBatch(KeychainContract.CONTENT_AUTHORITY_INTERNAL,
+                    operations);
+        } catch (RemoteException e) {
+            Log.e(Constants.TAG, "applyBatch failed!", e);
+        } catch (OperationApplicationException e) {
+            Log.e(Constants.TAG, "applyBatch failed!", e);
+        }
+
+        // change notifications from the provider arrive asynchronously in this process
+        KeyRingCache.getInstance(context).invalidate();
+        KeyIdIndex.invalidateIfCreated();
+    }
+
+    /**
+     * Append operations replacing the stored version of this PGPPublicKeyRing: delete the old
+     * keyRing (keys and userIds are deleted on cascade), insert the new one and all its keys and
+     * userIds
+     * 
+     * @param context
+     * @param operations
+     * @param keyRing
+     * @param encoded
+     *            encoded keyRing
+     * @param hash
+     *            hash of encoded keyRing
+     * @throws IOException
+     */
+    @SuppressWarnings("unchecked")
+    private static void buildSaveKeyRingOperations(Context context,
+            ArrayList<ContentProviderOperation> operations, PGPPublicKeyRing keyRing, byte[] encoded,
+            byte[] hash) throws IOException {
         PGPPublicKey masterKey = keyRing.getPublicKey();
         long masterKeyId = masterKey.getKeyID();
 
         // delete old version of this keyRing, which also deletes all keys and userIds on cascade
         Uri deleteUri = KeyRings.buildPublicKeyRingsByMasterKeyIdUri(Long.toString(masterKeyId));
-
-        try {
-            context.getContentResolver().delete(deleteUri, null, null);
-        } catch (UnsupportedOperationException e) {
-            Log.e(Constants.TAG, "Key could not be deleted! Maybe we are creating a new one!", e);
-        }
+        operations.add(ContentProviderOperation.newDelete(deleteUri).build());
 
         ContentValues values = new ContentValues();
         values.put(KeyRings.MASTER_KEY_ID, masterKeyId);
-        values.put(KeyRings.KEY_RING_DATA, keyRing.getEncoded());
+        values.put(KeyRings.KEY_RING_DATA, encoded);
+        values.put(KeyRings.KEY_RING_DATA_HASH, hash);
 
         // insert new version of this keyRing
+        int keyRingIndex = operations.size();
         Uri uri = KeyRings.buildPublicKeyRingsUri();
-        Uri insertedUri = context.getContentResolver().insert(uri, values);
-        long keyRingRowId = Long.valueOf(insertedUri.getLastPathSegment());
+        operations.add(ContentProviderOperation.newInsert(uri).withValues(values).build());
 
         // save all keys and userIds included in keyRing object in database
-        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        ArrayList<byte[]> keysEncoded = new ArrayList<byte[]>();
+        for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(keyRing.getPublicKeys())) {
+            keysEncoded.add(key.getEncoded());
+        }
+        int[] keyDataOffsets = getKeyDataOffsets(keysEncoded, encoded.length);
 
         int rank = 0;
         for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(keyRing.getPublicKeys())) {
-            operations.add(buildPublicKeyOperations(context, keyRingRowId, key, rank));
+            operations.add(buildPublicKeyOperations(context, keyRingIndex, key,
+                    keysEncoded.get(rank), (keyDataOffsets != null) ? keyDataOffsets[rank] : -1,
+                    rank));
             ++rank;
         }
 
         int userIdRank = 0;
         for (String userId : new IterableIterator<String>(masterKey.getUserIDs())) {
-            operations.add(buildPublicUserIdOperations(context, keyRingRowId, userId, userIdRank));
+            operations.add(buildPublicUserIdOperations(context, keyRingIndex, userId, userIdRank));
             ++userIdRank;
         }
-
-        try {
-            context.getContentResolver().applyBatch(KeychainContract.CONTENT_AUTHORITY_INTERNAL,
-                    operations);
-        } catch (RemoteException e) {
-            Log.e(Constants.TAG, "applyBatch failed!", e);
-        } catch (OperationApplicationException e) {
-            Log.e(Constants.TAG, "applyBatch failed!", e);
-        }
     }
 
     /**
-     * Saves PGPSecretKeyRing with its keys and userIds in DB
+     * Append operations replacing the stored version of this PGPSecretKeyRing: delete the old
+     * keyRing (keys and userIds are deleted on cascade), insert the new one and all its keys and
+     * userIds
      * 
      * @param context
+     * @param operations
      * @param keyRing
-     * @return
+     * @param encoded
+     *            encoded keyRing
+     * @param hash
+     *            hash of encoded keyRing
      * @throws IOException
-     * @throws GeneralException
      */
     @SuppressWarnings("unchecked")
-    public static void saveKeyRing(Context context, PGPSecretKeyRing keyRing) throws IOException {
+    private static void buildSaveKeyRingOperations(Context context,
+            ArrayList<ContentProviderOperation> operations, PGPSecretKeyRing keyRing, byte[] encoded,
+            byte[] hash) throws IOException {
         PGPSecretKey masterKey = keyRing.getSecretKey();
         long masterKeyId = masterKey.getKeyID();
 
         // delete old version of this keyRing, which also deletes all keys and userIds on cascade
         Uri deleteUri = KeyRings.buildSecretKeyRingsByMasterKeyIdUri(Long.toString(masterKeyId));
-
-        try {
-            context.getContentResolver().delete(deleteUri, null, null);
-        } catch (UnsupportedOperationException e) {
-            Log.e(Constants.TAG, "Key could not be deleted! Maybe we are creating a new one!", e);
-        }
+        operations.add(ContentProviderOperation.newDelete(deleteUri).build());
 
         ContentValues values = new ContentValues();
         values.put(KeyRings.MASTER_KEY_ID, masterKeyId);
-        values.put(KeyRings.KEY_RING_DATA, keyRing.getEncoded());
+        values.put(KeyRings.KEY_RING_DATA, encoded);
+        values.put(KeyRings.KEY_RING_DATA_HASH, hash);
 
         // insert new version of this keyRing
+        int keyRingIndex = operations.size();
         Uri uri = KeyRings.buildSecretKeyRingsUri();
-        Uri insertedUri = context.getContentResolver().insert(uri, values);
-        long keyRingRowId = Long.valueOf(insertedUri.getLastPathSegment());
+        operations.add(ContentProviderOperation.newInsert(uri).withValues(values).build());
 
         // save all keys and userIds included in keyRing object in database
-        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        ArrayList<byte[]> keysEncoded = new ArrayList<byte[]>();
+        for (PGPSecretKey key : new IterableIterator<PGPSecretKey>(keyRing.getSecretKeys())) {
+            keysEncoded.add(key.getEncoded());
+        }
+        int[] keyDataOffsets = getKeyDataOffsets(keysEncoded, encoded.length);
 
         int rank = 0;
         for (PGPSecretKey key : new IterableIterator<PGPSecretKey>(keyRing.getSecretKeys())) {
-            operations.add(buildSecretKeyOperations(context, keyRingRowId, key, rank));
+            operations.add(buildSecretKeyOperations(context, keyRingIndex, key,
+                    keysEncoded.get(rank), (keyDataOffsets != null) ? keyDataOffsets[rank] : -1,
+                    rank));
             ++rank;
         }
 
         int userIdRank = 0;
         for (String userId : new IterableIterator<String>(masterKey.getUserIDs())) {
-            operations.add(buildSecretUserIdOperations(context, keyRingRowId, userId, userIdRank));
+            operations.add(buildSecretUserIdOperations(context, keyRingIndex, userId, userIdRank));
             ++userIdRank;
         }
+    }
 
-        try {
-            context.getContentResolver().applyBatch(KeychainContract.CONTENT_AUTHORITY_INTERNAL,
-                    operations);
-        } catch (RemoteException e) {
-            Log.e(Constants.TAG, "applyBatch failed!", e);
-        } catch (OperationApplicationException e) {
-            Log.e(Constants.TAG, "applyBatch failed!", e);
+    /**
+     * An encoded keyRing is the concatenation of its encoded keys, so keys don't have to be stored
+     * a second time, but can be referenced as slice of the keyRing blob
+     * 
+     * @param keysEncoded
+     *            encoded keys in the order of the keyRing
+     * @param keyRingLength
+     *            length of the encoded keyRing
+     * @return offsets of the keys in the encoded keyRing or null if the keys don't add up to the
+     *         keyRing
+     */
+    static int[] getKeyDataOffsets(List<byte[]> keysEncoded, int keyRingLength) {
+        int[] offsets = new int[keysEncoded.size()];
+        int offset = 0;
+        for (int i = 0; i < offsets.length; ++i) {
+            offsets[i] = offset;
+            offset += keysEncoded.get(i).length;
         }
+
+        return (offset == keyRingLength) ? offsets : null;
     }
 
     /**
      * Build ContentProviderOperation to add PGPPublicKey to database corresponding to a keyRing
      * 
      * @param context
-     * @param keyRingRowId
+     * @param keyRingIndex
+     *            index of the operation inserting the keyRing, used as back reference
      * @param key
+     * @param keyEncoded
+     *            encoded key
+     * @param keyDataOffset
+     *            offset of encoded key in encoded keyRing or -1 to store it separately
      * @param rank
      * @return
      * @throws IOException
      */
     private static ContentProviderOperation buildPublicKeyOperations(Context context,
-            long keyRingRowId, PGPPublicKey key, int rank) throws IOException {
+            int keyRingIndex, PGPPublicKey key, byte[] keyEncoded, int keyDataOffset, int rank)
+            throws IOException {
         ContentValues values = new ContentValues();
         values.put(Keys.KEY_ID, key.getKeyID());
         values.put(Keys.IS_MASTER_KEY, key.isMasterKey());
@@ -328,49 +840,63 @@ public class ProviderHelper {
         if (expiryDate != null) {
             values.put(Keys.EXPIRY, expiryDate.getTime() / 1000);
         }
-        values.put(Keys.KEY_RING_ROW_ID, keyRingRowId);
-        values.put(Keys.KEY_DATA, key.getEncoded());
+        if (keyDataOffset >= 0) {
+            values.put(Keys.KEY_DATA_OFFSET, keyDataOffset);
+            values.put(Keys.KEY_DATA_LENGTH, keyEncoded.length);
+        } else {
+            values.put(Keys.KEY_DATA, keyEncoded);
+        }
         values.put(Keys.RANK, rank);
+        values.put(Keys.FINGERPRINT, key.getFingerprint());
 
-        Uri uri = Keys.buildPublicKeysUri(Long.toString(keyRingRowId));
+        Uri uri = Keys.buildPublicKeysUri(BATCH_KEY_RING_ROW_ID);
 
-        return ContentProviderOperation.newInsert(uri).withValues(values).build();
+        return ContentProviderOperation.newInsert(uri).withValues(values)
+                .withValueBackReference(Keys.KEY_RING_ROW_ID, keyRingIndex).build();
     }
 
     /**
      * Build ContentProviderOperation to add PublicUserIds to database corresponding to a keyRing
      * 
      * @param context
-     * @param keyRingRowId
+     * @param keyRingIndex
+     *            index of the operation inserting the keyRing, used as back reference
      * @param key
      * @param rank
      * @return
      * @throws IOException
      */
     private static ContentProviderOperation buildPublicUserIdOperations(Context context,
-            long keyRingRowId, String userId, int rank) {
+            int keyRingIndex, String userId, int rank) {
         ContentValues values = new ContentValues();
-        values.put(UserIds.KEY_RING_ROW_ID, keyRingRowId);
         values.put(UserIds.USER_ID, userId);
         values.put(UserIds.RANK, rank);
+        values.put(UserIds.EMAIL, OtherHelper.getNormalizedEmail(userId));
 
-        Uri uri = UserIds.buildPublicUserIdsUri(Long.toString(keyRingRowId));
+        Uri uri = UserIds.buildPublicUserIdsUri(BATCH_KEY_RING_ROW_ID);
 
-        return ContentProviderOperation.newInsert(uri).withValues(values).build();
+        return ContentProviderOperation.newInsert(uri).withValues(values)
+                .withValueBackReference(UserIds.KEY_RING_ROW_ID, keyRingIndex).build();
     }
 
     /**
      * Build ContentProviderOperation to add PGPSecretKey to database corresponding to a keyRing
      * 
      * @param context
-     * @param keyRingRowId
+     * @param keyRingIndex
+     *            index of the operation inserting the keyRing, used as back reference
      * @param key
+     * @param keyEncoded
+     *            encoded key
+     * @param keyDataOffset
+     *            offset of encoded key in encoded keyRing or -1 to store it separately
      * @param rank
      * @return
      * @throws IOException
      */
     private static ContentProviderOperation buildSecretKeyOperations(Context context,
-            long keyRingRowId, PGPSecretKey key, int rank) throws IOException {
+            int keyRingIndex, PGPSecretKey key, byte[] keyEncoded, int keyDataOffset, int rank)
+            throws IOException {
         ContentValues values = new ContentValues();
 
         boolean has_private = true;
@@ -393,35 +919,43 @@ public class ProviderHelper {
         if (expiryDate != null) {
             values.put(Keys.EXPIRY, expiryDate.getTime() / 1000);
         }
-        values.put(Keys.KEY_RING_ROW_ID, keyRingRowId);
-        values.put(Keys.KEY_DATA, key.getEncoded());
+        if (keyDataOffset >= 0) {
+            values.put(Keys.KEY_DATA_OFFSET, keyDataOffset);
+            values.put(Keys.KEY_DATA_LENGTH, keyEncoded.length);
+        } else {
+            values.put(Keys.KEY_DATA, keyEncoded);
+        }
         values.put(Keys.RANK, rank);
+        values.put(Keys.FINGERPRINT, key.getPublicKey().getFingerprint());
 
-        Uri uri = Keys.buildSecretKeysUri(Long.toString(keyRingRowId));
+        Uri uri = Keys.buildSecretKeysUri(BATCH_KEY_RING_ROW_ID);
 
-        return ContentProviderOperation.newInsert(uri).withValues(values).build();
+        return ContentProviderOperation.newInsert(uri).withValues(values)
+                .withValueBackReference(Keys.KEY_RING_ROW_ID, keyRingIndex).build();
     }
 
     /**
      * Build ContentProviderOperation to add SecretUserIds to database corresponding to a keyRing
      * 
      * @param context
-     * @param keyRingRowId
+     * @param keyRingIndex
+     *            index of the operation inserting the keyRing, used as back reference
      * @param key
      * @param rank
      * @return
      * @throws IOException
      */
     private static ContentProviderOperation buildSecretUserIdOperations(Context context,
-            long keyRingRowId, String userId, int rank) {
+            int keyRingIndex, String userId, int rank) {
         ContentValues values = new ContentValues();
-        values.put(UserIds.KEY_RING_ROW_ID, keyRingRowId);
         values.put(UserIds.USER_ID, userId);
         values.put(UserIds.RANK, rank);
+        values.put(UserIds.EMAIL, OtherHelper.getNormalizedEmail(userId));
 
-        Uri uri = UserIds.buildSecretUserIdsUri(Long.toString(keyRingRowId));
+        Uri uri = UserIds.buildSecretUserIdsUri(BATCH_KEY_RING_ROW_ID);
 
-        return ContentProviderOperation.newInsert(uri).withValues(values).build();
+        return ContentProviderOperation.newInsert(uri).withValues(values)
+                .withValueBackReference(UserIds.KEY_RING_ROW_ID, keyRingIndex).build();
     }
 
     /**
@@ -477,11 +1011,41 @@ public class ProviderHelper {
     public static void deletePublicKeyRing(Context context, long rowId) {
         ContentResolver cr = context.getContentResolver();
         cr.delete(KeyRings.buildPublicKeyRingsUri(Long.toString(rowId)), null, null);
+        KeyRingCache.getInstance(context).invalidate();
+        KeyIdIndex.invalidateIfCreated();
     }
 
     public static void deleteSecretKeyRing(Context context, long rowId) {
         ContentResolver cr = context.getContentResolver();
         cr.delete(KeyRings.buildSecretKeyRingsUri(Long.toString(rowId)), null, null);
+        KeyRingCache.getInstance(context).invalidate();
+        KeyIdIndex.invalidateIfCreated();
+        PrivateKeyCache.getInstance().evictAll();
+    }
+
+    /**
+     * Delete keyring by its master key id
+     * 
+     * @param context
+     * @param type
+     *            see {@link KeyTypes}
+     * @param masterKeyId
+     * @return true if a keyring has been deleted
+     */
+    public static boolean deleteKeyRingByMasterKeyId(Context context, int type, long masterKeyId) {
+        String masterKeyIdString = Long.toString(masterKeyId);
+        Uri uri = (type == KeyTypes.SECRET) ? KeyRings
+                .buildSecretKeyRingsByMasterKeyIdUri(masterKeyIdString) : KeyRings
+                .buildPublicKeyRingsByMasterKeyIdUri(masterKeyIdString);
+
+        ContentResolver cr = context.getContentResolver();
+        int count = cr.delete(uri, null, null);
+        KeyRingCache.getInstance(context).invalidate();
+        KeyIdIndex.invalidateIfCreated();
+        if (type == KeyTypes.SECRET) {
+            PrivateKeyCache.getInstance().evictAll();
+        }
+        return count > 0;
     }
 
     /**
@@ -582,6 +1146,247 @@ public class ProviderHelper {
         return masterKeyId;
     }
 
+    /**
+     * Writes the encoded key rings with the given master key ids one after another into out. The
+     * blobs are read with one cursor per {@link #MAX_SQL_VARIABLES} ids and written directly
+     * into the stream, so only the current window of the cursor is held in memory, regardless of
+     * the number of exported key rings.
+     * 
+     * @param context
+     * @param baseUri
+     *            {@link KeyRings#buildPublicKeyRingsUri()} or
+     *            {@link KeyRings#buildSecretKeyRingsUri()}
+     * @param masterKeyIds
+     * @param out
+     *            stream to write to, e.g. an {@link ArmoredOutputStream}
+     * @param progress
+     *            may be null
+     * @param progressFrom
+     *            progress reported before the first key ring
+     * @param progressTo
+     *            progress reported after the last key ring
+     * @return number of written key rings
+     * @throws IOException
+     */
+    public static int exportKeyRings(Context context, Uri baseUri, long[] masterKeyIds,
+            OutputStream out, ProgressDialogUpdater progress, int progressFrom, int progressTo)
+            throws IOException {
+        if (masterKeyIds == null || masterKeyIds.length == 0) {
+            return 0;
+        }
+
+        int numKeyRings = 0;
+        for (int start = 0; start < masterKeyIds.length; start += MAX_SQL_VARIABLES) {
+            int end = Math.min(start + MAX_SQL_VARIABLES, masterKeyIds.length);
+
+            Cursor cursor = getCursorWithSelectedKeyringMasterKeyIds(context, baseUri,
+                    masterKeyIds, start, end);
+            if (cursor == null) {
+                continue;
+            }
+
+            try {
+                int dataCol = cursor.getColumnIndex(KeyRings.KEY_RING_DATA);
+                while (cursor.moveToNext()) {
+                    byte[] data = cursor.getBlob(dataCol);
+                    if (data != null) {
+                        out.write(data);
+                        ++numKeyRings;
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+
+            PgpMain.updateProgress(progress, progressFrom + (progressTo - progressFrom) * end
+                    / masterKeyIds.length, 100);
+        }
+
+        return numKeyRings;
+    }
+
+    /**
+     * Writes all changes of keyRings of one type after the given sequence number, for another
+     * device applying them with {@link #importKeyRingDelta(Context, InputStream)}. Saved keyRings
+     * are written with their encoded blob, deleted ones by their master key id only. Only the
+     * changed rows are read, using the last_modified indices.
+     * 
+     * Both queries are bounded by the last sequence number committed before them, a change
+     * committed between the queries is left for the next export instead of being skipped by the
+     * returned sequence number.
+     * 
+     * <pre>
+     * int magic, byte type, long sinceSequence,
+     * records: byte 1 (save), long masterKeyId, int length, keyRing blob
+     *          byte 2 (delete), long masterKeyId
+     * byte 0, long sequence
+     * </pre>
+     * 
+     * @param context
+     * @param type
+     *            see {@link KeyTypes}
+     * @param sinceSequence
+     *            sequence number returned by the previous export, 0 to export all keyRings
+     * @param out
+     * @return sequence number up to which all changes are written, sinceSequence if there are
+     *         none
+     * @throws IOException
+     */
+    public static long exportKeyRingDelta(Context context, int type, long sinceSequence,
+            OutputStream out) throws IOException {
+        DataOutputStream dataOut = new DataOutputStream(out);
+        dataOut.writeInt(KEY_RING_DELTA_MAGIC);
+        dataOut.writeByte(type);
+        dataOut.writeLong(sinceSequence);
+
+        ContentResolver cr = context.getContentResolver();
+        Uri keyRingsUri = (type == KeyTypes.SECRET) ? KeyRings.buildSecretKeyRingsUri()
+                : KeyRings.buildPublicKeyRingsUri();
+        Uri deletedUri = (type == KeyTypes.SECRET) ? DeletedKeyRings
+                .buildSecretDeletedKeyRingsUri() : DeletedKeyRings.buildPublicDeletedKeyRingsUri();
+        String keyRingsLastModified = Tables.KEY_RINGS + "." + KeyRings.LAST_MODIFIED;
+
+        // sequence numbers are assigned in commit order, all changes up to this one are committed
+        long sequence = Math.max(sinceSequence, Math.max(
+                getMaxSequence(cr, keyRingsUri, keyRingsLastModified),
+                getMaxSequence(cr, deletedUri, DeletedKeyRings.LAST_MODIFIED)));
+        String[] selectionArgs = new String[] { Long.toString(sinceSequence),
+                Long.toString(sequence) };
+
+        Cursor cursor = cr.query(keyRingsUri, new String[] { KeyRings.MASTER_KEY_ID,
+                KeyRings.KEY_RING_DATA }, keyRingsLastModified + " > ? AND "
+                + keyRingsLastModified + " <= ?", selectionArgs, keyRingsLastModified + " ASC");
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    byte[] data = cursor.getBlob(1);
+                    if (data == null) {
+                        continue;
+                    }
+                    dataOut.writeByte(KEY_RING_DELTA_SAVE);
+                    dataOut.writeLong(cursor.getLong(0));
+                    dataOut.writeInt(data.length);
+                    dataOut.write(data);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        cursor = cr.query(deletedUri, new String[] { DeletedKeyRings.MASTER_KEY_ID },
+                DeletedKeyRings.LAST_MODIFIED + " > ? AND " + DeletedKeyRings.LAST_MODIFIED
+                        + " <= ?", selectionArgs, null);
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    dataOut.writeByte(KEY_RING_DELTA_DELETE);
+                    dataOut.writeLong(cursor.getLong(0));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        dataOut.writeByte(KEY_RING_DELTA_END);
+        dataOut.writeLong(sequence);
+        dataOut.flush();
+
+        return sequence;
+    }
+
+    /**
+     * @param cr
+     * @param uri
+     * @param column
+     *            last_modified column of the table queried by uri
+     * @return highest sequence number in the rows of uri, 0 if there are none
+     */
+    private static long getMaxSequence(ContentResolver cr, Uri uri, String column) {
+        Cursor cursor = cr.query(uri, new String[] { "MAX(" + column + ")" }, null, null, null);
+        if (cursor == null) {
+            return 0;
+        }
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Applies a delta written by {@link #exportKeyRingDelta(Context, int, long, OutputStream)}
+     * in one transaction, either all changes are applied or none. Saved keyRings already stored
+     * with identical content are skipped. The whole delta is held in memory, full imports should
+     * use {@link PgpMain#importKeyRings}.
+     * 
+     * @param context
+     * @param in
+     * @return sequence number of the exporting device contained in the delta
+     * @throws IOException
+     *             if the delta is invalid or could not be applied
+     */
+    public static long importKeyRingDelta(Context context, InputStream in) throws IOException {
+        DataInputStream dataIn = new DataInputStream(in);
+        if (dataIn.readInt() != KEY_RING_DELTA_MAGIC) {
+            throw new IOException("Not a keyRing delta");
+        }
+        int type = dataIn.readByte();
+        if (type != KeyTypes.PUBLIC && type != KeyTypes.SECRET) {
+            throw new IOException("Unknown keyRing type " + type + " in delta");
+        }
+        dataIn.readLong();
+
+        ArrayList<PGPKeyRing> savedKeyRings = new ArrayList<PGPKeyRing>();
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        int record;
+        while ((record = dataIn.readByte()) != KEY_RING_DELTA_END) {
+            long masterKeyId = dataIn.readLong();
+            if (record == KEY_RING_DELTA_SAVE) {
+                byte[] data = new byte[dataIn.readInt()];
+                dataIn.readFully(data);
+
+                PGPKeyRing keyRing = PgpConversionHelper.BytesToPGPKeyRing(data);
+                if ((type == KeyTypes.SECRET && !(keyRing instanceof PGPSecretKeyRing))
+                        || (type == KeyTypes.PUBLIC && !(keyRing instanceof PGPPublicKeyRing))) {
+                    throw new IOException("Invalid keyRing " + masterKeyId + " in delta");
+                }
+                savedKeyRings.add(keyRing);
+            } else if (record == KEY_RING_DELTA_DELETE) {
+                String masterKeyIdString = Long.toString(masterKeyId);
+                Uri deleteUri = (type == KeyTypes.SECRET) ? KeyRings
+                        .buildSecretKeyRingsByMasterKeyIdUri(masterKeyIdString) : KeyRings
+                        .buildPublicKeyRingsByMasterKeyIdUri(masterKeyIdString);
+                operations.add(ContentProviderOperation.newDelete(deleteUri).build());
+            } else {
+                throw new IOException("Unknown record " + record + " in delta");
+            }
+        }
+        long sequence = dataIn.readLong();
+
+        buildSaveKeyRingsOperations(context, operations, savedKeyRings,
+                new ArrayList<PGPKeyRing>());
+        if (operations.isEmpty()) {
+            return sequence;
+        }
+
+        try {
+            context.getContentResolver().applyBatch(KeychainContract.CONTENT_AUTHORITY_INTERNAL,
+                    operations);
+        } catch (RemoteException e) {
+            Log.e(Constants.TAG, "applyBatch of keyRing delta failed!", e);
+            throw new IOException("Applying keyRing delta failed");
+        } catch (OperationApplicationException e) {
+            Log.e(Constants.TAG, "applyBatch of keyRing delta failed!", e);
+            throw new IOException("Applying keyRing delta failed");
+        } finally {
+            // change notifications from the provider arrive asynchronously in this process
+            KeyRingCache.getInstance(context).invalidate();
+            KeyIdIndex.invalidateIfCreated();
+        }
+
+        return sequence;
+    }
+
     public static ArrayList<String> getPublicKeyRingsAsArmoredString(Context context,
             long[] masterKeyIds) {
         return getKeyRingsAsArmoredString(context, KeyRings.buildPublicKeyRingsUri(), masterKeyIds);
@@ -597,51 +1402,43 @@ public class ProviderHelper {
         ArrayList<String> output = new ArrayList<String>();
 
         if (masterKeyIds != null && masterKeyIds.length > 0) {
+            String version = PgpMain.getFullVersion(context);
 
-            Cursor cursor = getCursorWithSelectedKeyringMasterKeyIds(context, uri, masterKeyIds);
+            for (int start = 0; start < masterKeyIds.length; start += MAX_SQL_VARIABLES) {
+                int end = Math.min(start + MAX_SQL_VARIABLES, masterKeyIds.length);
 
-            if (cursor != null) {
-                int masterIdCol = cursor.getColumnIndex(KeyRings.MASTER_KEY_ID);
-                int dataCol = cursor.getColumnIndex(KeyRings.KEY_RING_DATA);
-                if (cursor.moveToFirst()) {
-                    do {
-                        Log.d(Constants.TAG, "masterKeyId: " + cursor.getLong(masterIdCol));
+                Cursor cursor = getCursorWithSelectedKeyringMasterKeyIds(context, uri,
+                        masterKeyIds, start, end);
+                if (cursor == null) {
+                    continue;
+                }
 
-                        // get actual keyring data blob and write it to ByteArrayOutputStream
-                        try {
-                            Object keyRing = null;
-                            byte[] data = cursor.getBlob(dataCol);
-                            if (data != null) {
-                                keyRing = PgpConversionHelper.BytesToPGPKeyRing(data);
-                            }
+                try {
+                    int dataCol = cursor.getColumnIndex(KeyRings.KEY_RING_DATA);
+                    while (cursor.moveToNext()) {
+                        byte[] data = cursor.getBlob(dataCol);
+                        if (data == null) {
+                            continue;
+                        }
 
-                            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                        // armor the stored encoding directly, without parsing the key ring
+                        try {
+                            ByteArrayOutputStream bos = new ByteArrayOutputStream(
+                                    data.length * 4 / 3 + 256);
                             ArmoredOutputStream aos = new ArmoredOutputStream(bos);
-                            aos.setHeader("Version", PgpMain.getFullVersion(context));
-
-                            if (keyRing instanceof PGPSecretKeyRing) {
-                                aos.write(((PGPSecretKeyRing) keyRing).getEncoded());
-                            } else if (keyRing instanceof PGPPublicKeyRing) {
-                                aos.write(((PGPPublicKeyRing) keyRing).getEncoded());
-                            }
+                            aos.setHeader("Version", version);
+                            aos.write(data);
                             aos.close();
 
-                            String armoredKey = bos.toString("UTF-8");
-
-                            Log.d(Constants.TAG, "armouredKey:" + armoredKey);
-
-                            output.add(armoredKey);
+                            output.add(bos.toString("UTF-8"));
                         } catch (IOException e) {
                             Log.e(Constants.TAG, "IOException", e);
                         }
-                    } while (cursor.moveToNext());
+                    }
+                } finally {
+                    cursor.close();
                 }
             }
-
-            if (cursor != null) {
-                cursor.close();
-            }
-
         } else {
             Log.e(Constants.TAG, "No master keys given!");
         }
@@ -665,30 +1462,11 @@ public class ProviderHelper {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
 
         if (masterKeyIds != null && masterKeyIds.length > 0) {
-
-            Cursor cursor = getCursorWithSelectedKeyringMasterKeyIds(context, uri, masterKeyIds);
-
-            if (cursor != null) {
-                int masterIdCol = cursor.getColumnIndex(KeyRings.MASTER_KEY_ID);
-                int dataCol = cursor.getColumnIndex(KeyRings.KEY_RING_DATA);
-                if (cursor.moveToFirst()) {
-                    do {
-                        Log.d(Constants.TAG, "masterKeyId: " + cursor.getLong(masterIdCol));
-
-                        // get actual keyring data blob and write it to ByteArrayOutputStream
-                        try {
-                            bos.write(cursor.getBlob(dataCol));
-                        } catch (IOException e) {
-                            Log.e(Constants.TAG, "IOException", e);
-                        }
-                    } while (cursor.moveToNext());
-                }
+            try {
+                exportKeyRings(context, uri, masterKeyIds, bos, null, 0, 0);
+            } catch (IOException e) {
+                Log.e(Constants.TAG, "IOException", e);
             }
-
-            if (cursor != null) {
-                cursor.close();
-            }
-
         } else {
             Log.e(Constants.TAG, "No master keys given!");
         }
@@ -696,26 +1474,33 @@ public class ProviderHelper {
         return bos.toByteArray();
     }
 
+    /**
+     * Query the key ring blobs of masterKeyIds[start] to masterKeyIds[end - 1], bound as
+     * selection arguments
+     * 
+     * @param context
+     * @param baseUri
+     * @param masterKeyIds
+     * @param start
+     * @param end
+     * @return
+     */
     private static Cursor getCursorWithSelectedKeyringMasterKeyIds(Context context, Uri baseUri,
-            long[] masterKeyIds) {
-        Cursor cursor = null;
-        if (masterKeyIds != null && masterKeyIds.length > 0) {
-
-            String inMasterKeyList = KeyRings.MASTER_KEY_ID + " IN (";
-            for (int i = 0; i < masterKeyIds.length; ++i) {
-                if (i != 0) {
-                    inMasterKeyList += ", ";
-                }
-                inMasterKeyList += DatabaseUtils.sqlEscapeString("" + masterKeyIds[i]);
+            long[] masterKeyIds, int start, int end) {
+        String[] selectionArgs = new String[end - start];
+        StringBuilder placeholders = new StringBuilder();
+        for (int i = start; i < end; ++i) {
+            if (i != start) {
+                placeholders.append(", ");
             }
-            inMasterKeyList += ")";
-
-            cursor = context.getContentResolver().query(baseUri,
-                    new String[] { KeyRings._ID, KeyRings.MASTER_KEY_ID, KeyRings.KEY_RING_DATA },
-                    inMasterKeyList, null, null);
+            placeholders.append('?');
+            selectionArgs[i - start] = Long.toString(masterKeyIds[i]);
         }
 
-        return cursor;
+        return context.getContentResolver().query(baseUri,
+                new String[] { KeyRings._ID, KeyRings.KEY_RING_DATA },
+                Tables.KEY_RINGS + "." + KeyRings.MASTER_KEY_ID + " IN (" + placeholders + ")",
+                selectionArgs, null);
     }
 
     public static ArrayList<String> getCryptoConsumers(Context context) {
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2013 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import org.spongycastle.openpgp.PGPKeyRing;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyTypes;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+
+/**
+ * {@link KeyRingStore} backed by {@link KeychainProvider}, using the lookups, caches and batch
+ * saving of {@link ProviderHelper}
+ */
+public class ProviderKeyRingStore implements KeyRingStore {
+    private final Context mContext;
+
+    public ProviderKeyRingStore(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    @Override
+    public PGPKeyRing getByKeyId(int type, long keyId) {
+        if (type == KeyTypes.SECRET) {
+            return ProviderHelper.getPGPSecretKeyRingByKeyId(mContext, keyId);
+        } else {
+            return ProviderHelper.getPGPPublicKeyRingByKeyId(mContext, keyId);
+        }
+    }
+
+    @Override
+    public PGPKeyRing getByMasterKeyId(int type, long masterKeyId) {
+        if (type == KeyTypes.SECRET) {
+            return ProviderHelper.getPGPSecretKeyRingByMasterKeyId(mContext, masterKeyId);
+        } else {
+            return ProviderHelper.getPGPPublicKeyRingByMasterKeyId(mContext, masterKeyId);
+        }
+    }
+
+    @Override
+    public HashMap<Long, PGPKeyRing> getAll(int type, long[] ids, boolean byKeyId) {
+        return ProviderHelper.getPGPKeyRings(mContext, type, ids, byKeyId);
+    }
+
+    @Override
+    public boolean save(PGPKeyRing keyRing) throws IOException {
+        return ProviderHelper.saveKeyRings(mContext, Collections.singletonList(keyRing)) > 0;
+    }
+
+    @Override
+    public int saveAll(List<PGPKeyRing> keyRings) throws IOException {
+        return ProviderHelper.saveKeyRings(mContext, keyRings);
+    }
+
+    @Override
+    public boolean delete(int type, long masterKeyId) {
+        return ProviderHelper.deleteKeyRingByMasterKeyId(mContext, type, masterKeyId);
+    }
+
+    @Override
+    public ArrayList<Long> getMasterKeyIds(int type) {
+        if (type == KeyTypes.SECRET) {
+            return ProviderHelper.getSecretKeyRingsMasterKeyIds(mContext);
+        } else {
+            return ProviderHelper.getPublicKeyRingsMasterKeyIds(mContext);
+        }
+    }
+
+    @Override
+    public ArrayList<Long> search(int type, String search) {
+        Uri queryUri = (type == KeyTypes.SECRET) ? KeyRings.buildSecretKeyRingsBySearchUri(search)
+                : KeyRings.buildPublicKeyRingsBySearchUri(search);
+        Cursor cursor = mContext.getContentResolver().query(queryUri,
+                new String[] { KeyRings.MASTER_KEY_ID }, null, null, null);
+
+        ArrayList<Long> masterKeyIds = new ArrayList<Long>();
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    masterKeyIds.add(cursor.getLong(0));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return masterKeyIds;
+    }
+}
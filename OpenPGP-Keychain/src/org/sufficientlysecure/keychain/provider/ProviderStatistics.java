@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2013 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Latency, row and blob statistics of provider operations, per uri match code and operation.
+ * Latencies are counted in a histogram with buckets doubling in size, see
+ * {@link #LATENCY_BUCKETS_MILLIS}.
+ */
+public class ProviderStatistics {
+    public static final int OPERATION_QUERY = 0;
+    public static final int OPERATION_INSERT = 1;
+    public static final int OPERATION_UPDATE = 2;
+    public static final int OPERATION_DELETE = 3;
+
+    private static final String[] OPERATION_NAMES = { "query", "insert", "update", "delete" };
+
+    /**
+     * Upper bounds of the latency buckets in milliseconds, an additional last bucket counts all
+     * slower operations
+     */
+    public static final int[] LATENCY_BUCKETS_MILLIS = { 1, 2, 4, 8, 16, 32, 64, 128, 256, 512,
+            1024 };
+
+    public static class Entry {
+        public final int match;
+        public final String matchName;
+        public final int operation;
+        public long count;
+        public long totalNanos;
+        public long maxNanos;
+        /** rows returned by queries, rows changed by the other operations */
+        public long rows;
+        /** bytes of blobs read from the returned cursors */
+        public long blobBytes;
+        public final long[] histogram = new long[LATENCY_BUCKETS_MILLIS.length + 1];
+
+        private Entry(int match, String matchName, int operation) {
+            this.match = match;
+            this.matchName = matchName;
+            this.operation = operation;
+        }
+
+        private Entry(Entry entry) {
+            this(entry.match, entry.matchName, entry.operation);
+            count = entry.count;
+            totalNanos = entry.totalNanos;
+            maxNanos = entry.maxNanos;
+            rows = entry.rows;
+            blobBytes = entry.blobBytes;
+            System.arraycopy(entry.histogram, 0, histogram, 0, histogram.length);
+        }
+
+        public String getOperationName() {
+            return OPERATION_NAMES[operation];
+        }
+
+        /**
+         * @return counts of the histogram buckets, separated by commas
+         */
+        public String getHistogramString() {
+            StringBuilder builder = new StringBuilder();
+            for (int i = 0; i < histogram.length; ++i) {
+                if (i != 0) {
+                    builder.append(',');
+                }
+                builder.append(histogram[i]);
+            }
+            return builder.toString();
+        }
+    }
+
+    private final HashMap<Integer, Entry> mEntries = new HashMap<Integer, Entry>();
+
+    private final Map<Integer, String> mMatchNames;
+
+    /**
+     * @param matchNames
+     *            names of the uri match codes, unknown codes are named by their number
+     */
+    public ProviderStatistics(Map<Integer, String> matchNames) {
+        mMatchNames = matchNames;
+    }
+
+    private Entry getEntry(int match, int operation) {
+        Integer key = match * OPERATION_NAMES.length + operation;
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            String matchName = mMatchNames.get(match);
+            entry = new Entry(match, (matchName == null) ? Integer.toString(match) : matchName,
+                    operation);
+            mEntries.put(key, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * @param match
+     *            uri match code of the provider
+     * @param operation
+     * @param nanos
+     *            duration of the operation
+     * @param rows
+     */
+    public synchronized void record(int match, int operation, long nanos, long rows) {
+        Entry entry = getEntry(match, operation);
+        ++entry.count;
+        entry.totalNanos += nanos;
+        entry.maxNanos = Math.max(entry.maxNanos, nanos);
+        entry.rows += rows;
+
+        long millis = nanos / 1000000;
+        int bucket = 0;
+        while (bucket < LATENCY_BUCKETS_MILLIS.length
+                && millis >= LATENCY_BUCKETS_MILLIS[bucket]) {
+            ++bucket;
+        }
+        ++entry.histogram[bucket];
+    }
+
+    /**
+     * @param match
+     *            uri match code of the query
+     * @param bytes
+     *            bytes of blobs read from its cursor
+     */
+    public synchronized void recordBlobBytes(int match, long bytes) {
+        getEntry(match, OPERATION_QUERY).blobBytes += bytes;
+    }
+
+    /**
+     * @return copies of all entries, sorted by total time, the slowest first
+     */
+    public synchronized ArrayList<Entry> getEntries() {
+        ArrayList<Entry> entries = new ArrayList<Entry>(mEntries.size());
+        for (Entry entry : mEntries.values()) {
+            entries.add(new Entry(entry));
+        }
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry lhs, Entry rhs) {
+                if (lhs.totalNanos == rhs.totalNanos) {
+                    return 0;
+                }
+                return (lhs.totalNanos < rhs.totalNanos) ? 1 : -1;
+            }
+        });
+        return entries;
+    }
+
+    public synchronized void reset() {
+        mEntries.clear();
+    }
+
+    /**
+     * Writes one line per entry, the slowest first
+     *
+     * @param writer
+     */
+    public void dump(PrintWriter writer) {
+        writer.print("latency buckets (ms):");
+        for (int bound : LATENCY_BUCKETS_MILLIS) {
+            writer.print(" <" + bound);
+        }
+        writer.println(" >=" + LATENCY_BUCKETS_MILLIS[LATENCY_BUCKETS_MILLIS.length - 1]);
+
+        for (Entry entry : getEntries()) {
+            long averageMicros = (entry.count == 0) ? 0 : entry.totalNanos / entry.count / 1000;
+            writer.println("match " + entry.match + " " + entry.matchName + " "
+                    + entry.getOperationName() + ": count "
+                    + entry.count + ", total " + (entry.totalNanos / 1000000) + " ms, avg "
+                    + averageMicros + " us, max " + (entry.maxNanos / 1000) + " us, rows "
+                    + entry.rows + ", blob bytes " + entry.blobBytes + ", histogram "
+                    + entry.getHistogramString());
+        }
+    }
+}
@@ -18,9 +18,11 @@ package org.sufficientlysecure.keychain.service;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PrintWriter;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.SignatureException;
@@ -28,13 +30,17 @@ import java.security.SignatureException;
 import org.spongycastle.openpgp.PGPException;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.Id;
+import org.sufficientlysecure.keychain.helper.EncryptedMessageInfo;
+import org.sufficientlysecure.keychain.helper.EncryptionProfile;
 import org.sufficientlysecure.keychain.helper.PgpMain;
 import org.sufficientlysecure.keychain.helper.PgpMain.PgpGeneralException;
+import org.sufficientlysecure.keychain.helper.PrivateKeyCache;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.service.IKeychainApiService;
 import org.sufficientlysecure.keychain.service.handler.IKeychainDecryptHandler;
+import org.sufficientlysecure.keychain.service.handler.IKeychainEncryptBatchHandler;
 import org.sufficientlysecure.keychain.service.handler.IKeychainEncryptHandler;
 import org.sufficientlysecure.keychain.service.handler.IKeychainGetDecryptionKeyIdHandler;
 
@@ -66,6 +72,15 @@ public class KeychainApiService extends Service {
         return mBinder;
     }
 
+    /**
+     * Writes the statistics of the private key cache of the :remoteapi process, called by "dumpsys
+     * activity service KeychainApiService"
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        PrivateKeyCache.getInstance().dump(writer);
+    }
+
     // private static void writeToOutputStream(InputStream is, OutputStream os) throws IOException {
     // byte[] buffer = new byte[8];
     // int len = 0;
@@ -138,6 +153,54 @@ public class KeychainApiService extends Service {
         }
     }
 
+    private synchronized void encryptAndSignBatchSafe(byte[] inputBytes, int[] inputLengths,
+            boolean useAsciiArmor, int compression, long[] encryptionKeyIds,
+            String encryptionPassphrase, int symmetricEncryptionAlgorithm, long signatureKeyId,
+            int signatureHashAlgorithm, boolean signatureForceV3, String signaturePassphrase,
+            IKeychainEncryptBatchHandler handler) throws RemoteException {
+
+        try {
+            // split concatenated input into messages
+            byte[][] messages = new byte[inputLengths.length][];
+            int offset = 0;
+            for (int i = 0; i < inputLengths.length; ++i) {
+                if (inputLengths[i] < 0 || inputLengths[i] > inputBytes.length - offset) {
+                    throw new PgpGeneralException("input lengths don't match input bytes");
+                }
+                messages[i] = new byte[inputLengths[i]];
+                System.arraycopy(inputBytes, offset, messages[i], 0, inputLengths[i]);
+                offset += inputLengths[i];
+            }
+
+            // look up recipients and signature key only once for all messages
+            EncryptionProfile profile = PgpMain.buildEncryptionProfile(mContext, null,
+                    useAsciiArmor, compression, encryptionKeyIds, encryptionPassphrase,
+                    symmetricEncryptionAlgorithm, signatureKeyId, signatureHashAlgorithm,
+                    signatureForceV3, signaturePassphrase);
+            byte[][] encrypted = PgpMain.encryptAndSignBatch(mContext, profile, null,
+                    messages);
+
+            // concatenate output
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            int[] outputLengths = new int[encrypted.length];
+            for (int i = 0; i < encrypted.length; ++i) {
+                output.write(encrypted[i]);
+                outputLengths[i] = encrypted[i].length;
+            }
+
+            // return over handler on client side
+            handler.onSuccess(output.toByteArray(), outputLengths);
+        } catch (Exception e) {
+            Log.e(Constants.TAG, "KeychainService, Exception!", e);
+
+            try {
+                handler.onException(getExceptionId(e), e.getMessage());
+            } catch (Exception t) {
+                Log.e(Constants.TAG, "Error returning exception to client", t);
+            }
+        }
+    }
+
     private synchronized void decryptAndVerifySafe(byte[] inputBytes, String inputUri,
             String passphrase, boolean assumeSymmetric, IKeychainDecryptHandler handler)
             throws RemoteException {
@@ -188,20 +251,22 @@ public class KeychainApiService extends Service {
         // TODO: implement inputUri
 
         try {
-            InputStream inputStream = new ByteArrayInputStream(inputBytes);
+            EncryptedMessageInfo messageInfo = PgpMain.inspectEncryptedMessage(
+                    KeychainApiService.this, new InputData(new ByteArrayInputStream(inputBytes),
+                            inputBytes.length));
 
             long secretKeyId = Id.key.none;
             boolean symmetric;
 
             try {
-                secretKeyId = PgpMain.getDecryptionKeyId(KeychainApiService.this, inputStream);
+                secretKeyId = PgpMain.getDecryptionKeyId(KeychainApiService.this, messageInfo);
                 if (secretKeyId == Id.key.none) {
                     throw new PgpGeneralException(getString(R.string.error_noSecretKeyFound));
                 }
                 symmetric = false;
             } catch (PgpMain.NoAsymmetricEncryptionException e) {
                 secretKeyId = Id.key.symmetric;
-                if (!PgpMain.hasSymmetricEncryption(KeychainApiService.this, inputStream)) {
+                if (!messageInfo.hasSymmetricEncryption()) {
                     throw new PgpGeneralException(getString(R.string.error_noKnownEncryptionFound));
                 }
                 symmetric = true;
@@ -271,6 +336,19 @@ public class KeychainApiService extends Service {
                     signatureHashAlgorithm, signatureForceV3, signaturePassphrase, handler);
         }
 
+        @Override
+        public void encryptAndSignBatch(byte[] inputBytes, int[] inputLengths,
+                boolean useAsciiArmor, int compression, long[] encryptionKeyIds,
+                String encryptionPassphrase, int symmetricEncryptionAlgorithm, long signatureKeyId,
+                int signatureHashAlgorithm, boolean signatureForceV3, String signaturePassphrase,
+                IKeychainEncryptBatchHandler handler) throws RemoteException {
+
+            encryptAndSignBatchSafe(inputBytes, inputLengths, useAsciiArmor, compression,
+                    encryptionKeyIds, encryptionPassphrase, symmetricEncryptionAlgorithm,
+                    signatureKeyId, signatureHashAlgorithm, signatureForceV3, signaturePassphrase,
+                    handler);
+        }
+
         @Override
         public void decryptAndVerifyAsymmetric(byte[] inputBytes, String inputUri,
                 String keyPassphrase, IKeychainDecryptHandler handler) throws RemoteException {
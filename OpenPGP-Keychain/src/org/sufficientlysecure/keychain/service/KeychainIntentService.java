@@ -16,15 +16,19 @@
 
 package org.sufficientlysecure.keychain.service;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 
 import org.spongycastle.openpgp.PGPPublicKeyRing;
@@ -32,14 +36,17 @@ import org.spongycastle.openpgp.PGPSecretKey;
 import org.spongycastle.openpgp.PGPSecretKeyRing;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.Id;
+import org.sufficientlysecure.keychain.helper.EncryptionProfile;
 import org.sufficientlysecure.keychain.helper.FileHelper;
 import org.sufficientlysecure.keychain.helper.OtherHelper;
 import org.sufficientlysecure.keychain.helper.PgpConversionHelper;
 import org.sufficientlysecure.keychain.helper.PgpMain;
 import org.sufficientlysecure.keychain.helper.Preferences;
+import org.sufficientlysecure.keychain.helper.PrivateKeyCache;
 import org.sufficientlysecure.keychain.helper.PgpMain.PgpGeneralException;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.provider.KeychainContract.DataStream;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyTypes;
 import org.sufficientlysecure.keychain.util.HkpKeyServer;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.Log;
@@ -70,6 +77,7 @@ public class KeychainIntentService extends IntentService implements ProgressDial
 
     /* possible EXTRA_ACTIONs */
     public static final int ACTION_ENCRYPT_SIGN = 10;
+    public static final int ACTION_ENCRYPT_BATCH = 11;
 
     public static final int ACTION_DECRYPT_VERIFY = 20;
 
@@ -81,6 +89,7 @@ public class KeychainIntentService extends IntentService implements ProgressDial
 
     public static final int ACTION_IMPORT_KEYRING = 50;
     public static final int ACTION_EXPORT_KEYRING = 51;
+    public static final int ACTION_EXPORT_KEYRING_DELTA = 52;
 
     public static final int ACTION_UPLOAD_KEYRING = 60;
     public static final int ACTION_QUERY_KEYRING = 61;
@@ -107,6 +116,11 @@ public class KeychainIntentService extends IntentService implements ProgressDial
     public static final String ENCRYPT_INPUT_FILE = "inputFile";
     public static final String ENCRYPT_OUTPUT_FILE = "outputFile";
     public static final String ENCRYPT_PROVIDER_URI = "providerUri";
+    /**
+     * byte[][] of at most PgpMain.BATCH_MAX_BYTES together, as the intent and the result each
+     * travel in one binder transaction
+     */
+    public static final String ENCRYPT_BATCH_MESSAGES = "batchMessages";
 
     // decrypt/verify
     public static final String DECRYPT_SIGNED_ONLY = "signedOnly";
@@ -137,6 +151,8 @@ public class KeychainIntentService extends IntentService implements ProgressDial
     public static final String IMPORT_INPUT_STREAM = "importInputStream";
     public static final String IMPORT_FILENAME = "importFilename";
     public static final String IMPORT_BYTES = "importBytes";
+    public static final String IMPORT_BATCH_SIZE = "importBatchSize";
+    public static final String IMPORT_DELTA = "importDelta";
     // public static final String IMPORT_KEY_TYPE = "importKeyType";
 
     // export key
@@ -145,6 +161,7 @@ public class KeychainIntentService extends IntentService implements ProgressDial
     public static final String EXPORT_KEY_TYPE = "exportKeyType";
     public static final String EXPORT_ALL = "exportAll";
     public static final String EXPORT_KEY_RING_MASTER_KEY_ID = "exportKeyRingId";
+    public static final String EXPORT_DELTA_SINCE = "exportDeltaSince";
 
     // upload key
     public static final String UPLOAD_KEY_SERVER = "uploadKeyServer";
@@ -173,6 +190,7 @@ public class KeychainIntentService extends IntentService implements ProgressDial
     public static final String RESULT_ENCRYPTED_STRING = "encryptedMessage";
     public static final String RESULT_ENCRYPTED_BYTES = "encryptedData";
     public static final String RESULT_URI = "resultUri";
+    public static final String RESULT_ENCRYPTED_BATCH = "encryptedBatch";
 
     // decrypt/verify
     public static final String RESULT_DECRYPTED_STRING = "decryptedMessage";
@@ -189,9 +207,12 @@ public class KeychainIntentService extends IntentService implements ProgressDial
     public static final String RESULT_IMPORT_ADDED = "added";
     public static final String RESULT_IMPORT_UPDATED = "updated";
     public static final String RESULT_IMPORT_BAD = "bad";
+    public static final String RESULT_IMPORT_FAILED = "failed";
+    public static final String RESULT_IMPORT_DELTA_SEQUENCE = "importDeltaSequence";
 
     // export
     public static final String RESULT_EXPORT = "exported";
+    public static final String RESULT_EXPORT_DELTA_SEQUENCE = "exportDeltaSequence";
 
     // query
     public static final String RESULT_QUERY_KEY_KEY_DATA = "queryKeyKeyData";
@@ -203,6 +224,16 @@ public class KeychainIntentService extends IntentService implements ProgressDial
         super("ApgService");
     }
 
+    /**
+     * Writes the statistics of the private key cache of the main process, which KeychainProvider
+     * dumps as well, called by "dumpsys activity service KeychainIntentService" while the service
+     * runs
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        PrivateKeyCache.getInstance().dump(writer);
+    }
+
     /**
      * The IntentService calls this method from the default worker thread with the intent that
      * started the service. When this method returns, IntentService stops the service, as
@@ -385,6 +416,43 @@ public class KeychainIntentService extends IntentService implements ProgressDial
 
             break;
 
+        case ACTION_ENCRYPT_BATCH:
+            try {
+                /* Input */
+                long secretKeyId = data.getLong(ENCRYPT_SECRET_KEY_ID);
+                String encryptionPassphrase = data.getString(GENERATE_KEY_SYMMETRIC_PASSPHRASE);
+
+                boolean useAsciiArmor = data.getBoolean(ENCRYPT_USE_ASCII_AMOR);
+                long encryptionKeyIds[] = data.getLongArray(ENCRYPT_ENCRYPTION_KEYS_IDS);
+                int compressionId = data.getInt(ENCRYPT_COMPRESSION_ID);
+                byte[][] messages = (byte[][]) data.getSerializable(ENCRYPT_BATCH_MESSAGES);
+
+                /* Operation */
+
+                // recipients, signing key and preferences are resolved once for all messages
+                Preferences preferences = Preferences.getPreferences(this);
+                EncryptionProfile profile = PgpMain.buildEncryptionProfile(this, this,
+                        useAsciiArmor, compressionId, encryptionKeyIds, encryptionPassphrase,
+                        preferences.getDefaultEncryptionAlgorithm(), secretKeyId,
+                        preferences.getDefaultHashAlgorithm(), preferences.getForceV3Signatures(),
+                        PassphraseCacheService.getCachedPassphrase(this, secretKeyId));
+
+                byte[][] encrypted = PgpMain.encryptAndSignBatch(this, profile, this,
+                        messages);
+
+                /* Output */
+
+                Bundle resultData = new Bundle();
+
+                resultData.putSerializable(RESULT_ENCRYPTED_BATCH, encrypted);
+
+                sendMessageToHandler(KeychainIntentServiceHandler.MESSAGE_OKAY, resultData);
+            } catch (Exception e) {
+                sendErrorToHandler(e);
+            }
+
+            break;
+
         case ACTION_DECRYPT_VERIFY:
             try {
                 /* Input */
@@ -682,7 +750,20 @@ public class KeychainIntentService extends IntentService implements ProgressDial
                 }
 
                 Bundle resultData = new Bundle();
-                resultData = PgpMain.importKeyRings(this, inputData, this);
+                if (data.getBoolean(IMPORT_DELTA)) {
+                    // delta from another device, applied in one transaction
+                    try {
+                        resultData.putLong(RESULT_IMPORT_DELTA_SEQUENCE,
+                                ProviderHelper.importKeyRingDelta(this, new BufferedInputStream(
+                                        inputData.getInputStream())));
+                    } finally {
+                        inputData.getInputStream().close();
+                    }
+                } else {
+                    int batchSize = data.getInt(IMPORT_BATCH_SIZE,
+                            PgpMain.DEFAULT_IMPORT_BATCH_SIZE);
+                    resultData = PgpMain.importKeyRings(this, inputData, batchSize, this);
+                }
 
                 sendMessageToHandler(KeychainIntentServiceHandler.MESSAGE_OKAY, resultData);
             } catch (Exception e) {
@@ -715,8 +796,9 @@ public class KeychainIntentService extends IntentService implements ProgressDial
                     throw new PgpGeneralException(getString(R.string.error_externalStorageNotReady));
                 }
 
-                // OutputStream
-                FileOutputStream outStream = new FileOutputStream(outputFile);
+                // OutputStream, buffered as the armor writes single bytes
+                OutputStream outStream = new BufferedOutputStream(new FileOutputStream(
+                        outputFile));
 
                 ArrayList<Long> keyRingMasterKeyIds = new ArrayList<Long>();
                 if (exportAll) {
@@ -732,8 +814,53 @@ public class KeychainIntentService extends IntentService implements ProgressDial
                 }
 
                 Bundle resultData = new Bundle();
-                resultData = PgpMain.exportKeyRings(this, keyRingMasterKeyIds, keyType, outStream,
-                        this);
+                try {
+                    resultData = PgpMain.exportKeyRings(this, keyRingMasterKeyIds, keyType,
+                            outStream, this);
+                } finally {
+                    outStream.close();
+                }
+
+                sendMessageToHandler(KeychainIntentServiceHandler.MESSAGE_OKAY, resultData);
+            } catch (Exception e) {
+                sendErrorToHandler(e);
+            }
+
+            break;
+
+        case ACTION_EXPORT_KEYRING_DELTA:
+            try {
+
+                /* Input */
+                int keyType = Id.type.public_key;
+                if (data.containsKey(EXPORT_KEY_TYPE)) {
+                    keyType = data.getInt(EXPORT_KEY_TYPE);
+                }
+
+                String outputFile = data.getString(EXPORT_FILENAME);
+
+                // sequence returned by the previous delta export, 0 for all keyrings
+                long sinceSequence = data.getLong(EXPORT_DELTA_SINCE, 0);
+
+                /* Operation */
+
+                // check if storage is ready
+                if (!FileHelper.isStorageMounted(outputFile)) {
+                    throw new PgpGeneralException(getString(R.string.error_externalStorageNotReady));
+                }
+
+                OutputStream outStream = new BufferedOutputStream(new FileOutputStream(
+                        outputFile));
+
+                Bundle resultData = new Bundle();
+                try {
+                    resultData.putLong(RESULT_EXPORT_DELTA_SEQUENCE, ProviderHelper
+                            .exportKeyRingDelta(this,
+                                    (keyType == Id.type.secret_key) ? KeyTypes.SECRET
+                                            : KeyTypes.PUBLIC, sinceSequence, outStream));
+                } finally {
+                    outStream.close();
+                }
 
                 sendMessageToHandler(KeychainIntentServiceHandler.MESSAGE_OKAY, resultData);
             } catch (Exception e) {
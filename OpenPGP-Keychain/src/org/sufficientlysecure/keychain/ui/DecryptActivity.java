@@ -21,6 +21,7 @@ import org.spongycastle.openpgp.PGPPublicKeyRing;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.Id;
 import org.sufficientlysecure.keychain.compatibility.ClipboardReflection;
+import org.sufficientlysecure.keychain.helper.EncryptedMessageInfo;
 import org.sufficientlysecure.keychain.helper.FileHelper;
 import org.sufficientlysecure.keychain.helper.OtherHelper;
 import org.sufficientlysecure.keychain.helper.PgpHelper;
@@ -33,6 +34,7 @@ import org.sufficientlysecure.keychain.ui.dialog.DeleteFileDialogFragment;
 import org.sufficientlysecure.keychain.ui.dialog.FileDialogFragment;
 import org.sufficientlysecure.keychain.ui.dialog.LookupUnknownKeyDialogFragment;
 import org.sufficientlysecure.keychain.ui.dialog.PassphraseDialogFragment;
+import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.R;
 
@@ -659,22 +661,18 @@ public class DecryptActivity extends SherlockFragmentActivity {
 
         // get decryption key for this inStream
         try {
+            EncryptedMessageInfo messageInfo = PgpMain.inspectEncryptedMessage(this,
+                    new InputData(inStream, 0));
             try {
-                if (inStream.markSupported()) {
-                    inStream.mark(200); //should probably set this to the max size of two pgpF objects, if it even needs to be anything other than 0.
-                }
-                mSecretKeyId = PgpMain.getDecryptionKeyId(this, inStream);
+                mSecretKeyId = PgpMain.getDecryptionKeyId(this, messageInfo);
                 if (mSecretKeyId == Id.key.none) {
                     throw new PgpMain.PgpGeneralException(
                             getString(R.string.error_noSecretKeyFound));
                 }
                 mAssumeSymmetricEncryption = false;
             } catch (PgpMain.NoAsymmetricEncryptionException e) {
-                if (inStream.markSupported()) {
-                    inStream.reset();
-                }
                 mSecretKeyId = Id.key.symmetric;
-                if (!PgpMain.hasSymmetricEncryption(this, inStream)) {
+                if (!messageInfo.hasSymmetricEncryption()) {
                     throw new PgpMain.PgpGeneralException(
                             getString(R.string.error_noKnownEncryptionFound));
                 }
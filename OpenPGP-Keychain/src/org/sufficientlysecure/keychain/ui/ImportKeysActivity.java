@@ -353,6 +353,7 @@ public class ImportKeysActivity extends SherlockFragmentActivity {
                         int added = returnData.getInt(KeychainIntentService.RESULT_IMPORT_ADDED);
                         int updated = returnData.getInt(KeychainIntentService.RESULT_IMPORT_UPDATED);
                         int bad = returnData.getInt(KeychainIntentService.RESULT_IMPORT_BAD);
+                        int failed = returnData.getInt(KeychainIntentService.RESULT_IMPORT_FAILED);
                         String toastMessage;
                         if (added > 0 && updated > 0) {
                             toastMessage = getString(R.string.keysAddedAndUpdated, added, updated);
@@ -363,6 +364,9 @@ public class ImportKeysActivity extends SherlockFragmentActivity {
                         } else {
                             toastMessage = getString(R.string.noKeysAddedOrUpdated);
                         }
+                        if (failed > 0) {
+                            toastMessage += "\n" + getString(R.string.keysNotSaved, failed);
+                        }
                         Toast.makeText(ImportKeysActivity.this, toastMessage, Toast.LENGTH_SHORT)
                                 .show();
                         if (bad > 0) {
@@ -21,9 +21,11 @@ import org.spongycastle.openpgp.PGPPublicKeyRing;
 import org.sufficientlysecure.keychain.Id;
 import org.sufficientlysecure.keychain.helper.PgpHelper;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
+import org.sufficientlysecure.keychain.provider.KeychainContract;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserIds;
 import org.sufficientlysecure.keychain.ui.widget.KeyListAdapter;
+import org.sufficientlysecure.keychain.ui.widget.PageScrollListener;
 import org.sufficientlysecure.keychain.R;
 
 import android.content.Intent;
@@ -40,12 +42,14 @@ import android.widget.ExpandableListView;
 import android.widget.ExpandableListView.ExpandableListContextMenuInfo;
 
 public class KeyListPublicFragment extends KeyListFragment implements
-        LoaderManager.LoaderCallbacks<Cursor> {
+        LoaderManager.LoaderCallbacks<Cursor>, PageScrollListener.OnLoadPageListener {
 
     private KeyListPublicActivity mKeyListPublicActivity;
 
     private KeyListAdapter mAdapter;
 
+    private PageScrollListener mPageScrollListener;
+
     /**
      * Define Adapter and Loader on create of Activity
      */
@@ -55,9 +59,13 @@ public class KeyListPublicFragment extends KeyListFragment implements
 
         mKeyListPublicActivity = (KeyListPublicActivity) getActivity();
 
-        mAdapter = new KeyListAdapter(mKeyListPublicActivity, null, Id.type.public_key);
+        mAdapter = new KeyListAdapter(mKeyListPublicActivity, null, Id.type.public_key,
+                getLoaderManager());
         setListAdapter(mAdapter);
 
+        mPageScrollListener = new PageScrollListener(this, savedInstanceState);
+        getListView().setOnScrollListener(mPageScrollListener);
+
         // Start out with a progress indicator.
         setListShown(false);
 
@@ -188,7 +196,8 @@ public class KeyListPublicFragment extends KeyListFragment implements
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
         // This is called when a new Loader needs to be created. This
         // sample only has one Loader, so we don't care about the ID.
-        Uri baseUri = KeyRings.buildPublicKeyRingsUri();
+        Uri baseUri = KeychainContract.buildPageUri(KeyRings.buildPublicKeyRingsUri(),
+                mPageScrollListener.getLimit(), 0);
 
         // Now create and return a CursorLoader that will take care of
         // creating a Cursor for the data being displayed.
@@ -200,6 +209,7 @@ public class KeyListPublicFragment extends KeyListFragment implements
         // Swap the new cursor in. (The framework will take care of closing the
         // old cursor once we return.)
         mAdapter.setGroupCursor(data);
+        mPageScrollListener.onPageLoaded(data == null ? 0 : data.getCount());
 
         // The list should now be shown.
         if (isResumed()) {
@@ -217,4 +227,17 @@ public class KeyListPublicFragment extends KeyListFragment implements
         mAdapter.setGroupCursor(null);
     }
 
+    @Override
+    public void onLoadPage(int limit) {
+        getLoaderManager().restartLoader(-1, null, this);
+    }
+
+    @Override
+    public void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        if (mPageScrollListener != null) {
+            mPageScrollListener.onSaveInstanceState(outState);
+        }
+    }
+
 }
@@ -21,9 +21,11 @@ import java.util.ArrayList;
 
 import org.sufficientlysecure.keychain.Id;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
+import org.sufficientlysecure.keychain.provider.KeychainContract;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserIds;
 import org.sufficientlysecure.keychain.ui.widget.KeyListAdapter;
+import org.sufficientlysecure.keychain.ui.widget.PageScrollListener;
 import org.sufficientlysecure.keychain.R;
 
 import com.google.zxing.integration.android.IntentIntegrator;
@@ -42,12 +44,14 @@ import android.widget.Toast;
 import android.widget.ExpandableListView.ExpandableListContextMenuInfo;
 
 public class KeyListSecretFragment extends KeyListFragment implements
-        LoaderManager.LoaderCallbacks<Cursor> {
+        LoaderManager.LoaderCallbacks<Cursor>, PageScrollListener.OnLoadPageListener {
 
     private KeyListSecretActivity mKeyListSecretActivity;
 
     private KeyListAdapter mAdapter;
 
+    private PageScrollListener mPageScrollListener;
+
     /**
      * Define Adapter and Loader on create of Activity
      */
@@ -57,9 +61,13 @@ public class KeyListSecretFragment extends KeyListFragment implements
 
         mKeyListSecretActivity = (KeyListSecretActivity) getActivity();
 
-        mAdapter = new KeyListAdapter(mKeyListSecretActivity, null, Id.type.secret_key);
+        mAdapter = new KeyListAdapter(mKeyListSecretActivity, null, Id.type.secret_key,
+                getLoaderManager());
         setListAdapter(mAdapter);
 
+        mPageScrollListener = new PageScrollListener(this, savedInstanceState);
+        getListView().setOnScrollListener(mPageScrollListener);
+
         // Start out with a progress indicator.
         setListShown(false);
 
@@ -116,7 +124,8 @@ public class KeyListSecretFragment extends KeyListFragment implements
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
         // This is called when a new Loader needs to be created. This
         // sample only has one Loader, so we don't care about the ID.
-        Uri baseUri = KeyRings.buildSecretKeyRingsUri();
+        Uri baseUri = KeychainContract.buildPageUri(KeyRings.buildSecretKeyRingsUri(),
+                mPageScrollListener.getLimit(), 0);
 
         // Now create and return a CursorLoader that will take care of
         // creating a Cursor for the data being displayed.
@@ -128,6 +137,7 @@ public class KeyListSecretFragment extends KeyListFragment implements
         // Swap the new cursor in. (The framework will take care of closing the
         // old cursor once we return.)
         mAdapter.setGroupCursor(data);
+        mPageScrollListener.onPageLoaded(data == null ? 0 : data.getCount());
 
         // The list should now be shown.
         if (isResumed()) {
@@ -145,4 +155,17 @@ public class KeyListSecretFragment extends KeyListFragment implements
         mAdapter.setGroupCursor(null);
     }
 
+    @Override
+    public void onLoadPage(int limit) {
+        getLoaderManager().restartLoader(-1, null, this);
+    }
+
+    @Override
+    public void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        if (mPageScrollListener != null) {
+            mPageScrollListener.onSaveInstanceState(outState);
+        }
+    }
+
 }
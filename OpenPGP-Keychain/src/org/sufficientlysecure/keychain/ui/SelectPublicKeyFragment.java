@@ -17,16 +17,13 @@
 
 package org.sufficientlysecure.keychain.ui;
 
-import java.util.Date;
 import java.util.Vector;
 
 import org.sufficientlysecure.keychain.Id;
 import org.sufficientlysecure.keychain.compatibility.ListFragmentWorkaround;
-import org.sufficientlysecure.keychain.provider.KeychainDatabase;
-import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
-import org.sufficientlysecure.keychain.provider.KeychainContract.Keys;
-import org.sufficientlysecure.keychain.provider.KeychainContract.UserIds;
-import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
+import org.sufficientlysecure.keychain.provider.KeychainContract;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingSummary;
+import org.sufficientlysecure.keychain.ui.widget.PageScrollListener;
 import org.sufficientlysecure.keychain.ui.widget.SelectKeyCursorAdapter;
 import org.sufficientlysecure.keychain.R;
 
@@ -40,13 +37,15 @@ import android.support.v4.app.LoaderManager;
 import android.widget.ListView;
 
 public class SelectPublicKeyFragment extends ListFragmentWorkaround implements
-        LoaderManager.LoaderCallbacks<Cursor> {
+        LoaderManager.LoaderCallbacks<Cursor>, PageScrollListener.OnLoadPageListener {
 
     private SelectPublicKeyActivity mActivity;
     private SelectKeyCursorAdapter mAdapter;
     private ListView mListView;
+    private PageScrollListener mPageScrollListener;
 
     private long mSelectedMasterKeyIds[];
+    private int mPreselectedRows = 0;
 
     /**
      * Define Adapter and Loader on create of Activity
@@ -71,6 +70,9 @@ public class SelectPublicKeyFragment extends ListFragmentWorkaround implements
 
         setListAdapter(mAdapter);
 
+        mPageScrollListener = new PageScrollListener(this, savedInstanceState);
+        mListView.setOnScrollListener(mPageScrollListener);
+
         // Start out with a progress indicator.
         setListShown(false);
 
@@ -83,10 +85,12 @@ public class SelectPublicKeyFragment extends ListFragmentWorkaround implements
      * Selects items based on master key ids in list view
      * 
      * @param masterKeyIds
+     * @param start
+     *            first position to select, rows of pages loaded before keep the user's choice
      */
-    private void preselectMasterKeyIds(long[] masterKeyIds) {
+    private void preselectMasterKeyIds(long[] masterKeyIds, int start) {
         if (masterKeyIds != null) {
-            for (int i = 0; i < mListView.getCount(); ++i) {
+            for (int i = start; i < mListView.getCount(); ++i) {
                 long keyId = mAdapter.getMasterKeyId(i);
                 for (int j = 0; j < masterKeyIds.length; ++j) {
                     if (keyId == masterKeyIds[j]) {
@@ -144,31 +148,21 @@ public class SelectPublicKeyFragment extends ListFragmentWorkaround implements
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
         // This is called when a new Loader needs to be created. This
         // sample only has one Loader, so we don't care about the ID.
-        Uri baseUri = KeyRings.buildPublicKeyRingsUri();
+        Uri baseUri = KeychainContract.buildPageUri(
+                KeyRingSummary.buildPublicKeyRingSummaryUri(), mPageScrollListener.getLimit(), 0);
 
         // These are the rows that we will retrieve.
-        long now = new Date().getTime() / 1000;
         String[] projection = new String[] {
-                KeyRings._ID,
-                KeyRings.MASTER_KEY_ID,
-                UserIds.USER_ID,
-                "(SELECT COUNT(available_keys." + Keys._ID + ") FROM " + Tables.KEYS
-                        + " AS available_keys WHERE available_keys." + Keys.KEY_RING_ROW_ID + " = "
-                        + KeychainDatabase.Tables.KEY_RINGS + "." + KeyRings._ID
-                        + " AND available_keys." + Keys.IS_REVOKED + " = '0' AND  available_keys."
-                        + Keys.CAN_ENCRYPT + " = '1') AS "
+                KeyRingSummary._ID,
+                KeyRingSummary.MASTER_KEY_ID,
+                KeyRingSummary.USER_ID,
+                KeyRingSummary.ENCRYPT_AVAILABLE + " AS "
                         + SelectKeyCursorAdapter.PROJECTION_ROW_AVAILABLE,
-                "(SELECT COUNT(valid_keys." + Keys._ID + ") FROM " + Tables.KEYS
-                        + " AS valid_keys WHERE valid_keys." + Keys.KEY_RING_ROW_ID + " = "
-                        + KeychainDatabase.Tables.KEY_RINGS + "." + KeyRings._ID + " AND valid_keys."
-                        + Keys.IS_REVOKED + " = '0' AND valid_keys." + Keys.CAN_ENCRYPT
-                        + " = '1' AND valid_keys." + Keys.CREATION + " <= '" + now + "' AND "
-                        + "(valid_keys." + Keys.EXPIRY + " IS NULL OR valid_keys." + Keys.EXPIRY
-                        + " >= '" + now + "')) AS " + SelectKeyCursorAdapter.PROJECTION_ROW_VALID, };
+                KeyRingSummary.ENCRYPT_VALID + " AS " + SelectKeyCursorAdapter.PROJECTION_ROW_VALID, };
 
         String inMasterKeyList = null;
         if (mSelectedMasterKeyIds != null && mSelectedMasterKeyIds.length > 0) {
-            inMasterKeyList = KeyRings.MASTER_KEY_ID + " IN (";
+            inMasterKeyList = KeyRingSummary.MASTER_KEY_ID + " IN (";
             for (int i = 0; i < mSelectedMasterKeyIds.length; ++i) {
                 if (i != 0) {
                     inMasterKeyList += ", ";
@@ -194,7 +188,7 @@ public class SelectPublicKeyFragment extends ListFragmentWorkaround implements
         // }
         // }
 
-        String orderBy = UserIds.USER_ID + " ASC";
+        String orderBy = KeyRingSummary.USER_ID + " ASC";
         if (inMasterKeyList != null) {
             // sort by selected master keys
             orderBy = inMasterKeyList + " DESC, " + orderBy;
@@ -218,8 +212,11 @@ public class SelectPublicKeyFragment extends ListFragmentWorkaround implements
             setListShownNoAnimation(true);
         }
 
-        // preselect given master keys
-        preselectMasterKeyIds(mSelectedMasterKeyIds);
+        // preselect given master keys in the rows of newly loaded pages
+        preselectMasterKeyIds(mSelectedMasterKeyIds, mPreselectedRows);
+        int rowCount = (data == null) ? 0 : data.getCount();
+        mPreselectedRows = Math.max(mPreselectedRows, rowCount);
+        mPageScrollListener.onPageLoaded(rowCount);
     }
 
     @Override
@@ -229,4 +226,17 @@ public class SelectPublicKeyFragment extends ListFragmentWorkaround implements
         // longer using it.
         mAdapter.swapCursor(null);
     }
+
+    @Override
+    public void onLoadPage(int limit) {
+        getLoaderManager().restartLoader(0, null, this);
+    }
+
+    @Override
+    public void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        if (mPageScrollListener != null) {
+            mPageScrollListener.onSaveInstanceState(outState);
+        }
+    }
 }
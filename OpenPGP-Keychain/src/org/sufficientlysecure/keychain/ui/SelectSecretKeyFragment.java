@@ -17,14 +17,10 @@
 
 package org.sufficientlysecure.keychain.ui;
 
-import java.util.Date;
-
 import org.sufficientlysecure.keychain.Id;
-import org.sufficientlysecure.keychain.provider.KeychainDatabase;
-import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
-import org.sufficientlysecure.keychain.provider.KeychainContract.Keys;
-import org.sufficientlysecure.keychain.provider.KeychainContract.UserIds;
-import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
+import org.sufficientlysecure.keychain.provider.KeychainContract;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingSummary;
+import org.sufficientlysecure.keychain.ui.widget.PageScrollListener;
 import org.sufficientlysecure.keychain.ui.widget.SelectKeyCursorAdapter;
 import org.sufficientlysecure.keychain.R;
 
@@ -42,11 +38,12 @@ import android.widget.AdapterView.OnItemClickListener;
 import android.widget.ListView;
 
 public class SelectSecretKeyFragment extends SherlockListFragment implements
-        LoaderManager.LoaderCallbacks<Cursor> {
+        LoaderManager.LoaderCallbacks<Cursor>, PageScrollListener.OnLoadPageListener {
 
     private SelectSecretKeyActivity mActivity;
     private SelectKeyCursorAdapter mAdapter;
     private ListView mListView;
+    private PageScrollListener mPageScrollListener;
 
     /**
      * Define Adapter and Loader on create of Activity
@@ -77,6 +74,9 @@ public class SelectSecretKeyFragment extends SherlockListFragment implements
 
         setListAdapter(mAdapter);
 
+        mPageScrollListener = new PageScrollListener(this, savedInstanceState);
+        mListView.setOnScrollListener(mPageScrollListener);
+
         // Start out with a progress indicator.
         setListShown(false);
 
@@ -89,36 +89,23 @@ public class SelectSecretKeyFragment extends SherlockListFragment implements
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
         // This is called when a new Loader needs to be created. This
         // sample only has one Loader, so we don't care about the ID.
-        Uri baseUri = KeyRings.buildSecretKeyRingsUri();
+        Uri baseUri = KeychainContract.buildPageUri(
+                KeyRingSummary.buildSecretKeyRingSummaryUri(), mPageScrollListener.getLimit(), 0);
 
         String CapFilter = null;
         if (((SelectSecretKeyActivity)getActivity()).filterCertify == true) {
-            CapFilter = "(cert>0)";
+            CapFilter = KeyRingSummary.HAS_CERTIFY + " = 1";
         }
 
         // These are the rows that we will retrieve.
-        long now = new Date().getTime() / 1000;
         String[] projection = new String[] {
-                KeyRings._ID,
-                KeyRings.MASTER_KEY_ID,
-                UserIds.USER_ID,
-                "(SELECT COUNT(cert_keys." + Keys._ID + ") FROM " + Tables.KEYS
-                        + " AS cert_keys WHERE cert_keys." + Keys.KEY_RING_ROW_ID + " = "
-                        + KeychainDatabase.Tables.KEY_RINGS + "." + KeyRings._ID + " AND cert_keys."
-                        + Keys.CAN_CERTIFY + " = '1') AS cert",
-                "(SELECT COUNT(available_keys." + Keys._ID + ") FROM " + Tables.KEYS
-                        + " AS available_keys WHERE available_keys." + Keys.KEY_RING_ROW_ID + " = "
-                        + KeychainDatabase.Tables.KEY_RINGS + "." + KeyRings._ID
-                        + " AND available_keys." + Keys.IS_REVOKED + " = '0' AND  available_keys."
-                        + Keys.CAN_SIGN + " = '1') AS "
+                KeyRingSummary._ID,
+                KeyRingSummary.MASTER_KEY_ID,
+                KeyRingSummary.USER_ID,
+                KeyRingSummary.HAS_CERTIFY + " AS cert",
+                KeyRingSummary.SIGN_AVAILABLE + " AS "
                         + SelectKeyCursorAdapter.PROJECTION_ROW_AVAILABLE,
-                "(SELECT COUNT(valid_keys." + Keys._ID + ") FROM " + Tables.KEYS
-                        + " AS valid_keys WHERE valid_keys." + Keys.KEY_RING_ROW_ID + " = "
-                        + KeychainDatabase.Tables.KEY_RINGS + "." + KeyRings._ID + " AND valid_keys."
-                        + Keys.IS_REVOKED + " = '0' AND valid_keys." + Keys.CAN_SIGN
-                        + " = '1' AND valid_keys." + Keys.CREATION + " <= '" + now + "' AND "
-                        + "(valid_keys." + Keys.EXPIRY + " IS NULL OR valid_keys." + Keys.EXPIRY
-                        + " >= '" + now + "')) AS " + SelectKeyCursorAdapter.PROJECTION_ROW_VALID, };
+                KeyRingSummary.SIGN_VALID + " AS " + SelectKeyCursorAdapter.PROJECTION_ROW_VALID, };
 
         // if (searchString != null && searchString.trim().length() > 0) {
         // String[] chunks = searchString.trim().split(" +");
@@ -132,7 +119,7 @@ public class SelectSecretKeyFragment extends SherlockListFragment implements
         // qb.appendWhere(")");
         // }
 
-        String orderBy = UserIds.USER_ID + " ASC";
+        String orderBy = KeyRingSummary.USER_ID + " ASC";
 
         // Now create and return a CursorLoader that will take care of
         // creating a Cursor for the data being displayed.
@@ -144,6 +131,7 @@ public class SelectSecretKeyFragment extends SherlockListFragment implements
         // Swap the new cursor in. (The framework will take care of closing the
         // old cursor once we return.)
         mAdapter.swapCursor(data);
+        mPageScrollListener.onPageLoaded(data == null ? 0 : data.getCount());
 
         // The list should now be shown.
         if (isResumed()) {
@@ -160,4 +148,17 @@ public class SelectSecretKeyFragment extends SherlockListFragment implements
         // longer using it.
         mAdapter.swapCursor(null);
     }
+
+    @Override
+    public void onLoadPage(int limit) {
+        getLoaderManager().restartLoader(0, null, this);
+    }
+
+    @Override
+    public void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        if (mPageScrollListener != null) {
+            mPageScrollListener.onSaveInstanceState(outState);
+        }
+    }
 }
@@ -20,6 +20,7 @@ import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.Id;
 import org.sufficientlysecure.keychain.helper.OtherHelper;
 import org.sufficientlysecure.keychain.helper.PgpHelper;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingChildren;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Keys;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserIds;
 import org.sufficientlysecure.keychain.util.Log;
@@ -27,10 +28,13 @@ import org.sufficientlysecure.keychain.R;
 
 import android.content.Context;
 import android.database.Cursor;
-import android.database.DatabaseUtils;
-import android.database.MergeCursor;
 import android.net.Uri;
+import android.os.Bundle;
 import android.provider.BaseColumns;
+import android.support.v4.app.LoaderManager;
+import android.support.v4.content.CursorLoader;
+import android.support.v4.content.Loader;
+import android.util.SparseArray;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -45,15 +49,31 @@ public class KeyListAdapter extends CursorTreeAdapter {
 
     protected int mKeyType;
 
-    private static final int CHILD_KEY = 0;
-    private static final int CHILD_USER_ID = 1;
-    private static final int CHILD_FINGERPRINT = 2;
+    private LoaderManager mLoaderManager;
 
-    public KeyListAdapter(Context context, Cursor groupCursor, int keyType) {
+    /** row id of the keyRing each child loader was started for, by group position */
+    private SparseArray<Long> mChildLoaderKeyRingRowIds = new SparseArray<Long>();
+
+    private static final String[] CHILD_PROJECTION = new String[] { KeyRingChildren._ID,
+            KeyRingChildren.CHILD_TYPE, Keys.KEY_ID, Keys.IS_MASTER_KEY, Keys.ALGORITHM,
+            Keys.KEY_SIZE, Keys.CAN_CERTIFY, Keys.CAN_SIGN, Keys.CAN_ENCRYPT, Keys.FINGERPRINT,
+            UserIds.USER_ID };
+
+    /**
+     * @param context
+     * @param groupCursor
+     * @param keyType
+     * @param loaderManager
+     *            used to load the children of expanded groups, loader ids from 0 to the number
+     *            of groups are used
+     */
+    public KeyListAdapter(Context context, Cursor groupCursor, int keyType,
+            LoaderManager loaderManager) {
         super(groupCursor, context);
         mContext = context;
         mInflater = LayoutInflater.from(context);
         mKeyType = keyType;
+        mLoaderManager = loaderManager;
     }
 
     /**
@@ -111,14 +131,21 @@ public class KeyListAdapter extends CursorTreeAdapter {
         LinearLayout keyLayout = (LinearLayout) view.findViewById(R.id.keyLayout);
         LinearLayout userIdLayout = (LinearLayout) view.findViewById(R.id.userIdLayout);
 
-        // first entry is fingerprint
-        if (cursor.getPosition() == 0) {
+        int childType = cursor.getInt(cursor.getColumnIndex(KeyRingChildren.CHILD_TYPE));
+        if (childType == KeyRingChildren.TYPE_FINGERPRINT) {
             // show only userId layout
             keyLayout.setVisibility(View.GONE);
             userIdLayout.setVisibility(View.VISIBLE);
 
-            String fingerprint = PgpHelper.getFingerPrint(context,
-                    cursor.getLong(cursor.getColumnIndex(Keys.KEY_ID)));
+            // fingerprint is stored with the key, only parse the key ring if it is missing
+            String fingerprint;
+            byte[] fingerprintBlob = cursor.getBlob(cursor.getColumnIndex(Keys.FINGERPRINT));
+            if (fingerprintBlob != null) {
+                fingerprint = PgpHelper.convertFingerprintToHex(fingerprintBlob);
+            } else {
+                fingerprint = PgpHelper.getFingerPrint(context,
+                        cursor.getLong(cursor.getColumnIndex(Keys.KEY_ID)));
+            }
             fingerprint = fingerprint.replace("  ", "\n");
 
             TextView userId = (TextView) view.findViewById(R.id.userId);
@@ -127,8 +154,7 @@ public class KeyListAdapter extends CursorTreeAdapter {
             }
             userId.setText(context.getString(R.string.fingerprint) + "\n" + fingerprint);
         } else {
-            // differentiate between keys and userIds in MergeCursor
-            if (cursor.getColumnIndex(Keys.KEY_ID) != -1) {
+            if (childType == KeyRingChildren.TYPE_KEY) {
                 keyLayout.setVisibility(View.VISIBLE);
                 userIdLayout.setVisibility(View.GONE);
 
@@ -184,88 +210,63 @@ public class KeyListAdapter extends CursorTreeAdapter {
     }
 
     /**
-     * Given the group cursor, we start cursors for a fingerprint, keys, and userIds, which are
-     * merged together and build the child cursor
+     * Given the group cursor, the children of the keyRing are loaded in the background by one
+     * query. The child cursor is set by {@link #setChildrenCursor(int, Cursor)} when finished.
      */
     @Override
     protected Cursor getChildrenCursor(Cursor groupCursor) {
         final long keyRingRowId = groupCursor.getLong(groupCursor.getColumnIndex(BaseColumns._ID));
+        final int groupPosition = groupCursor.getPosition();
 
-        Cursor fingerprintCursor = getChildCursor(keyRingRowId, CHILD_FINGERPRINT);
-        Cursor keyCursor = getChildCursor(keyRingRowId, CHILD_KEY);
-        Cursor userIdCursor = getChildCursor(keyRingRowId, CHILD_USER_ID);
+        // loaders of child cursors are numbered by their group position
+        mChildLoaderKeyRingRowIds.put(groupPosition, keyRingRowId);
+        mLoaderManager.restartLoader(groupPosition, null, mChildLoaderCallbacks);
 
-        MergeCursor mergeCursor = new MergeCursor(new Cursor[] { fingerprintCursor, keyCursor,
-                userIdCursor });
-        Log.d(Constants.TAG, "mergeCursor:" + DatabaseUtils.dumpCursorToString(mergeCursor));
-
-        return mergeCursor;
+        return null;
     }
 
-    /**
-     * This builds a cursor for a specific type of children
-     * 
-     * @param keyRingRowId
-     *            foreign row id of the keyRing
-     * @param type
-     * @return
-     */
-    private Cursor getChildCursor(long keyRingRowId, int type) {
-        Uri uri = null;
-        String[] projection = null;
-        String sortOrder = null;
-        String selection = null;
-
-        switch (type) {
-        case CHILD_FINGERPRINT:
-            projection = new String[] { Keys._ID, Keys.KEY_ID, Keys.IS_MASTER_KEY, Keys.ALGORITHM,
-                    Keys.KEY_SIZE, Keys.CAN_CERTIFY, Keys.CAN_SIGN, Keys.CAN_ENCRYPT, };
-            sortOrder = Keys.RANK + " ASC";
-
-            // use only master key for fingerprint
-            selection = Keys.IS_MASTER_KEY + " = 1 ";
+    private final LoaderManager.LoaderCallbacks<Cursor> mChildLoaderCallbacks =
+            new LoaderManager.LoaderCallbacks<Cursor>() {
 
+        @Override
+        public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+            String keyRingRowId = Long.toString(mChildLoaderKeyRingRowIds.get(id));
+            Uri uri;
             if (mKeyType == Id.type.public_key) {
-                uri = Keys.buildPublicKeysUri(String.valueOf(keyRingRowId));
+                uri = KeyRingChildren.buildPublicKeyRingChildrenUri(keyRingRowId);
             } else {
-                uri = Keys.buildSecretKeysUri(String.valueOf(keyRingRowId));
+                uri = KeyRingChildren.buildSecretKeyRingChildrenUri(keyRingRowId);
             }
-            break;
 
-        case CHILD_KEY:
-            projection = new String[] { Keys._ID, Keys.KEY_ID, Keys.IS_MASTER_KEY, Keys.ALGORITHM,
-                    Keys.KEY_SIZE, Keys.CAN_CERTIFY, Keys.CAN_SIGN, Keys.CAN_ENCRYPT, };
-            sortOrder = Keys.RANK + " ASC";
+            return new CursorLoader(mContext, uri, CHILD_PROJECTION, null, null, null);
+        }
 
-            if (mKeyType == Id.type.public_key) {
-                uri = Keys.buildPublicKeysUri(String.valueOf(keyRingRowId));
-            } else {
-                uri = Keys.buildSecretKeysUri(String.valueOf(keyRingRowId));
+        @Override
+        public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
+            int groupPosition = loader.getId();
+
+            // the group list may have changed while loading
+            Long keyRingRowId = mChildLoaderKeyRingRowIds.get(groupPosition);
+            Cursor groupCursor = getCursor();
+            if (keyRingRowId == null || groupCursor == null
+                    || groupPosition >= groupCursor.getCount()
+                    || getGroupId(groupPosition) != keyRingRowId) {
+                return;
             }
 
-            break;
-
-        case CHILD_USER_ID:
-            projection = new String[] { UserIds._ID, UserIds.USER_ID, UserIds.RANK, };
-            sortOrder = UserIds.RANK + " ASC";
-
-            // not the main user id
-            selection = UserIds.RANK + " > 0 ";
+            setChildrenCursor(groupPosition, data);
+        }
 
-            if (mKeyType == Id.type.public_key) {
-                uri = UserIds.buildPublicUserIdsUri(String.valueOf(keyRingRowId));
-            } else {
-                uri = UserIds.buildSecretUserIdsUri(String.valueOf(keyRingRowId));
+        @Override
+        public void onLoaderReset(Loader<Cursor> loader) {
+            // the cursor is about to be closed, make sure it is no longer used
+            try {
+                setChildrenCursor(loader.getId(), null);
+            } catch (NullPointerException e) {
+                Log.w(Constants.TAG, "Adapter expired, try again on the next query: "
+                        + e.getMessage());
             }
-
-            break;
-
-        default:
-            return null;
-
         }
-
-        return mContext.getContentResolver().query(uri, projection, selection, null, sortOrder);
-    }
+    };
 
 }
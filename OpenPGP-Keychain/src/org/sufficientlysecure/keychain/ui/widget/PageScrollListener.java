@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2013 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.keychain.ui.widget;
+
+import android.os.Bundle;
+import android.widget.AbsListView;
+
+/**
+ * Loads a list page by page. The list starts with the first {@link #PAGE_SIZE} rows, when it is
+ * scrolled near its end the limit grows by another page and the loader is restarted with it.
+ * The rows of a page are a prefix of the rows of the next one, so positions and checked items stay
+ * valid while the list grows.
+ */
+public class PageScrollListener implements AbsListView.OnScrollListener {
+    public static final int PAGE_SIZE = 100;
+
+    /** rows left below the visible ones when the next page is requested */
+    private static final int PREFETCH_ROWS = 20;
+
+    private static final String ARG_LIMIT = "page_limit";
+
+    public interface OnLoadPageListener {
+        /**
+         * Restart the loader with the new limit
+         *
+         * @param limit
+         */
+        public void onLoadPage(int limit);
+    }
+
+    private OnLoadPageListener mListener;
+    private int mLimit = PAGE_SIZE;
+    private boolean mLoading = true;
+    private boolean mMoreRows = false;
+
+    /**
+     * @param listener
+     * @param savedInstanceState
+     *            state saved by {@link #onSaveInstanceState(Bundle)}, to restore the loaded pages
+     */
+    public PageScrollListener(OnLoadPageListener listener, Bundle savedInstanceState) {
+        mListener = listener;
+        if (savedInstanceState != null) {
+            mLimit = savedInstanceState.getInt(ARG_LIMIT, PAGE_SIZE);
+        }
+    }
+
+    public void onSaveInstanceState(Bundle outState) {
+        outState.putInt(ARG_LIMIT, mLimit);
+    }
+
+    /**
+     * @return number of rows the loader should query
+     */
+    public int getLimit() {
+        return mLimit;
+    }
+
+    /**
+     * To be called from onLoadFinished
+     *
+     * @param rowCount
+     *            rows of the loaded cursor
+     */
+    public void onPageLoaded(int rowCount) {
+        mLoading = false;
+        mMoreRows = rowCount >= mLimit;
+    }
+
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+            int totalItemCount) {
+        if (mLoading || !mMoreRows) {
+            return;
+        }
+        if (firstVisibleItem + visibleItemCount + PREFETCH_ROWS >= totalItemCount) {
+            mLoading = true;
+            mLimit += PAGE_SIZE;
+            mListener.onLoadPage(mLimit);
+        }
+    }
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2013 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+/**
+ * Map from long to long using open addressing with linear probing on primitive arrays. Unlike a
+ * HashMap<Long, Long> it needs no objects per entry, which keeps large maps of key ids compact.
+ * Entries can not be removed, clear the map instead.
+ *
+ * Not synchronized.
+ */
+public class LongLongHashMap {
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private long[] mKeys;
+    private long[] mValues;
+    private boolean[] mUsed;
+    private int mSize = 0;
+    private int mThreshold;
+
+    public LongLongHashMap() {
+        this(16);
+    }
+
+    /**
+     * @param expectedSize
+     *            number of entries that fit without growing the map
+     */
+    public LongLongHashMap(int expectedSize) {
+        int capacity = 16;
+        while (capacity * LOAD_FACTOR < expectedSize) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new long[capacity];
+        mValues = new long[capacity];
+        mUsed = new boolean[capacity];
+        mThreshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    /**
+     * Spreads the bits of the key, so sequential keys do not end up in one cluster
+     */
+    private static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    private int indexOf(long key) {
+        int mask = mKeys.length - 1;
+        int i = hash(key) & mask;
+        while (mUsed[i]) {
+            if (mKeys[i] == key) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    public void put(long key, long value) {
+        int mask = mKeys.length - 1;
+        int i = hash(key) & mask;
+        while (mUsed[i]) {
+            if (mKeys[i] == key) {
+                mValues[i] = value;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+
+        mUsed[i] = true;
+        mKeys[i] = key;
+        mValues[i] = value;
+        if (++mSize > mThreshold) {
+            rehash(mKeys.length << 1);
+        }
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = mKeys;
+        long[] oldValues = mValues;
+        boolean[] oldUsed = mUsed;
+
+        allocate(capacity);
+        mSize = 0;
+        for (int i = 0; i < oldKeys.length; ++i) {
+            if (oldUsed[i]) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+
+    /**
+     * @param key
+     * @param defaultValue
+     * @return value mapped to key or defaultValue if key is not contained
+     */
+    public long get(long key, long defaultValue) {
+        int i = indexOf(key);
+        return (i < 0) ? defaultValue : mValues[i];
+    }
+
+    public boolean containsKey(long key) {
+        return indexOf(key) >= 0;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public void clear() {
+        allocate(16);
+        mSize = 0;
+    }
+}
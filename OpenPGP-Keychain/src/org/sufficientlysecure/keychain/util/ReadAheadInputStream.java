@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2013 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Reads the underlying stream ahead on its own thread into a ring of buffers, so that reading
+ * from storage overlaps with the work done on the data, e.g. encryption. Reading stops at the end
+ * of the underlying stream or on {@link #stop()}, which has to be called if the stream is not read
+ * to its end. Exceptions of the underlying stream are thrown by the next read after the data read
+ * before.
+ *
+ * Not thread-safe, read from a single thread.
+ */
+public class ReadAheadInputStream extends InputStream {
+    private static class Chunk {
+        final byte[] data;
+        int length = 0;
+
+        Chunk(int size) {
+            data = new byte[size];
+        }
+    }
+
+    /** queued after the last chunk */
+    private static final Chunk END = new Chunk(0);
+
+    private final InputStream mIn;
+    private final ArrayBlockingQueue<Chunk> mFree;
+    private final ArrayBlockingQueue<Chunk> mFilled;
+    private final Thread mThread;
+
+    private volatile boolean mStopped = false;
+    private volatile IOException mException;
+
+    private Chunk mCurrent;
+    private int mPosition;
+    private boolean mEnd = false;
+
+    /**
+     * Starts reading ahead
+     *
+     * @param in
+     * @param bufferSize
+     *            size of each buffer
+     * @param bufferCount
+     *            number of buffers, at most bufferCount * bufferSize bytes are read ahead
+     */
+    public ReadAheadInputStream(InputStream in, int bufferSize, int bufferCount) {
+        mIn = in;
+        mFree = new ArrayBlockingQueue<Chunk>(bufferCount);
+        // one more for END
+        mFilled = new ArrayBlockingQueue<Chunk>(bufferCount + 1);
+        for (int i = 0; i < bufferCount; ++i) {
+            mFree.add(new Chunk(bufferSize));
+        }
+
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                fill();
+            }
+        }, "ReadAheadInputStream");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    private void fill() {
+        try {
+            while (!mStopped) {
+                Chunk chunk = mFree.take();
+                if (mStopped) {
+                    break;
+                }
+
+                // fill the whole buffer, so the consumer gets few large chunks
+                int length = 0;
+                int n = 0;
+                try {
+                    while (length < chunk.data.length
+                            && (n = mIn.read(chunk.data, length, chunk.data.length - length)) > 0) {
+                        length += n;
+                    }
+                } catch (IOException e) {
+                    // the bytes read before the exception still reach the consumer
+                    mException = e;
+                }
+                if (length > 0) {
+                    chunk.length = length;
+                    mFilled.put(chunk);
+                }
+                if (mException != null || n < 0 || length == 0) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        } finally {
+            // never blocks, there are less chunks than free places
+            mFilled.offer(END);
+        }
+    }
+
+    /**
+     * @return false at the end of the stream
+     * @throws IOException
+     */
+    private boolean nextChunk() throws IOException {
+        if (mCurrent != null) {
+            return true;
+        }
+        if (mEnd) {
+            return false;
+        }
+
+        Chunk chunk;
+        try {
+            chunk = mFilled.take();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+        if (chunk == END) {
+            mEnd = true;
+            if (mException != null) {
+                throw mException;
+            }
+            return false;
+        }
+
+        mCurrent = chunk;
+        mPosition = 0;
+        return true;
+    }
+
+    private void releaseIfConsumed() {
+        if (mPosition == mCurrent.length) {
+            mFree.offer(mCurrent);
+            mCurrent = null;
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextChunk()) {
+            return -1;
+        }
+        int b = mCurrent.data[mPosition++] & 0xff;
+        releaseIfConsumed();
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (!nextChunk()) {
+            return -1;
+        }
+        int n = Math.min(length, mCurrent.length - mPosition);
+        System.arraycopy(mCurrent.data, mPosition, b, offset, n);
+        mPosition += n;
+        releaseIfConsumed();
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return (mCurrent == null) ? 0 : mCurrent.length - mPosition;
+    }
+
+    /**
+     * Stops reading ahead, without closing the underlying stream. A read of the underlying stream
+     * already running is finished first.
+     */
+    public void stop() {
+        mStopped = true;
+        // wake up the reading thread if it is waiting for a free buffer
+        if (mCurrent != null) {
+            mFree.offer(mCurrent);
+            mCurrent = null;
+        }
+        mEnd = true;
+        ArrayList<Chunk> chunks = new ArrayList<Chunk>();
+        mFilled.drainTo(chunks);
+        for (Chunk chunk : chunks) {
+            if (chunk != END) {
+                mFree.offer(chunk);
+            } else {
+                mFilled.offer(END);
+            }
+        }
+    }
+
+    /**
+     * Stops reading ahead and closes the underlying stream
+     */
+    @Override
+    public void close() throws IOException {
+        stop();
+        mIn.close();
+    }
+}
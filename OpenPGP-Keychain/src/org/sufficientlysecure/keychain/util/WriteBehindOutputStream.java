@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2013 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Writes to the underlying stream on its own thread from a ring of buffers, so that writing to
+ * storage overlaps with the work producing the data, e.g. decryption. {@link #finish()} waits
+ * until everything is written, {@link #cancel()} has to be called instead if writing is aborted.
+ * Exceptions of the underlying stream are thrown by the next write.
+ *
+ * Not thread-safe, write from a single thread.
+ */
+public class WriteBehindOutputStream extends OutputStream {
+    private static class Chunk {
+        final byte[] data;
+        int length = 0;
+
+        Chunk(int size) {
+            data = new byte[size];
+        }
+    }
+
+    /** queued after the last chunk */
+    private static final Chunk END = new Chunk(0);
+
+    private final OutputStream mOut;
+    private final ArrayBlockingQueue<Chunk> mFree;
+    private final ArrayBlockingQueue<Chunk> mFilled;
+    private final Thread mThread;
+
+    private volatile boolean mCancelled = false;
+    private volatile IOException mException;
+
+    private Chunk mCurrent;
+    private boolean mFinished = false;
+
+    /**
+     * Starts the writing thread
+     *
+     * @param out
+     * @param bufferSize
+     *            size of each buffer
+     * @param bufferCount
+     *            number of buffers, at most bufferCount * bufferSize bytes are pending
+     */
+    public WriteBehindOutputStream(OutputStream out, int bufferSize, int bufferCount) {
+        mOut = out;
+        mFree = new ArrayBlockingQueue<Chunk>(bufferCount);
+        // one more for END
+        mFilled = new ArrayBlockingQueue<Chunk>(bufferCount + 1);
+        for (int i = 0; i < bufferCount; ++i) {
+            mFree.add(new Chunk(bufferSize));
+        }
+
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "WriteBehindOutputStream");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    private void drain() {
+        try {
+            while (true) {
+                Chunk chunk = mFilled.take();
+                if (chunk == END) {
+                    break;
+                }
+                // after an exception or cancel only recycle the buffers
+                if (mException == null && !mCancelled) {
+                    try {
+                        mOut.write(chunk.data, 0, chunk.length);
+                    } catch (IOException e) {
+                        mException = e;
+                    }
+                }
+                chunk.length = 0;
+                mFree.put(chunk);
+            }
+        } catch (InterruptedException e) {
+            // cancelled
+        }
+    }
+
+    private void checkState() throws IOException {
+        if (mFinished) {
+            throw new IOException("Stream already finished");
+        }
+        if (mException != null) {
+            throw mException;
+        }
+    }
+
+    private Chunk currentChunk() throws IOException {
+        if (mCurrent == null) {
+            try {
+                mCurrent = mFree.take();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+        return mCurrent;
+    }
+
+    private void handOff() throws IOException {
+        if (mCurrent != null && mCurrent.length > 0) {
+            try {
+                mFilled.put(mCurrent);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            mCurrent = null;
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        checkState();
+        Chunk chunk = currentChunk();
+        chunk.data[chunk.length++] = (byte) b;
+        if (chunk.length == chunk.data.length) {
+            handOff();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int offset, int length) throws IOException {
+        checkState();
+        while (length > 0) {
+            Chunk chunk = currentChunk();
+            int n = Math.min(length, chunk.data.length - chunk.length);
+            System.arraycopy(b, offset, chunk.data, chunk.length, n);
+            chunk.length += n;
+            offset += n;
+            length -= n;
+            if (chunk.length == chunk.data.length) {
+                handOff();
+            }
+        }
+    }
+
+    /**
+     * Hands the buffered data to the writing thread without waiting for it to be written, use
+     * {@link #finish()} for that.
+     */
+    @Override
+    public void flush() throws IOException {
+        checkState();
+        handOff();
+    }
+
+    /**
+     * Writes all pending data and flushes the underlying stream, without closing it. The writing
+     * thread is stopped, nothing can be written afterwards.
+     *
+     * @throws IOException
+     *             if writing any data failed
+     */
+    public void finish() throws IOException {
+        if (mFinished) {
+            return;
+        }
+        checkState();
+        handOff();
+        mFinished = true;
+        try {
+            mFilled.put(END);
+            mThread.join();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+        if (mException != null) {
+            throw mException;
+        }
+        mOut.flush();
+    }
+
+    /**
+     * Discards all pending data and stops the writing thread, without closing the underlying
+     * stream. Does nothing after {@link #finish()}.
+     */
+    public void cancel() {
+        if (mFinished) {
+            return;
+        }
+        mFinished = true;
+        mCancelled = true;
+        mCurrent = null;
+        mThread.interrupt();
+    }
+
+    /**
+     * Writes all pending data and closes the underlying stream
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            mOut.close();
+        }
+    }
+}
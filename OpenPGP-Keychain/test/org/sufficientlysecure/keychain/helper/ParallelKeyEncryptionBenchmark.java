@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2013 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.keychain.helper;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.spongycastle.jce.provider.BouncyCastleProvider;
+import org.spongycastle.jce.spec.ElGamalParameterSpec;
+import org.spongycastle.openpgp.PGPEncryptedData;
+import org.spongycastle.openpgp.PGPEncryptedDataGenerator;
+import org.spongycastle.openpgp.PGPEncryptedDataList;
+import org.spongycastle.openpgp.PGPKeyPair;
+import org.spongycastle.openpgp.PGPLiteralData;
+import org.spongycastle.openpgp.PGPLiteralDataGenerator;
+import org.spongycastle.openpgp.PGPObjectFactory;
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.PGPPublicKeyEncryptedData;
+import org.spongycastle.openpgp.operator.PGPKeyEncryptionMethodGenerator;
+import org.spongycastle.openpgp.operator.jcajce.JcaPGPKeyPair;
+import org.spongycastle.openpgp.operator.jcajce.JcePGPDataEncryptorBuilder;
+import org.spongycastle.openpgp.operator.jcajce.JcePublicKeyDataDecryptorFactoryBuilder;
+import org.spongycastle.openpgp.operator.jcajce.JcePublicKeyKeyEncryptionMethodGenerator;
+
+/**
+ * Measures {@link ParallelKeyEncryptionMethodGenerator} against adding the methods one by one,
+ * like PgpMain.encryptAndSign does below PARALLEL_ENCRYPTION_MIN_RECIPIENTS, for 1, 10, 100 and
+ * 1000 recipients with 2048 bit RSA or ElGamal keys. The recipients cycle through a few
+ * generated keys, the cost of wrapping the session key does not depend on the key being a
+ * different one.
+ *
+ * Both messages of every recipient count are checked: the session key packets have to name the
+ * recipients in the order they were added and every recipient has to decrypt the message to the
+ * original data. The packets themselves differ between runs, because the padding of RSA and the
+ * ephemeral key of ElGamal are random. A failed check ends the run with an exception.
+ *
+ * Needs only the Spongy Castle jars of libs at runtime:
+ *
+ * <pre>
+ * java -cp bin/classes:test-classes:libs/scprov-jdk15on-1.47.0.3-SNAPSHOT.jar:\
+ *     libs/scpg-jdk15on-1.47.0.3-SNAPSHOT.jar:libs/sc-light-jdk15on-1.47.0.3-SNAPSHOT.jar \
+ *     org.sufficientlysecure.keychain.helper.ParallelKeyEncryptionBenchmark [rsa|elgamal]
+ *     [recipients,...] [keys]
+ * </pre>
+ */
+public class ParallelKeyEncryptionBenchmark {
+    private static final String SC = BouncyCastleProvider.PROVIDER_NAME;
+
+    /** the 2048 bit MODP group of RFC 3526, so no ElGamal parameters have to be generated */
+    private static final BigInteger MODP_2048_P = new BigInteger(
+            "FFFFFFFFFFFFFFFFC90FDAA22168C234C4C6628B80DC1CD129024E088A67CC74020BBEA63B139B22"
+                    + "514A08798E3404DDEF9519B3CD3A431B302B0A6DF25F14374FE1356D6D51C245E485B576"
+                    + "625E7EC6F44C42E9A637ED6B0BFF5CB6F406B7EDEE386BFB5A899FA5AE9F24117C4B1FE6"
+                    + "49286651ECE45B3DC2007CB8A163BF0598DA48361C55D39A69163FA8FD24CF5F83655D23"
+                    + "DCA3AD961C62F356208552BB9ED529077096966D670C354E4ABC9804F1746C08CA18217C"
+                    + "32905E462E36CE3BE39E772C180E86039B2783A2EC07A28FB5C55DF06F4C52C9DE2BCBF6"
+                    + "955817183995497CEA956AE515D2261898FA051015728E5A8AACAA68FFFFFFFFFFFFFFFF",
+            16);
+    private static final BigInteger MODP_2048_G = BigInteger.valueOf(2);
+
+    private static final byte[] DATA = "benchmark".getBytes();
+
+    public static void main(String[] args) throws Exception {
+        boolean elGamal = (args.length > 0) && args[0].equalsIgnoreCase("elgamal");
+        String[] counts = ((args.length > 1) ? args[1] : "1,10,100,1000").split(",");
+        int keyCount = (args.length > 2) ? Integer.parseInt(args[2]) : 10;
+
+        Security.addProvider(new BouncyCastleProvider());
+
+        long start = System.nanoTime();
+        PGPKeyPair[] keys = generateKeys(elGamal, keyCount);
+        report("generated " + keyCount + (elGamal ? " ElGamal" : " RSA") + " keys", start, 0);
+        System.out.println("cpus: " + Runtime.getRuntime().availableProcessors());
+
+        for (String count : counts) {
+            int recipientCount = Integer.parseInt(count.trim());
+            PGPKeyPair[] recipients = new PGPKeyPair[recipientCount];
+            for (int i = 0; i < recipientCount; ++i) {
+                recipients[i] = keys[i % keys.length];
+            }
+            // repeat small counts, so that each measurement takes about as long
+            int rounds = Math.max(1, 1000 / recipientCount);
+
+            // warm up both paths and check their output
+            check(recipients, encrypt(recipients, false));
+            check(recipients, encrypt(recipients, true));
+
+            start = System.nanoTime();
+            for (int i = 0; i < rounds; ++i) {
+                encrypt(recipients, false);
+            }
+            report(recipientCount + " recipients, sequential", start, rounds);
+
+            start = System.nanoTime();
+            for (int i = 0; i < rounds; ++i) {
+                encrypt(recipients, true);
+            }
+            report(recipientCount + " recipients, parallel", start, rounds);
+        }
+    }
+
+    private static PGPKeyPair[] generateKeys(boolean elGamal, int count) throws Exception {
+        KeyPairGenerator keyGen;
+        if (elGamal) {
+            keyGen = KeyPairGenerator.getInstance("ELGAMAL", SC);
+            keyGen.initialize(new ElGamalParameterSpec(MODP_2048_P, MODP_2048_G),
+                    new SecureRandom());
+        } else {
+            keyGen = KeyPairGenerator.getInstance("RSA", SC);
+            keyGen.initialize(2048, new SecureRandom());
+        }
+
+        PGPKeyPair[] keys = new PGPKeyPair[count];
+        for (int i = 0; i < count; ++i) {
+            keys[i] = new JcaPGPKeyPair(elGamal ? PGPPublicKey.ELGAMAL_ENCRYPT
+                    : PGPPublicKey.RSA_GENERAL, keyGen.generateKeyPair(), new Date());
+        }
+        return keys;
+    }
+
+    private static byte[] encrypt(PGPKeyPair[] recipients, boolean parallel) throws Exception {
+        PGPEncryptedDataGenerator encryptedDataGenerator = new PGPEncryptedDataGenerator(
+                new JcePGPDataEncryptorBuilder(PGPEncryptedData.AES_256)
+                        .setWithIntegrityPacket(true).setSecureRandom(new SecureRandom())
+                        .setProvider(SC));
+
+        List<PGPKeyEncryptionMethodGenerator> methods =
+                new ArrayList<PGPKeyEncryptionMethodGenerator>();
+        for (PGPKeyPair recipient : recipients) {
+            methods.add(new JcePublicKeyKeyEncryptionMethodGenerator(recipient.getPublicKey())
+                    .setProvider(SC));
+        }
+        if (parallel) {
+            methods = ParallelKeyEncryptionMethodGenerator.wrap(methods);
+        }
+        for (PGPKeyEncryptionMethodGenerator method : methods) {
+            encryptedDataGenerator.addMethod(method);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputStream encryptionOut = encryptedDataGenerator.open(out, new byte[1 << 10]);
+        PGPLiteralDataGenerator literalDataGenerator = new PGPLiteralDataGenerator();
+        OutputStream literalOut = literalDataGenerator.open(encryptionOut, PGPLiteralData.BINARY,
+                "", new Date(), new byte[1 << 10]);
+        literalOut.write(DATA);
+        literalDataGenerator.close();
+        encryptedDataGenerator.close();
+        return out.toByteArray();
+    }
+
+    /**
+     * Checks that the session key packets follow the order of the recipients and that every
+     * recipient can decrypt the message
+     */
+    private static void check(PGPKeyPair[] recipients, byte[] message) throws Exception {
+        PGPEncryptedDataList list = getEncryptedDataList(message);
+        check(list.size() == recipients.length, "session key packets: " + list.size());
+        for (int i = 0; i < recipients.length; ++i) {
+            PGPPublicKeyEncryptedData encryptedData = (PGPPublicKeyEncryptedData) list.get(i);
+            check(encryptedData.getKeyID() == recipients[i].getKeyID(),
+                    "session key packet " + i + " for another recipient");
+        }
+
+        // the data of a message can be read only once, parse it again for every recipient
+        for (int i = 0; i < recipients.length; ++i) {
+            PGPPublicKeyEncryptedData encryptedData = (PGPPublicKeyEncryptedData)
+                    getEncryptedDataList(message).get(i);
+            InputStream clear = encryptedData.getDataStream(
+                    new JcePublicKeyDataDecryptorFactoryBuilder().setProvider(SC).build(
+                            recipients[i].getPrivateKey()));
+            PGPLiteralData literalData = (PGPLiteralData) new PGPObjectFactory(clear)
+                    .nextObject();
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            InputStream in = literalData.getInputStream();
+            int b;
+            while ((b = in.read()) >= 0) {
+                data.write(b);
+            }
+            check(Arrays.equals(data.toByteArray(), DATA), "recipient " + i
+                    + " decrypted other data");
+            check(encryptedData.verify(), "integrity check failed for recipient " + i);
+        }
+    }
+
+    private static PGPEncryptedDataList getEncryptedDataList(byte[] message) throws Exception {
+        return (PGPEncryptedDataList) new PGPObjectFactory(new ByteArrayInputStream(message))
+                .nextObject();
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalStateException(message);
+        }
+    }
+
+    private static void report(String what, long startNanos, int operations) {
+        long micros = (System.nanoTime() - startNanos) / 1000;
+        StringBuilder line = new StringBuilder(what).append(": ").append(micros / 1000)
+                .append(" ms");
+        if (operations > 0) {
+            line.append(", ").append(micros / operations).append(" us each");
+        }
+        System.out.println(line);
+    }
+}
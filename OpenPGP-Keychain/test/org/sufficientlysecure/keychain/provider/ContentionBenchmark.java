@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2013 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyTypes;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
+
+import android.annotation.TargetApi;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.os.Build;
+import android.provider.BaseColumns;
+import android.util.Log;
+
+/**
+ * Measures the latency of key ring lookups by key id, as API clients run them to decrypt, while
+ * 5k public key rings are imported into a database of 10k key rings. Every reader thread has its
+ * own connection, like the processes of the app and of the API clients have. The readers are
+ * measured once without the import for comparison.
+ *
+ * Runs with the journal mode KeychainDatabase sets, write-ahead logging since Honeycomb, and from
+ * Jelly Bean on again with the rollback journal. disableWriteAheadLogging is not available before.
+ * The imported key rings are deleted after each run, so both start from 10k key rings.
+ *
+ * Runs on a device, see {@link ProviderCorpusTestCase}.
+ */
+public class ContentionBenchmark extends ProviderCorpusTestCase {
+    private static final int KEY_RING_COUNT = 10000;
+    private static final int IMPORT_COUNT = 5000;
+    private static final int READER_COUNT = 4;
+    private static final long IDLE_MILLIS = 5000;
+
+    /** buildKeyRingQueryWithKeys for PUBLIC_KEY_RING_BY_KEY_ID, as read by getPGPKeyRing */
+    private static final String LOOKUP_QUERY = "SELECT key_rings._id, (SELECT key_ring_data FROM "
+            + "key_ring_blobs WHERE key_ring_blobs._id = key_rings._id) AS key_ring_data FROM "
+            + "key_rings INNER JOIN keys ON (key_rings._id = keys.key_ring_row_id) INNER JOIN "
+            + "user_ids ON (key_rings._id = user_ids.key_ring_row_id AND user_ids.rank = '0') "
+            + "WHERE key_rings.type = 0 AND keys.key_id = ?";
+
+    /**
+     * Looks up random key ids on its own connection until stopped
+     */
+    private static class Reader extends Thread {
+        private final String mPath;
+        private final long[] mKeyIds;
+        private final Random mRandom;
+
+        private volatile boolean mStopped = false;
+
+        private long[] mLatencies = new long[1024];
+        private int mLookupCount = 0;
+        private int mFailureCount = 0;
+        private String mError = null;
+
+        Reader(String path, long[] keyIds, long seed) {
+            mPath = path;
+            mKeyIds = keyIds;
+            mRandom = new Random(seed);
+        }
+
+        @Override
+        public void run() {
+            SQLiteDatabase db = SQLiteDatabase.openDatabase(mPath, null,
+                    SQLiteDatabase.OPEN_READONLY);
+            try {
+                while (!mStopped) {
+                    String keyId = Long.toString(mKeyIds[mRandom.nextInt(mKeyIds.length)]);
+                    long start = System.nanoTime();
+                    try {
+                        Cursor cursor = db.rawQuery(LOOKUP_QUERY, new String[] { keyId });
+                        try {
+                            if (!cursor.moveToFirst() || cursor.getBlob(1).length != KEY_RING_SIZE
+                                    || cursor.moveToNext()) {
+                                mError = "wrong result for key id " + keyId;
+                                return;
+                            }
+                        } finally {
+                            cursor.close();
+                        }
+                    } catch (SQLiteException e) {
+                        // e.g. busy while a writer holds the rollback journal lock
+                        ++mFailureCount;
+                        continue;
+                    }
+                    addLatency(System.nanoTime() - start);
+                }
+            } finally {
+                db.close();
+            }
+        }
+
+        private void addLatency(long nanos) {
+            if (mLookupCount == mLatencies.length) {
+                long[] latencies = new long[mLatencies.length * 2];
+                System.arraycopy(mLatencies, 0, latencies, 0, mLookupCount);
+                mLatencies = latencies;
+            }
+            mLatencies[mLookupCount++] = nanos;
+        }
+    }
+
+    public void testContention() throws Exception {
+        insertKeyRings(KeyTypes.PUBLIC, KEY_RING_COUNT, false);
+        // the readers look up the key rings which are there before the import
+        long[] keyIds = new long[KEY_RING_COUNT];
+        System.arraycopy(mSubkeyIds, 0, keyIds, 0, KEY_RING_COUNT);
+
+        measure(keyIds);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            disableWriteAheadLogging();
+            measure(keyIds);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void disableWriteAheadLogging() {
+        mDatabase.disableWriteAheadLogging();
+    }
+
+    private void measure(long[] keyIds) throws InterruptedException {
+        String journalMode = DatabaseUtils.stringForQuery(mDatabase, "PRAGMA journal_mode", null);
+
+        Reader[] readers = startReaders(keyIds);
+        Thread.sleep(IDLE_MILLIS);
+        stopReaders(journalMode + ", no import", readers);
+
+        long lastRowId = DatabaseUtils.longForQuery(mDatabase, "SELECT MAX(" + BaseColumns._ID
+                + ") FROM " + Tables.KEY_RINGS, null);
+        readers = startReaders(keyIds);
+        long start = System.nanoTime();
+        insertKeyRings(KeyTypes.PUBLIC, IMPORT_COUNT, false);
+        report(journalMode + ", imported " + IMPORT_COUNT + " key rings", start, IMPORT_COUNT);
+        stopReaders(journalMode + ", during import", readers);
+
+        mDatabase.delete(Tables.KEY_RINGS, BaseColumns._ID + " > ?",
+                new String[] { Long.toString(lastRowId) });
+    }
+
+    private Reader[] startReaders(long[] keyIds) {
+        Reader[] readers = new Reader[READER_COUNT];
+        for (int i = 0; i < READER_COUNT; ++i) {
+            readers[i] = new Reader(mDatabase.getPath(), keyIds, i);
+            readers[i].start();
+        }
+        return readers;
+    }
+
+    /**
+     * Stops the readers and reports the latencies of all their lookups
+     */
+    private static void stopReaders(String what, Reader[] readers) throws InterruptedException {
+        int lookupCount = 0;
+        int failureCount = 0;
+        for (Reader reader : readers) {
+            reader.mStopped = true;
+            reader.join();
+            assertNull(what, reader.mError);
+            lookupCount += reader.mLookupCount;
+            failureCount += reader.mFailureCount;
+        }
+        assertTrue(what + ": no lookups", lookupCount > 0);
+
+        long[] latencies = new long[lookupCount];
+        long sum = 0;
+        int n = 0;
+        for (Reader reader : readers) {
+            System.arraycopy(reader.mLatencies, 0, latencies, n, reader.mLookupCount);
+            n += reader.mLookupCount;
+        }
+        for (long latency : latencies) {
+            sum += latency;
+        }
+        Arrays.sort(latencies);
+
+        Log.i(Constants.TAG, what + ": " + lookupCount + " lookups, " + failureCount
+                + " failed, mean " + (sum / lookupCount / 1000) + " us, p99 "
+                + (latencies[(int) (lookupCount * 0.99)] / 1000) + " us, max "
+                + (latencies[lookupCount - 1] / 1000) + " us");
+    }
+}
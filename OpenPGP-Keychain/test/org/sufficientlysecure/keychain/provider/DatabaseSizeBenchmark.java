@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2013 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyTypes;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
+
+import android.database.DatabaseUtils;
+import android.util.Log;
+
+/**
+ * Measures the size of the database and the time to insert 10k public key rings, once with the
+ * keys stored as slices of their key ring blob, as since database version 12, and once with a
+ * copy of every key in key_blobs, which is how keys were stored before.
+ *
+ * The size is the number of pages in use times the page size, pages in the write-ahead log are
+ * counted as well. The key rings of the first run are deleted and the database is vacuumed before
+ * the second run, each run is measured from the size of the database before it.
+ *
+ * Runs on a device, see {@link ProviderCorpusTestCase}.
+ */
+public class DatabaseSizeBenchmark extends ProviderCorpusTestCase {
+    private static final int KEY_RING_COUNT = 10000;
+
+    public void testDatabaseSize() {
+        long emptySize = getDatabaseSize();
+        logSize("empty database", emptySize);
+
+        long start = System.nanoTime();
+        insertKeyRings(KeyTypes.PUBLIC, KEY_RING_COUNT, false);
+        report("inserted " + KEY_RING_COUNT + " key rings, keys as slices", start, KEY_RING_COUNT);
+        long slicesSize = getDatabaseSize() - emptySize;
+        logSize(KEY_RING_COUNT + " key rings, keys as slices", slicesSize);
+
+        // deletes keys, user ids and blobs by cascade and the summary by trigger
+        mDatabase.delete(Tables.KEY_RINGS, null, null);
+        mDatabase.delete(Tables.KEY_RING_TOMBSTONES, null, null);
+        mDatabase.execSQL("VACUUM");
+        // the full text index and sqlite_sequence keep a few rows
+        emptySize = getDatabaseSize();
+        logSize("vacuumed database", emptySize);
+
+        start = System.nanoTime();
+        insertKeyRings(KeyTypes.PUBLIC, KEY_RING_COUNT, true);
+        report("inserted " + KEY_RING_COUNT + " key rings, keys as copies", start, KEY_RING_COUNT);
+        long copiesSize = getDatabaseSize() - emptySize;
+        logSize(KEY_RING_COUNT + " key rings, keys as copies", copiesSize);
+
+        // two keys of KEY_SIZE bytes in every key ring
+        assertTrue("copies " + copiesSize + " not larger than slices " + slicesSize,
+                copiesSize - slicesSize >= (long) KEY_RING_COUNT * 2 * KEY_SIZE);
+    }
+
+    /**
+     * @return bytes in pages which are in use
+     */
+    private long getDatabaseSize() {
+        long pages = DatabaseUtils.longForQuery(mDatabase, "PRAGMA page_count", null)
+                - DatabaseUtils.longForQuery(mDatabase, "PRAGMA freelist_count", null);
+        return pages * DatabaseUtils.longForQuery(mDatabase, "PRAGMA page_size", null);
+    }
+
+    private static void logSize(String what, long size) {
+        Log.i(Constants.TAG, what + ": " + (size / 1024) + " KB");
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2013 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+import java.io.File;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+import org.spongycastle.bcpg.HashAlgorithmTags;
+import org.spongycastle.jce.provider.BouncyCastleProvider;
+import org.spongycastle.openpgp.PGPEncryptedData;
+import org.spongycastle.openpgp.PGPKeyPair;
+import org.spongycastle.openpgp.PGPKeyRing;
+import org.spongycastle.openpgp.PGPKeyRingGenerator;
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.PGPSecretKeyRing;
+import org.spongycastle.openpgp.PGPSignature;
+import org.spongycastle.openpgp.operator.PGPDigestCalculator;
+import org.spongycastle.openpgp.operator.jcajce.JcaPGPContentSignerBuilder;
+import org.spongycastle.openpgp.operator.jcajce.JcaPGPDigestCalculatorProviderBuilder;
+import org.spongycastle.openpgp.operator.jcajce.JcaPGPKeyPair;
+import org.spongycastle.openpgp.operator.jcajce.JcePBESecretKeyEncryptorBuilder;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyTypes;
+
+/**
+ * Checks and measures {@link FileKeyRingStore} on a desktop JVM: imports generated key rings in
+ * batches like PgpMain.importKeyRings, looks them up by master key id, by subkey id, in batches
+ * and by user id, reopens the file and deletes. Every result is checked, a wrong one ends the run
+ * with an exception.
+ *
+ * Needs only the Spongy Castle jars of libs at runtime, the key type constants of
+ * {@link KeychainContract} are inlined by the compiler:
+ *
+ * <pre>
+ * java -cp bin/classes:test-classes:libs/scprov-jdk15on-1.47.0.3-SNAPSHOT.jar:\
+ *     libs/scpg-jdk15on-1.47.0.3-SNAPSHOT.jar:libs/sc-light-jdk15on-1.47.0.3-SNAPSHOT.jar \
+ *     org.sufficientlysecure.keychain.provider.FileKeyRingStoreBenchmark [keyRings] [lookups]
+ * </pre>
+ */
+public class FileKeyRingStoreBenchmark {
+    private static final String SC = BouncyCastleProvider.PROVIDER_NAME;
+
+    private static final int IMPORT_BATCH_SIZE = 100;
+
+    public static void main(String[] args) throws Exception {
+        int keyRingCount = (args.length > 0) ? Integer.parseInt(args[0]) : 200;
+        int lookupCount = (args.length > 1) ? Integer.parseInt(args[1]) : 100000;
+
+        Security.addProvider(new BouncyCastleProvider());
+
+        long start = System.nanoTime();
+        ArrayList<PGPKeyRing> keyRings = generateKeyRings(keyRingCount);
+        report("generated " + keyRingCount + " secret and public key rings", start, 0);
+
+        File file = File.createTempFile("keyrings", ".bin");
+        file.deleteOnExit();
+        try {
+            FileKeyRingStore store = new FileKeyRingStore(file);
+            try {
+                importKeyRings(store, keyRings);
+                lookUp(store, keyRings, lookupCount);
+                search(store, keyRingCount);
+            } finally {
+                store.close();
+            }
+
+            reopen(file, keyRings);
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static ArrayList<PGPKeyRing> generateKeyRings(int count) throws Exception {
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA", SC);
+        keyGen.initialize(1024, new SecureRandom());
+        PGPDigestCalculator sha1Calc = new JcaPGPDigestCalculatorProviderBuilder().build().get(
+                HashAlgorithmTags.SHA1);
+
+        ArrayList<PGPKeyRing> keyRings = new ArrayList<PGPKeyRing>();
+        for (int i = 0; i < count; ++i) {
+            PGPKeyPair masterKey = new JcaPGPKeyPair(PGPPublicKey.RSA_GENERAL,
+                    keyGen.generateKeyPair(), new Date());
+            PGPKeyPair subKey = new JcaPGPKeyPair(PGPPublicKey.RSA_GENERAL,
+                    keyGen.generateKeyPair(), new Date());
+
+            PGPKeyRingGenerator ringGen = new PGPKeyRingGenerator(
+                    PGPSignature.POSITIVE_CERTIFICATION, masterKey, "User " + i + " <user" + i
+                            + "@example.com>", sha1Calc, null, null,
+                    new JcaPGPContentSignerBuilder(PGPPublicKey.RSA_GENERAL,
+                            HashAlgorithmTags.SHA1), new JcePBESecretKeyEncryptorBuilder(
+                            PGPEncryptedData.CAST5, sha1Calc).setProvider(SC).build(
+                            "".toCharArray()));
+            ringGen.addSubKey(subKey);
+
+            keyRings.add(ringGen.generateSecretKeyRing());
+            keyRings.add(ringGen.generatePublicKeyRing());
+        }
+        return keyRings;
+    }
+
+    private static void importKeyRings(KeyRingStore store, List<PGPKeyRing> keyRings)
+            throws Exception {
+        long start = System.nanoTime();
+        ArrayList<PGPKeyRing> batch = new ArrayList<PGPKeyRing>();
+        int existing = 0;
+        for (PGPKeyRing keyRing : keyRings) {
+            batch.add(keyRing);
+            if (batch.size() >= IMPORT_BATCH_SIZE) {
+                existing += store.saveAll(batch);
+                batch.clear();
+            }
+        }
+        existing += store.saveAll(batch);
+        report("imported " + keyRings.size() + " key rings", start, keyRings.size());
+        check(existing == 0, "new key rings counted as existing: " + existing);
+
+        // a second import finds identical key rings and appends nothing
+        start = System.nanoTime();
+        existing = store.saveAll(keyRings);
+        report("imported " + keyRings.size() + " unchanged key rings", start, keyRings.size());
+        check(existing == keyRings.size(), "unchanged key rings not found: " + existing);
+    }
+
+    private static void lookUp(KeyRingStore store, List<PGPKeyRing> keyRings, int lookupCount)
+            throws Exception {
+        long[] masterKeyIds = new long[keyRings.size()];
+        long[] subKeyIds = new long[keyRings.size()];
+        for (int i = 0; i < keyRings.size(); ++i) {
+            long[] keyIds = getKeyIds(keyRings.get(i));
+            masterKeyIds[i] = keyIds[0];
+            subKeyIds[i] = keyIds[1];
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < lookupCount; ++i) {
+            int n = i % keyRings.size();
+            PGPKeyRing keyRing = store.getByMasterKeyId(getType(keyRings.get(n)),
+                    masterKeyIds[n]);
+            check(keyRing != null && getKeyIds(keyRing)[0] == masterKeyIds[n],
+                    "master key id lookup failed");
+        }
+        report("looked up by master key id", start, lookupCount);
+
+        start = System.nanoTime();
+        for (int i = 0; i < lookupCount; ++i) {
+            int n = i % keyRings.size();
+            PGPKeyRing keyRing = store.getByKeyId(getType(keyRings.get(n)), subKeyIds[n]);
+            check(keyRing != null && getKeyIds(keyRing)[0] == masterKeyIds[n],
+                    "key id lookup failed");
+        }
+        report("looked up by subkey id", start, lookupCount);
+
+        // secret and public key rings alternate, the batch takes the public ones
+        long[] publicSubKeyIds = new long[keyRings.size() / 2];
+        for (int i = 0; i < publicSubKeyIds.length; ++i) {
+            publicSubKeyIds[i] = subKeyIds[2 * i + 1];
+        }
+        start = System.nanoTime();
+        HashMap<Long, PGPKeyRing> found = store.getAll(KeyTypes.PUBLIC, publicSubKeyIds, true);
+        report("looked up in one batch", start, publicSubKeyIds.length);
+        check(found.size() == publicSubKeyIds.length, "batch lookup found " + found.size());
+
+        check(store.getByKeyId(KeyTypes.PUBLIC, 0x1234L) == null, "unknown key id found");
+        check(store.getByMasterKeyId(KeyTypes.SECRET, masterKeyIds[1]) != null,
+                "secret key ring not found by id of its public key ring");
+    }
+
+    private static void search(KeyRingStore store, int keyRingCount) {
+        long start = System.nanoTime();
+        ArrayList<Long> all = store.search(KeyTypes.PUBLIC, "exam");
+        report("searched all user ids", start, 1);
+        check(all.size() == keyRingCount, "search found " + all.size());
+
+        ArrayList<Long> one = store.search(KeyTypes.PUBLIC, "user0@");
+        check(one.size() == 1, "search for one user id found " + one.size());
+    }
+
+    private static void reopen(File file, List<PGPKeyRing> keyRings) throws Exception {
+        long start = System.nanoTime();
+        FileKeyRingStore store = new FileKeyRingStore(file);
+        try {
+            report("reopened " + file.length() + " bytes", start, keyRings.size());
+            check(store.getMasterKeyIds(KeyTypes.PUBLIC).size() == keyRings.size() / 2,
+                    "public key rings missing after reopening");
+            check(store.getMasterKeyIds(KeyTypes.SECRET).size() == keyRings.size() / 2,
+                    "secret key rings missing after reopening");
+
+            long masterKeyId = getKeyIds(keyRings.get(1))[0];
+            long subKeyId = getKeyIds(keyRings.get(1))[1];
+            check(store.delete(KeyTypes.PUBLIC, masterKeyId), "delete failed");
+            check(!store.delete(KeyTypes.PUBLIC, masterKeyId), "deleted twice");
+            check(store.getByKeyId(KeyTypes.PUBLIC, subKeyId) == null, "deleted key ring found");
+        } finally {
+            store.close();
+        }
+
+        store = new FileKeyRingStore(file);
+        try {
+            check(store.getMasterKeyIds(KeyTypes.PUBLIC).size() == keyRings.size() / 2 - 1,
+                    "deletion lost on reopening");
+        } finally {
+            store.close();
+        }
+    }
+
+    private static int getType(PGPKeyRing keyRing) {
+        return (keyRing instanceof PGPSecretKeyRing) ? KeyTypes.SECRET : KeyTypes.PUBLIC;
+    }
+
+    /**
+     * @return key ids of the key ring, the master key first
+     */
+    private static long[] getKeyIds(PGPKeyRing keyRing) {
+        ArrayList<Long> keyIds = new ArrayList<Long>();
+        Iterator<?> it = keyRing.getPublicKeys();
+        while (it.hasNext()) {
+            keyIds.add(((PGPPublicKey) it.next()).getKeyID());
+        }
+
+        long[] result = new long[keyIds.size()];
+        for (int i = 0; i < result.length; ++i) {
+            result[i] = keyIds.get(i);
+        }
+        return result;
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalStateException(message);
+        }
+    }
+
+    private static void report(String what, long startNanos, int operations) {
+        long micros = (System.nanoTime() - startNanos) / 1000;
+        StringBuilder line = new StringBuilder(what).append(": ").append(micros / 1000)
+                .append(" ms");
+        if (operations > 0) {
+            line.append(", ").append(micros / operations).append(" us each");
+        }
+        System.out.println(line);
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2013 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+import java.util.Random;
+
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyTypes;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+
+/**
+ * Measures the queries of ProviderHelper.getPGPKeyRing by key id and by master key id, as they
+ * run for the recipients and signers of every message when the key ring cache misses, with 1k,
+ * 10k and 100k public key rings. Each size is measured with the indices of database version 6 and
+ * again after dropping them, which is the schema before. Lookups of key ids which are not stored,
+ * e.g. "no secret key for this message", are measured as well. Every lookup is checked.
+ *
+ * Runs on a device, see {@link ProviderCorpusTestCase}. The 100k corpus takes about 150 MB of
+ * storage.
+ */
+public class KeyLookupBenchmark extends ProviderCorpusTestCase {
+    private static final int[] KEY_RING_COUNTS = { 1000, 10000, 100000 };
+
+    private static final int LOOKUPS = 1000;
+    /** without indices every lookup scans the tables */
+    private static final int SCAN_LOOKUPS = 20;
+
+    /** added by the upgrade to database version 6 */
+    private static final String[] INDICES = { "keys_key_id_index", "keys_key_ring_row_id_index",
+            "key_rings_type_master_key_id_index", "user_ids_key_ring_row_id_rank_index" };
+
+    private static final String[] PROJECTION = new String[] { KeyRings._ID,
+            KeyRings.KEY_RING_DATA };
+
+    public void testLookupLatency() {
+        for (int count : KEY_RING_COUNTS) {
+            long start = System.nanoTime();
+            insertKeyRings(KeyTypes.PUBLIC, count - mKeyRingCount, false);
+            report("inserted key rings up to " + count, start, 0);
+
+            lookUp(count + " key rings, indexed", LOOKUPS);
+
+            String[] indexSql = new String[INDICES.length];
+            for (int i = 0; i < INDICES.length; ++i) {
+                indexSql[i] = getIndexSql(INDICES[i]);
+                mDatabase.execSQL("DROP INDEX " + INDICES[i]);
+            }
+            lookUp(count + " key rings, without indices", SCAN_LOOKUPS);
+            for (String sql : indexSql) {
+                mDatabase.execSQL(sql);
+            }
+        }
+    }
+
+    private void lookUp(String what, int lookups) {
+        ContentResolver resolver = getMockContentResolver();
+        Random random = new Random(1);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < lookups; ++i) {
+            int index = random.nextInt(mKeyRingCount);
+            Uri uri = KeyRings.buildPublicKeyRingsByKeyIdUri(Long.toString(mSubkeyIds[index]));
+            assertEquals("key id lookup " + i, 1, countKeyRings(resolver.query(uri, PROJECTION,
+                    null, null, null)));
+        }
+        report(what + ", by key id", start, lookups);
+
+        start = System.nanoTime();
+        for (int i = 0; i < lookups; ++i) {
+            int index = random.nextInt(mKeyRingCount);
+            Uri uri = KeyRings.buildPublicKeyRingsByMasterKeyIdUri(Long
+                    .toString(mMasterKeyIds[index]));
+            assertEquals("master key id lookup " + i, 1, countKeyRings(resolver.query(uri,
+                    PROJECTION, null, null, null)));
+        }
+        report(what + ", by master key id", start, lookups);
+
+        // random ids of 64 bits are practically never stored
+        start = System.nanoTime();
+        for (int i = 0; i < lookups; ++i) {
+            Uri uri = KeyRings.buildPublicKeyRingsByKeyIdUri(Long.toString(random.nextLong()));
+            assertEquals("missing key id lookup " + i, 0, countKeyRings(resolver.query(uri,
+                    PROJECTION, null, null, null)));
+        }
+        report(what + ", missing key id", start, lookups);
+    }
+
+    /**
+     * Reads all key ring blobs like getPGPKeyRing does, closes cursor
+     *
+     * @return number of key rings
+     */
+    private static int countKeyRings(Cursor cursor) {
+        assertNotNull(cursor);
+        try {
+            int count = 0;
+            while (cursor.moveToNext()) {
+                assertEquals(KEY_RING_SIZE, cursor.getBlob(1).length);
+                ++count;
+            }
+            return count;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private String getIndexSql(String index) {
+        Cursor cursor = mDatabase.rawQuery("SELECT sql FROM sqlite_master WHERE type = 'index'"
+                + " AND name = ?", new String[] { index });
+        try {
+            assertTrue("index " + index + " missing", cursor.moveToFirst());
+            return cursor.getString(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
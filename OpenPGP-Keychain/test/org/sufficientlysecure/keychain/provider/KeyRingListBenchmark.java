@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2013 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyTypes;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDebug;
+import android.util.Log;
+
+/**
+ * Measures the query of the key list and the query of the key selection dialog, as they were
+ * built by buildKeyRingQuery and SelectPublicKeyFragment before the key ring summary, with 20k
+ * public key rings. Once on key_rings and keys, which keep their blobs in key_ring_blobs and
+ * key_blobs since database version 11, and once on copies of them with the blobs inline, as
+ * database version 10 created them.
+ *
+ * Every query runs on a new read only connection with a page cache large enough for all pages it
+ * reads, the growth of the memory used by SQLite is the page cache filled by the query. The
+ * first round reads the pages from storage unless the kernel still caches them, later rounds show
+ * the difference with warm storage.
+ *
+ * Runs on a device, see {@link ProviderCorpusTestCase}.
+ */
+public class KeyRingListBenchmark extends ProviderCorpusTestCase {
+    private static final int KEY_RING_COUNT = 20000;
+    private static final int ROUNDS = 3;
+
+    /** in pages, larger than all tables together */
+    private static final int CACHE_SIZE = 100000;
+
+    /** key_rings and keys as created by database version 10, blobs inline */
+    private static final String CREATE_INLINE_KEY_RINGS = "CREATE TABLE inline_key_rings ("
+            + "_id INTEGER PRIMARY KEY AUTOINCREMENT, master_key_id INT64, type INTEGER, "
+            + "key_ring_data BLOB, key_ring_data_hash BLOB)";
+    private static final String CREATE_INLINE_KEYS = "CREATE TABLE inline_keys ("
+            + "_id INTEGER PRIMARY KEY AUTOINCREMENT, key_id INT64, type INTEGER, "
+            + "is_master_key INTEGER, algorithm INTEGER, key_size INTEGER, can_certify INTEGER, "
+            + "can_sign INTEGER, can_encrypt INTEGER, is_revoked INTEGER, creation INTEGER, "
+            + "expiry INTEGER, key_data BLOB, rank INTEGER, fingerprint BLOB, "
+            + "key_ring_row_id INTEGER NOT NULL)";
+
+    /** the indices of database version 6 on the copies */
+    private static final String[] CREATE_INLINE_INDICES = {
+            "CREATE INDEX inline_keys_key_id_index ON inline_keys (key_id)",
+            "CREATE INDEX inline_keys_key_ring_row_id_index ON inline_keys (key_ring_row_id)",
+            "CREATE INDEX inline_key_rings_type_master_key_id_index ON inline_key_rings "
+                    + "(type, master_key_id)" };
+
+    /** buildKeyRingQuery for PUBLIC_KEY_RING with the projection of the key list */
+    private static final String LIST_QUERY = "SELECT key_rings._id, key_rings.master_key_id, "
+            + "user_ids.user_id FROM %1$s AS key_rings INNER JOIN user_ids ON (key_rings._id = "
+            + "user_ids.key_ring_row_id AND user_ids.rank = '0') WHERE key_rings.type = 0 "
+            + "ORDER BY user_ids.user_id ASC";
+
+    /** the list query with the key counts of SelectPublicKeyFragment */
+    private static final String SELECTION_QUERY = "SELECT key_rings._id, "
+            + "key_rings.master_key_id, user_ids.user_id, (SELECT COUNT(available_keys._id) FROM "
+            + "%2$s AS available_keys WHERE available_keys.key_ring_row_id = key_rings._id AND "
+            + "available_keys.is_revoked = '0' AND available_keys.can_encrypt = '1') AS "
+            + "available, (SELECT COUNT(valid_keys._id) FROM %2$s AS valid_keys WHERE "
+            + "valid_keys.key_ring_row_id = key_rings._id AND valid_keys.is_revoked = '0' AND "
+            + "valid_keys.can_encrypt = '1' AND valid_keys.creation <= '%3$d' AND "
+            + "(valid_keys.expiry IS NULL OR valid_keys.expiry >= '%3$d')) AS valid FROM "
+            + "%1$s AS key_rings INNER JOIN user_ids ON (key_rings._id = "
+            + "user_ids.key_ring_row_id AND user_ids.rank = '0') WHERE key_rings.type = 0 "
+            + "ORDER BY user_ids.user_id ASC";
+
+    public void testListQueries() {
+        long start = System.nanoTime();
+        insertKeyRings(KeyTypes.PUBLIC, KEY_RING_COUNT, true);
+        report("inserted " + KEY_RING_COUNT + " key rings", start, 0);
+
+        start = System.nanoTime();
+        createInlineTables();
+        report("copied key rings with inline blobs", start, 0);
+
+        long now = System.currentTimeMillis() / 1000;
+        for (int round = 0; round < ROUNDS; ++round) {
+            query("round " + round + ", list, separate blobs",
+                    String.format(LIST_QUERY, "key_rings"));
+            query("round " + round + ", list, inline blobs",
+                    String.format(LIST_QUERY, "inline_key_rings"));
+            query("round " + round + ", selection, separate blobs",
+                    String.format(SELECTION_QUERY, "key_rings", "keys", now));
+            query("round " + round + ", selection, inline blobs",
+                    String.format(SELECTION_QUERY, "inline_key_rings", "inline_keys", now));
+        }
+    }
+
+    private void createInlineTables() {
+        mDatabase.beginTransaction();
+        try {
+            mDatabase.execSQL(CREATE_INLINE_KEY_RINGS);
+            mDatabase.execSQL(CREATE_INLINE_KEYS);
+            mDatabase.execSQL("INSERT INTO inline_key_rings SELECT key_rings._id, "
+                    + "master_key_id, type, key_ring_data, key_ring_data_hash FROM key_rings "
+                    + "INNER JOIN key_ring_blobs ON key_ring_blobs._id = key_rings._id");
+            mDatabase.execSQL("INSERT INTO inline_keys SELECT keys._id, key_id, type, "
+                    + "is_master_key, algorithm, key_size, can_certify, can_sign, can_encrypt, "
+                    + "is_revoked, creation, expiry, key_data, rank, fingerprint, "
+                    + "key_ring_row_id FROM keys INNER JOIN key_blobs ON key_blobs._id = "
+                    + "keys._id");
+            for (String sql : CREATE_INLINE_INDICES) {
+                mDatabase.execSQL(sql);
+            }
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+    }
+
+    /**
+     * Runs query on a new connection and reads all rows, like the list adapters do while scrolling
+     * through all key rings
+     */
+    private void query(String what, String sql) {
+        int memoryBefore = SQLiteDebug.getDatabaseInfo().memoryUsed;
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(mDatabase.getPath(), null,
+                SQLiteDatabase.OPEN_READONLY);
+        try {
+            db.execSQL("PRAGMA cache_size = " + CACHE_SIZE);
+
+            long start = System.nanoTime();
+            Cursor cursor = db.rawQuery(sql, null);
+            int rows = 0;
+            try {
+                while (cursor.moveToNext()) {
+                    cursor.getLong(1);
+                    cursor.getString(2);
+                    ++rows;
+                }
+            } finally {
+                cursor.close();
+            }
+            report(what, start, 0);
+            assertEquals(what, KEY_RING_COUNT, rows);
+
+            int pageCache = SQLiteDebug.getDatabaseInfo().memoryUsed - memoryBefore;
+            Log.i(Constants.TAG, what + ": page cache " + (pageCache / 1024) + " KB");
+        } finally {
+            db.close();
+        }
+    }
+}
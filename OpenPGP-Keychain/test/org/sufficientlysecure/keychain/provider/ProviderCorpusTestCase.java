@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2013 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+import java.util.Random;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingsColumns;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeysColumns;
+import org.sufficientlysecure.keychain.provider.KeychainContract.UserIdsColumns;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.provider.BaseColumns;
+import android.test.ProviderTestCase2;
+
+/**
+ * Base of the tests and benchmarks of the keychain database. They run on a device or emulator:
+ * android.database.sqlite is only a stub in the android.jar of the SDK, so there is no SQLite to
+ * run them against on a desktop JVM, and the results depend on the SQLite version and the storage
+ * of the device anyway. {@link KeychainProviderInternal} runs in an isolated context on
+ * "test.apg.db", the key rings of the installed app are not touched.
+ *
+ * Key rings are inserted with SQL in transactions of 100 key rings, like PgpMain.importKeyRings
+ * saves them, and the triggers of {@link KeychainDatabase} maintain the summary, the full text
+ * index and the sequence numbers as for saved key rings. Each key ring has a master key, one
+ * subkey and one user id. Its blob is random bytes of the size of a 2048 bit RSA key ring, the
+ * keys are slices of it. Nothing here parses the blobs, so no keys have to be generated.
+ *
+ * Results are written to logcat. The tests are run from a test project for the app:
+ *
+ * <pre>
+ * android create test-project -m ../OpenPGP-Keychain -n KeychainTests -p ../KeychainTests
+ * cp -r test/org ../KeychainTests/src/
+ * cd ../KeychainTests && ant debug install
+ * adb shell am instrument -w -e class org.sufficientlysecure.keychain.provider.KeyLookupBenchmark \
+ *     org.sufficientlysecure.keychain.tests/android.test.InstrumentationTestRunner
+ * adb logcat -s Keychain
+ * </pre>
+ */
+public abstract class ProviderCorpusTestCase extends ProviderTestCase2<KeychainProviderInternal> {
+    /** name of the database of the isolated context */
+    private static final String DATABASE_NAME = "test.apg.db";
+
+    private static final int INSERT_BATCH_SIZE = 100;
+
+    /** 2048 bit RSA master key and subkey with one user id and their signatures */
+    protected static final int KEY_RING_SIZE = 1200;
+    protected static final int KEY_SIZE = 272;
+    private static final int MASTER_KEY_OFFSET = 0;
+    private static final int SUBKEY_OFFSET = 600;
+
+    private KeychainDatabase mHelper;
+    protected SQLiteDatabase mDatabase;
+
+    private final Random mRandom = new Random(0);
+
+    /** ids of the inserted key rings, in the order of insertion */
+    protected long[] mMasterKeyIds = new long[0];
+    protected long[] mSubkeyIds = new long[0];
+    protected int mKeyRingCount = 0;
+
+    public ProviderCorpusTestCase() {
+        super(KeychainProviderInternal.class, KeychainContract.CONTENT_AUTHORITY_INTERNAL);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        // the isolated context would open the database left by an aborted run
+        getContext().deleteDatabase(DATABASE_NAME);
+        super.setUp();
+
+        // same file as the provider, which opens it on its first query
+        mHelper = new KeychainDatabase(getMockContext());
+        mDatabase = mHelper.getWritableDatabase();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mHelper.close();
+        super.tearDown();
+        getContext().deleteDatabase(DATABASE_NAME);
+    }
+
+    /**
+     * Inserts key rings into the database
+     *
+     * @param type
+     *            see {@link KeychainContract.KeyTypes}
+     * @param count
+     * @param keyBlobs
+     *            store the keys in key_blobs instead of as slices of the key ring blob, as keys
+     *            were stored before database version 12
+     */
+    protected void insertKeyRings(int type, int count, boolean keyBlobs) {
+        ensureCapacity(mKeyRingCount + count);
+
+        SQLiteStatement insertKeyRing = mDatabase.compileStatement("INSERT INTO "
+                + Tables.KEY_RINGS + " (" + KeyRingsColumns.MASTER_KEY_ID + ", "
+                + KeyRingsColumns.TYPE + ", " + KeyRingsColumns.KEY_RING_DATA_HASH
+                + ") VALUES (?, ?, ?)");
+        SQLiteStatement insertKeyRingBlob = mDatabase.compileStatement("INSERT INTO "
+                + Tables.KEY_RING_BLOBS + " (" + BaseColumns._ID + ", "
+                + KeyRingsColumns.KEY_RING_DATA + ") VALUES (?, ?)");
+        SQLiteStatement insertKey = mDatabase.compileStatement("INSERT INTO " + Tables.KEYS
+                + " (" + KeysColumns.KEY_ID + ", " + KeysColumns.TYPE + ", "
+                + KeysColumns.IS_MASTER_KEY + ", " + KeysColumns.ALGORITHM + ", "
+                + KeysColumns.KEY_SIZE + ", " + KeysColumns.CAN_CERTIFY + ", "
+                + KeysColumns.CAN_SIGN + ", " + KeysColumns.CAN_ENCRYPT + ", "
+                + KeysColumns.IS_REVOKED + ", " + KeysColumns.CREATION + ", "
+                + KeysColumns.RANK + ", " + KeysColumns.KEY_DATA_OFFSET + ", "
+                + KeysColumns.KEY_DATA_LENGTH + ", " + KeysColumns.FINGERPRINT + ", "
+                + KeysColumns.KEY_RING_ROW_ID
+                + ") VALUES (?, ?, ?, 1, 2048, ?, ?, ?, 0, ?, ?, ?, ?, ?, ?)");
+        SQLiteStatement insertKeyBlob = mDatabase.compileStatement("INSERT INTO "
+                + Tables.KEY_BLOBS + " (" + BaseColumns._ID + ", " + KeysColumns.KEY_DATA
+                + ") VALUES (?, ?)");
+        SQLiteStatement insertUserId = mDatabase.compileStatement("INSERT INTO "
+                + Tables.USER_IDS + " (" + UserIdsColumns.USER_ID + ", " + UserIdsColumns.RANK
+                + ", " + UserIdsColumns.EMAIL + ", " + UserIdsColumns.KEY_RING_ROW_ID
+                + ") VALUES (?, 0, ?, ?)");
+
+        try {
+            for (int start = 0; start < count; start += INSERT_BATCH_SIZE) {
+                int end = Math.min(start + INSERT_BATCH_SIZE, count);
+                mDatabase.beginTransaction();
+                try {
+                    for (int i = start; i < end; ++i) {
+                        byte[] data = new byte[KEY_RING_SIZE];
+                        mRandom.nextBytes(data);
+                        long masterKeyId = mRandom.nextLong();
+                        long subkeyId = mRandom.nextLong();
+
+                        insertKeyRing.bindLong(1, masterKeyId);
+                        insertKeyRing.bindLong(2, type);
+                        insertKeyRing.bindBlob(3, randomBytes(32));
+                        long keyRingRowId = insertKeyRing.executeInsert();
+
+                        insertKeyRingBlob.bindLong(1, keyRingRowId);
+                        insertKeyRingBlob.bindBlob(2, data);
+                        insertKeyRingBlob.executeInsert();
+
+                        long masterKeyRowId = insertKey(insertKey, keyRingRowId, type, 0,
+                                masterKeyId, MASTER_KEY_OFFSET, keyBlobs);
+                        long subkeyRowId = insertKey(insertKey, keyRingRowId, type, 1, subkeyId,
+                                SUBKEY_OFFSET, keyBlobs);
+                        if (keyBlobs) {
+                            insertKeyBlob(insertKeyBlob, masterKeyRowId, data, MASTER_KEY_OFFSET);
+                            insertKeyBlob(insertKeyBlob, subkeyRowId, data, SUBKEY_OFFSET);
+                        }
+
+                        int number = mKeyRingCount;
+                        insertUserId.bindString(1, "Benchmark User " + number + " <user" + number
+                                + "@example.com>");
+                        insertUserId.bindString(2, "user" + number + "@example.com");
+                        insertUserId.bindLong(3, keyRingRowId);
+                        insertUserId.executeInsert();
+
+                        mMasterKeyIds[mKeyRingCount] = masterKeyId;
+                        mSubkeyIds[mKeyRingCount] = subkeyId;
+                        ++mKeyRingCount;
+                    }
+                    mDatabase.setTransactionSuccessful();
+                } finally {
+                    mDatabase.endTransaction();
+                }
+            }
+        } finally {
+            insertKeyRing.close();
+            insertKeyRingBlob.close();
+            insertKey.close();
+            insertKeyBlob.close();
+            insertUserId.close();
+        }
+    }
+
+    /**
+     * @param rank
+     *            0 for the master key, which certifies and signs, 1 for the subkey, which
+     *            encrypts
+     * @return row id
+     */
+    private long insertKey(SQLiteStatement insertKey, long keyRingRowId, int type, int rank,
+            long keyId, int offset, boolean keyBlob) {
+        insertKey.bindLong(1, keyId);
+        insertKey.bindLong(2, type);
+        insertKey.bindLong(3, (rank == 0) ? 1 : 0);
+        insertKey.bindLong(4, (rank == 0) ? 1 : 0);
+        insertKey.bindLong(5, (rank == 0) ? 1 : 0);
+        insertKey.bindLong(6, (rank == 0) ? 0 : 1);
+        insertKey.bindLong(7, System.currentTimeMillis() / 1000);
+        insertKey.bindLong(8, rank);
+        if (keyBlob) {
+            insertKey.bindNull(9);
+            insertKey.bindNull(10);
+        } else {
+            insertKey.bindLong(9, offset);
+            insertKey.bindLong(10, KEY_SIZE);
+        }
+        insertKey.bindBlob(11, randomBytes(20));
+        insertKey.bindLong(12, keyRingRowId);
+        return insertKey.executeInsert();
+    }
+
+    private static void insertKeyBlob(SQLiteStatement insertKeyBlob, long keyRowId,
+            byte[] keyRingData, int offset) {
+        byte[] keyData = new byte[KEY_SIZE];
+        System.arraycopy(keyRingData, offset, keyData, 0, KEY_SIZE);
+        insertKeyBlob.bindLong(1, keyRowId);
+        insertKeyBlob.bindBlob(2, keyData);
+        insertKeyBlob.executeInsert();
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        mRandom.nextBytes(bytes);
+        return bytes;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (mMasterKeyIds.length >= capacity) {
+            return;
+        }
+        long[] masterKeyIds = new long[capacity];
+        long[] subkeyIds = new long[capacity];
+        System.arraycopy(mMasterKeyIds, 0, masterKeyIds, 0, mKeyRingCount);
+        System.arraycopy(mSubkeyIds, 0, subkeyIds, 0, mKeyRingCount);
+        mMasterKeyIds = masterKeyIds;
+        mSubkeyIds = subkeyIds;
+    }
+
+    protected static void report(String what, long startNanos, int operations) {
+        long micros = (System.nanoTime() - startNanos) / 1000;
+        StringBuilder line = new StringBuilder(what).append(": ").append(micros / 1000)
+                .append(" ms");
+        if (operations > 0) {
+            line.append(", ").append(micros / operations).append(" us each");
+        }
+        // not util.Log, which writes only debug builds
+        android.util.Log.i(Constants.TAG, line.toString());
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2013 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyTypes;
+
+import android.util.Log;
+
+/**
+ * Checks that {@link ProviderHelper#exportKeyRings} keeps the used heap flat: 2k and 20k public
+ * key rings are exported into a stream which discards the data and samples the used heap after
+ * every megabyte. The export of 20k key rings is about 23 MB, an export held in memory would grow
+ * the heap by more than that, the streaming export may only grow it by its cursor windows.
+ *
+ * Runs on a device, see {@link ProviderCorpusTestCase}.
+ */
+public class StreamingExportTest extends ProviderCorpusTestCase {
+    private static final int[] KEY_RING_COUNTS = { 2000, 20000 };
+
+    private static final int SAMPLE_INTERVAL = 1 << 20;
+    private static final long MAX_HEAP_GROWTH = 4 << 20;
+
+    /**
+     * Counts and discards the written bytes, samples the used heap
+     */
+    private static class HeapSamplingOutputStream extends OutputStream {
+        private final long mUsedBefore;
+
+        private long mCount = 0;
+        private long mNextSample = SAMPLE_INTERVAL;
+        private long mMaxGrowth = 0;
+
+        HeapSamplingOutputStream() {
+            mUsedBefore = getUsedHeap();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            ++mCount;
+            sample();
+        }
+
+        @Override
+        public void write(byte[] b, int offset, int length) throws IOException {
+            mCount += length;
+            sample();
+        }
+
+        private void sample() {
+            if (mCount >= mNextSample) {
+                mNextSample += SAMPLE_INTERVAL;
+                mMaxGrowth = Math.max(mMaxGrowth, getUsedHeap() - mUsedBefore);
+            }
+        }
+    }
+
+    public void testFlatHeap() throws IOException {
+        for (int count : KEY_RING_COUNTS) {
+            insertKeyRings(KeyTypes.PUBLIC, count - mKeyRingCount, false);
+            long[] masterKeyIds = new long[count];
+            System.arraycopy(mMasterKeyIds, 0, masterKeyIds, 0, count);
+
+            HeapSamplingOutputStream out = new HeapSamplingOutputStream();
+            long start = System.nanoTime();
+            int exported = ProviderHelper.exportKeyRings(getMockContext(),
+                    KeyRings.buildPublicKeyRingsUri(), masterKeyIds, out, null, 0, 100);
+            report("exported " + count + " key rings", start, count);
+            Log.i(Constants.TAG, "exported " + count + " key rings: " + (out.mCount >> 10)
+                    + " KB, heap grew by at most " + (out.mMaxGrowth >> 10) + " KB");
+
+            assertEquals(count, exported);
+            assertEquals((long) count * KEY_RING_SIZE, out.mCount);
+            assertTrue("heap grew by " + out.mMaxGrowth + " bytes exporting " + count
+                    + " key rings", out.mMaxGrowth < MAX_HEAP_GROWTH);
+        }
+    }
+
+    private static long getUsedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
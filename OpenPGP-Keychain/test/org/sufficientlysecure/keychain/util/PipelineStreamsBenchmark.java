@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2013 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.util.Date;
+import java.util.Random;
+
+import org.spongycastle.jce.provider.BouncyCastleProvider;
+import org.spongycastle.openpgp.PGPEncryptedData;
+import org.spongycastle.openpgp.PGPEncryptedDataGenerator;
+import org.spongycastle.openpgp.PGPException;
+import org.spongycastle.openpgp.PGPLiteralData;
+import org.spongycastle.openpgp.PGPLiteralDataGenerator;
+import org.spongycastle.openpgp.operator.jcajce.JcePBEKeyEncryptionMethodGenerator;
+import org.spongycastle.openpgp.operator.jcajce.JcePGPDataEncryptorBuilder;
+
+/**
+ * Encrypts a file with AES-256 like PgpMain.encryptAndSign, once reading and writing the files
+ * directly and once through {@link ReadAheadInputStream} and {@link WriteBehindOutputStream} with
+ * the buffers of PgpMain, and prints the throughput of both. The rounds alternate, so that both
+ * paths see the same state of the page cache. Use files larger than the memory of the device or
+ * drop the caches between runs to measure the storage instead of the cache.
+ *
+ * Needs only the Spongy Castle jars of libs at runtime:
+ *
+ * <pre>
+ * java -cp bin/classes:test-classes:libs/scprov-jdk15on-1.47.0.3-SNAPSHOT.jar:\
+ *     libs/scpg-jdk15on-1.47.0.3-SNAPSHOT.jar:libs/sc-light-jdk15on-1.47.0.3-SNAPSHOT.jar \
+ *     org.sufficientlysecure.keychain.util.PipelineStreamsBenchmark [megabytes] [rounds] [dir]
+ * </pre>
+ */
+public class PipelineStreamsBenchmark {
+    private static final String SC = BouncyCastleProvider.PROVIDER_NAME;
+
+    /** as in PgpMain */
+    private static final int PIPELINE_BUFFER_SIZE = 1 << 16;
+    private static final int PIPELINE_BUFFER_COUNT = 4;
+
+    public static void main(String[] args) throws Exception {
+        long megabytes = (args.length > 0) ? Long.parseLong(args[0]) : 2048;
+        int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 2;
+        File dir = new File((args.length > 2) ? args[2] : System.getProperty("java.io.tmpdir"));
+
+        Security.addProvider(new BouncyCastleProvider());
+
+        File input = File.createTempFile("pipeline", ".bin", dir);
+        File output = File.createTempFile("pipeline", ".gpg", dir);
+        input.deleteOnExit();
+        output.deleteOnExit();
+        try {
+            long size = megabytes << 20;
+            writeInput(input, size);
+            System.out.println("cpus: " + Runtime.getRuntime().availableProcessors()
+                    + ", input: " + megabytes + " MB");
+
+            for (int round = 0; round < rounds; ++round) {
+                report("direct", size, encrypt(input, output, false));
+                report("pipelined", size, encrypt(input, output, true));
+            }
+        } finally {
+            input.delete();
+            output.delete();
+        }
+    }
+
+    private static void writeInput(File file, long size) throws IOException {
+        byte[] buffer = new byte[1 << 20];
+        new Random(0).nextBytes(buffer);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            for (long written = 0; written < size; written += buffer.length) {
+                out.write(buffer, 0, (int) Math.min(buffer.length, size - written));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @return nanoseconds taken
+     */
+    private static long encrypt(File input, File output, boolean pipelined) throws IOException,
+            PGPException {
+        long start = System.nanoTime();
+        InputStream in = new FileInputStream(input);
+        OutputStream out = new FileOutputStream(output);
+        ReadAheadInputStream pipelineIn = null;
+        WriteBehindOutputStream pipelineOut = null;
+        try {
+            if (pipelined) {
+                pipelineIn = new ReadAheadInputStream(in, PIPELINE_BUFFER_SIZE,
+                        PIPELINE_BUFFER_COUNT);
+                pipelineOut = new WriteBehindOutputStream(out, PIPELINE_BUFFER_SIZE,
+                        PIPELINE_BUFFER_COUNT);
+                encrypt(pipelineIn, pipelineOut, input.length());
+                pipelineOut.finish();
+            } else {
+                encrypt(in, out, input.length());
+            }
+            // include writing to the device, like closing the output file on Android does not
+            out.flush();
+            ((FileOutputStream) out).getFD().sync();
+        } finally {
+            if (pipelineIn != null) {
+                pipelineIn.stop();
+            }
+            if (pipelineOut != null) {
+                pipelineOut.cancel();
+            }
+            in.close();
+            out.close();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static void encrypt(InputStream in, OutputStream out, long size) throws IOException,
+            PGPException {
+        PGPEncryptedDataGenerator encryptedDataGenerator = new PGPEncryptedDataGenerator(
+                new JcePGPDataEncryptorBuilder(PGPEncryptedData.AES_256)
+                        .setWithIntegrityPacket(true).setSecureRandom(new SecureRandom())
+                        .setProvider(SC));
+        encryptedDataGenerator.addMethod(new JcePBEKeyEncryptionMethodGenerator(
+                "benchmark".toCharArray()).setProvider(SC));
+        OutputStream encryptionOut = encryptedDataGenerator.open(out, new byte[1 << 16]);
+
+        PGPLiteralDataGenerator literalDataGenerator = new PGPLiteralDataGenerator();
+        OutputStream literalOut = literalDataGenerator.open(encryptionOut, PGPLiteralData.BINARY,
+                "", new Date(), new byte[1 << 16]);
+
+        byte[] buffer = new byte[1 << 16];
+        long done = 0;
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            literalOut.write(buffer, 0, n);
+            done += n;
+        }
+        if (done != size) {
+            throw new IOException("read " + done + " of " + size + " bytes");
+        }
+
+        literalDataGenerator.close();
+        encryptedDataGenerator.close();
+    }
+
+    private static void report(String what, long size, long nanos) {
+        long millis = nanos / 1000000;
+        System.out.println(what + ": " + millis + " ms, "
+                + ((millis == 0) ? 0 : (size >> 20) * 1000 / millis) + " MB/s");
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2013 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks that {@link ReadAheadInputStream} and {@link WriteBehindOutputStream} pass all data
+ * through unchanged and that an IOException on their threads reaches the caller. Ends with an
+ * exception if a check fails, runs without any library:
+ *
+ * <pre>
+ * java -cp bin/classes:test-classes org.sufficientlysecure.keychain.util.PipelineStreamsTest
+ * </pre>
+ */
+public class PipelineStreamsTest {
+    private static final int BUFFER_SIZE = 1 << 10;
+    private static final int BUFFER_COUNT = 4;
+
+    /** thrown by the failing streams, compared by identity */
+    private static final IOException FAILURE = new IOException("storage failure");
+
+    /**
+     * Returns data, then fails instead of returning more
+     */
+    private static class FailingInputStream extends InputStream {
+        private final InputStream mIn;
+
+        FailingInputStream(byte[] data) {
+            mIn = new ByteArrayInputStream(data);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = mIn.read();
+            if (b < 0) {
+                throw FAILURE;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int offset, int length) throws IOException {
+            int n = mIn.read(b, offset, length);
+            if (n < 0) {
+                throw FAILURE;
+            }
+            return n;
+        }
+    }
+
+    /**
+     * Accepts limit bytes, then fails
+     */
+    private static class FailingOutputStream extends OutputStream {
+        private final ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+        private final int mLimit;
+
+        FailingOutputStream(int limit) {
+            mLimit = limit;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int offset, int length) throws IOException {
+            if (mOut.size() + length > mLimit) {
+                throw FAILURE;
+            }
+            mOut.write(b, offset, length);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        byte[] data = new byte[10 * BUFFER_SIZE + 123];
+        new Random(0).nextBytes(data);
+
+        readAll(data);
+        readFailure(data);
+        writeAll(data);
+        writeFailure(data);
+        finishFailure(data);
+
+        System.out.println("all checks passed");
+    }
+
+    private static void readAll(byte[] data) throws IOException {
+        ReadAheadInputStream in = new ReadAheadInputStream(new ByteArrayInputStream(data),
+                BUFFER_SIZE, BUFFER_COUNT);
+        check(Arrays.equals(read(in, data.length + 1), data), "read data differs");
+        check(in.read() == -1, "no end after all data");
+        in.close();
+    }
+
+    private static void readFailure(byte[] data) throws IOException {
+        ReadAheadInputStream in = new ReadAheadInputStream(new FailingInputStream(data),
+                BUFFER_SIZE, BUFFER_COUNT);
+        ByteArrayOutputStream read = new ByteArrayOutputStream();
+        byte[] buffer = new byte[100];
+        try {
+            int n;
+            while ((n = in.read(buffer, 0, buffer.length)) > 0) {
+                read.write(buffer, 0, n);
+            }
+            throw new IllegalStateException("read failure not thrown");
+        } catch (IOException e) {
+            check(e == FAILURE, "other exception thrown: " + e);
+        } finally {
+            in.stop();
+        }
+        check(Arrays.equals(read.toByteArray(), data), "data before the failure lost");
+    }
+
+    private static void writeAll(byte[] data) throws IOException {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        WriteBehindOutputStream out = new WriteBehindOutputStream(sink, BUFFER_SIZE,
+                BUFFER_COUNT);
+        out.write(data, 0, 7);
+        out.write(data[7]);
+        out.write(data, 8, data.length - 8);
+        out.finish();
+        check(Arrays.equals(sink.toByteArray(), data), "written data differs");
+    }
+
+    /**
+     * The writing thread fails in the middle, a later write throws
+     */
+    private static void writeFailure(byte[] data) throws Exception {
+        WriteBehindOutputStream out = new WriteBehindOutputStream(new FailingOutputStream(
+                2 * BUFFER_SIZE), BUFFER_SIZE, BUFFER_COUNT);
+        try {
+            // keeps writing after the failure until the writing thread has reported it
+            for (int i = 0; i < 1000; ++i) {
+                out.write(data, 0, data.length);
+                Thread.sleep(1);
+            }
+            out.finish();
+            throw new IllegalStateException("write failure not thrown");
+        } catch (IOException e) {
+            check(e == FAILURE, "other exception thrown: " + e);
+        } finally {
+            out.cancel();
+        }
+    }
+
+    /**
+     * The last buffer fails after all writes returned, finish throws
+     */
+    private static void finishFailure(byte[] data) throws IOException {
+        WriteBehindOutputStream out = new WriteBehindOutputStream(new FailingOutputStream(
+                data.length - 1), BUFFER_SIZE, BUFFER_COUNT * 4);
+        // fits into the buffers, no write waits for the writing thread
+        out.write(data, 0, data.length);
+        try {
+            out.finish();
+            throw new IllegalStateException("failure of the last buffer not thrown");
+        } catch (IOException e) {
+            check(e == FAILURE, "other exception thrown: " + e);
+        } finally {
+            out.cancel();
+        }
+    }
+
+    private static byte[] read(InputStream in, int max) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[333];
+        int n;
+        while (out.size() < max && (n = in.read(buffer, 0, buffer.length)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalStateException(message);
+        }
+    }
+}